@@ -0,0 +1,84 @@
+package org.example.demo.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.example.demo.Encryption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The EncryptionBenchmark class measures the message encryption every message
+ * goes through twice: the shared per-key context of {@link Encryption} against
+ * the original path, which derived the key and created a cipher on every
+ * call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionBenchmark {
+    private static final String KEY = "mySecretKey";
+
+    /** Length of the message content: a search query, a catalog chunk. */
+    @Param({"16", "1024", "24576"})
+    public int contentLength;
+
+    private String content;
+    private String encrypted;
+
+    @Setup
+    public void setUp() {
+        content = Workloads.text(contentLength, 1);
+        encrypted = Encryption.encrypt(content, KEY);
+    }
+
+    @Benchmark
+    public String encryptCachedContext() {
+        return Encryption.encrypt(content, KEY);
+    }
+
+    @Benchmark
+    public String decryptCachedContext() {
+        return Encryption.decrypt(encrypted, KEY);
+    }
+
+    @Benchmark
+    public String encryptPerCall() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, deriveKey(KEY));
+        return Base64.getEncoder().encodeToString(cipher.doFinal(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public String decryptPerCall() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(KEY));
+        return new String(cipher.doFinal(Base64.getDecoder().decode(encrypted)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Derives the key as the first version of Encryption did on every call,
+     * without its debug printing.
+     */
+    private static Key deriveKey(String keyString) throws Exception {
+        byte[] keyBytes = MessageDigest.getInstance("SHA-1").digest(keyString.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(Arrays.copyOf(keyBytes, 16), "AES");
+    }
+}
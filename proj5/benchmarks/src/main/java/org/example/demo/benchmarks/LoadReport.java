@@ -0,0 +1,243 @@
+package org.example.demo.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The LoadReport class holds the results of a {@link LoadTest} run and
+ * writes them out: as JSON, with the same keys on every run so reports of
+ * different builds can be diffed or loaded side by side, and as an
+ * HdrHistogram percentile distribution (.hgrm) per message type next to the
+ * JSON file. Latencies are in milliseconds.
+ */
+final class LoadReport {
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private final String label;
+    private final double seconds;
+    private final Map<String, Object> settings = new LinkedHashMap<>();
+    private final Map<String, TypeResult> types = new LinkedHashMap<>();
+    private double connectSeconds;
+    private double sentPerSecond;
+    private double receivedPerSecond;
+    private long sendsSkipped;
+    private int threads;
+    private int peakThreads;
+    private long heapAverage;
+    private long heapMax;
+    private long gcCount;
+    private long gcMillis;
+    private double cpuLoad;
+    private long peerFailures;
+    private String firstPeerFailure;
+
+    /**
+     * Constructs an empty report.
+     *
+     * @param label   The name of the build or change measured.
+     * @param seconds The length of the measured part of the run.
+     */
+    LoadReport(String label, double seconds) {
+        this.label = label;
+        this.seconds = seconds;
+    }
+
+    void setting(String name, Object value) {
+        settings.put(name, value);
+    }
+
+    void setConnectSeconds(double connectSeconds) {
+        this.connectSeconds = connectSeconds;
+    }
+
+    /**
+     * Adds the results of one message type.
+     *
+     * @param type      The message type.
+     * @param sent      The messages sent while measuring.
+     * @param timedOut  The messages that got no answer in time.
+     * @param latencies The latencies of the answers, in microseconds.
+     */
+    void addType(String type, long sent, long timedOut, Histogram latencies) {
+        types.put(type, new TypeResult(sent, timedOut, latencies));
+    }
+
+    void setThroughput(double sentPerSecond, double receivedPerSecond, long sendsSkipped) {
+        this.sentPerSecond = sentPerSecond;
+        this.receivedPerSecond = receivedPerSecond;
+        this.sendsSkipped = sendsSkipped;
+    }
+
+    void setJvm(int threads, int peakThreads, long heapAverage, long heapMax, long gcCount, long gcMillis,
+            double cpuLoad) {
+        this.threads = threads;
+        this.peakThreads = peakThreads;
+        this.heapAverage = heapAverage;
+        this.heapMax = heapMax;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+        this.cpuLoad = cpuLoad;
+    }
+
+    void setFailures(long peerFailures, String firstPeerFailure) {
+        this.peerFailures = peerFailures;
+        this.firstPeerFailure = firstPeerFailure;
+    }
+
+    /**
+     * Writes the JSON report, and the histograms next to it.
+     *
+     * @param file The path of the JSON report.
+     * @throws IOException If a file cannot be written.
+     */
+    void write(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.writeString(file, toJson());
+        String base = file.getFileName().toString().replaceFirst("\\.json$", "");
+        for (Map.Entry<String, TypeResult> entry : types.entrySet()) {
+            Path histogramFile = file.resolveSibling(base + "-" + entry.getKey() + ".hgrm");
+            try (PrintStream out = new PrintStream(Files.newOutputStream(histogramFile), false, "UTF-8")) {
+                entry.getValue().latencies.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    /**
+     * Prints a summary table.
+     *
+     * @param out The stream to print to.
+     */
+    void print(PrintStream out) {
+        out.printf(Locale.ROOT, "%nLoad test%s: %d peers, %.1f s measured%n", label.isEmpty() ? "" : " " + label,
+                settings.get("peers"), seconds);
+        out.printf(Locale.ROOT, "%-16s %9s %9s %9s %9s %9s %9s %9s %9s%n", "type", "sent", "answered", "timedOut",
+                "per s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Map.Entry<String, TypeResult> entry : types.entrySet()) {
+            TypeResult result = entry.getValue();
+            out.printf(Locale.ROOT, "%-16s %9d %9d %9d %9.1f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), result.sent,
+                    result.latencies.getTotalCount(), result.timedOut, result.latencies.getTotalCount() / seconds,
+                    millis(result.latencies.getValueAtPercentile(50)),
+                    millis(result.latencies.getValueAtPercentile(99)),
+                    millis(result.latencies.getValueAtPercentile(99.9)), millis(result.latencies.getMaxValue()));
+        }
+        out.printf(Locale.ROOT, "Messages: %.0f/s sent, %.0f/s received, %d sends skipped%n", sentPerSecond,
+                receivedPerSecond, sendsSkipped);
+        out.printf(Locale.ROOT, "JVM: %d threads (peak %d), heap %d MB average, %d MB max, %d GCs (%d ms), "
+                + "CPU %.0f%%%n", threads, peakThreads, heapAverage >> 20, heapMax >> 20, gcCount, gcMillis,
+                cpuLoad * 100);
+        if (peerFailures > 0) {
+            out.println("Peer failures: " + peerFailures + ", first: " + firstPeerFailure);
+        }
+    }
+
+    private String toJson() {
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\n");
+        json.append("  \"label\": ").append(quote(label)).append(",\n");
+        json.append("  \"timestamp\": ").append(quote(Instant.now().toString())).append(",\n");
+        json.append("  \"java\": ").append(quote(System.getProperty("java.version"))).append(",\n");
+        json.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+        json.append("  \"settings\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            Object value = setting.getValue();
+            json.append(separator).append("    ").append(quote(setting.getKey())).append(": ")
+                    .append(value instanceof Number ? value.toString() : quote(String.valueOf(value)));
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"measuredSeconds\": ").append(number(seconds)).append(",\n");
+        json.append("  \"connectSeconds\": ").append(number(connectSeconds)).append(",\n");
+        json.append("  \"types\": {");
+        separator = "\n";
+        for (Map.Entry<String, TypeResult> entry : types.entrySet()) {
+            TypeResult result = entry.getValue();
+            Histogram latencies = result.latencies;
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {\n");
+            json.append("      \"sent\": ").append(result.sent).append(",\n");
+            json.append("      \"answered\": ").append(latencies.getTotalCount()).append(",\n");
+            json.append("      \"timedOut\": ").append(result.timedOut).append(",\n");
+            json.append("      \"perSecond\": ").append(number(latencies.getTotalCount() / seconds)).append(",\n");
+            json.append("      \"latencyMillis\": {");
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                json.append(quote(PERCENTILE_NAMES[i])).append(": ")
+                        .append(number(millis(latencies.getValueAtPercentile(PERCENTILES[i])))).append(", ");
+            }
+            json.append("\"max\": ").append(number(millis(latencies.getMaxValue()))).append(", ");
+            json.append("\"mean\": ").append(number(millis(latencies.getMean()))).append("}\n");
+            json.append("    }");
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        TypeResult checkFiles = types.get(LoadTest.CHECK_FILE);
+        TypeResult downloads = types.get(LoadTest.DOWNLOAD_REQUEST);
+        if (checkFiles != null && downloads != null && downloads.sent > 0) {
+            json.append("  \"checkFilesPerDownloadRequest\": ")
+                    .append(number((double) checkFiles.sent / downloads.sent)).append(",\n");
+        }
+        json.append("  \"throughput\": {\"sentPerSecond\": ").append(number(sentPerSecond))
+                .append(", \"receivedPerSecond\": ").append(number(receivedPerSecond))
+                .append(", \"sendsSkipped\": ").append(sendsSkipped).append("},\n");
+        json.append("  \"jvm\": {\"threads\": ").append(threads)
+                .append(", \"peakThreads\": ").append(peakThreads)
+                .append(", \"heapAverageBytes\": ").append(heapAverage)
+                .append(", \"heapMaxBytes\": ").append(heapMax)
+                .append(", \"gcCount\": ").append(gcCount)
+                .append(", \"gcMillis\": ").append(gcMillis)
+                .append(", \"cpuLoad\": ").append(number(cpuLoad)).append("},\n");
+        json.append("  \"peerFailures\": ").append(peerFailures);
+        if (firstPeerFailure != null) {
+            json.append(",\n  \"firstPeerFailure\": ").append(quote(firstPeerFailure));
+        }
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    private static double millis(double micros) {
+        return micros / 1000.0;
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * The results of one message type.
+     */
+    private static final class TypeResult {
+        final long sent;
+        final long timedOut;
+        final Histogram latencies;
+
+        TypeResult(long sent, long timedOut, Histogram latencies) {
+            this.sent = sent;
+            this.timedOut = timedOut;
+            this.latencies = latencies;
+        }
+    }
+}
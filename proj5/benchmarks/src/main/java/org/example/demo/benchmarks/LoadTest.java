@@ -0,0 +1,742 @@
+package org.example.demo.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.example.demo.ServerConfig;
+import org.example.demo.ServerCore;
+
+/**
+ * The LoadTest class drives the server end to end. It starts a
+ * {@link ServerCore} in this JVM, connects a number of {@link SyntheticPeer}s
+ * to it over loopback and sends a mix of search, downloadRequest and
+ * fileAvailable messages at a fixed rate, whether or not the server keeps up.
+ * Latency is measured from the time a message was due to be sent, so a server
+ * that falls behind shows up in the percentiles instead of slowing the load
+ * down.
+ *
+ * <p>Most peers publish a catalog, so their files are found in the server's
+ * directory; the rest do not, and are asked with checkFile, which they answer
+ * with fileAvailable for the files they hold. Every peer claims
+ * {@code filesPerPeer} files and every file is held by about
+ * {@code replicas} peers. The server shares {@code serverFiles} empty files,
+ * which the searches run against.
+ *
+ * <p>Latencies are recorded per message type:
+ * <ul>
+ * <li>search: until the searchResults arrive.</li>
+ * <li>downloadRequest: until the first initiateDownloadFrom for the file
+ * arrives, from the directory or through a checkFile answer.</li>
+ * <li>fileAvailable: until the recipient gets its initiateDownloadFrom.</li>
+ * <li>checkFile: until a peer receives the checkFile sent on behalf of a
+ * downloadRequest, once for every peer asked.</li>
+ * </ul>
+ *
+ * The report is written as JSON, with each type's full histogram in an
+ * HdrHistogram .hgrm file next to it, so runs of different builds can be
+ * compared. Settings are given as --name=value; those with a dot, like
+ * --server.engine=nio, are passed on to the server's {@link ServerConfig}.
+ */
+public class LoadTest {
+    static final String SEARCH = "search";
+    static final String DOWNLOAD_REQUEST = "downloadRequest";
+    static final String FILE_AVAILABLE = "fileAvailable";
+    static final String CHECK_FILE = "checkFile";
+
+    private static final String HOST = "localhost";
+    private static final String OFFER_PREFIX = "offer_";
+    private static final int FIRST_UPLOAD_PORT = 20000;
+    private static final long REGISTER_TIMEOUT_MILLIS = 60_000;
+
+    private final Settings settings;
+    private final Map<String, MessageStats> stats = new LinkedHashMap<>();
+    private final List<SyntheticPeer> peers = new ArrayList<>();
+    private final int fileCount;
+    // Download requests by requester and file name; answered ones stay until they time out, for late checkFiles
+    private final Map<String, PendingDownload> pendingDownloads = new ConcurrentHashMap<>();
+    // Due times of fileAvailable messages by content
+    private final Map<String, Long> pendingOffers = new ConcurrentHashMap<>();
+    private final AtomicLong offers = new AtomicLong();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder sendsSkipped = new LongAdder();
+    private final LongAdder peerFailures = new LongAdder();
+    private volatile String firstPeerFailure;
+    private final AtomicInteger sendsInFlight = new AtomicInteger();
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "load-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final PrintStream stdout = System.out;
+    private ServerCore core;
+    private Path sharedFolder;
+
+    // Messages due from this time on are measured
+    private volatile long measureStart = Long.MAX_VALUE;
+
+    // Sampling state, guarded by this
+    private long startTime;
+    private boolean measuring;
+    private long heapSamples;
+    private long heapTotal;
+    private long heapMax;
+    private long sentAtStart;
+    private long receivedAtStart;
+    private long sentAtEnd;
+    private long receivedAtEnd;
+    private long gcCountAtStart;
+    private long gcMillisAtStart;
+    private long cpuNanosAtStart;
+
+    /**
+     * Constructs a load test.
+     *
+     * @param settings The settings to run with.
+     */
+    public LoadTest(Settings settings) {
+        this.settings = settings;
+        for (String type : new String[] { SEARCH, DOWNLOAD_REQUEST, FILE_AVAILABLE, CHECK_FILE }) {
+            stats.put(type, new MessageStats());
+        }
+        this.fileCount = Math.max(1, settings.peers * settings.filesPerPeer / settings.replicas);
+    }
+
+    /**
+     * Runs a load test and writes its report.
+     *
+     * @param args Settings of the form --name=value, see {@link Settings}.
+     * @throws Exception If the server cannot start, a peer cannot connect or
+     *                   the report cannot be written.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest(Settings.fromArgs(args));
+        try {
+            test.run();
+        } finally {
+            test.close();
+        }
+    }
+
+    /**
+     * Starts the server, connects the peers, sends the load and writes the
+     * report.
+     *
+     * @throws Exception If the server cannot start, a peer cannot connect or
+     *                   the report cannot be written.
+     */
+    public void run() throws Exception {
+        Properties serverProperties = new Properties();
+        serverProperties.putAll(settings.server);
+        serverProperties.setProperty("server.port", "0");
+        if (!serverProperties.containsKey("server.sharePath")) {
+            sharedFolder = Files.createTempDirectory("load-test");
+            for (String name : Workloads.fileNames(settings.serverFiles, 3)) {
+                Files.createFile(sharedFolder.resolve(name));
+            }
+            serverProperties.setProperty("server.sharePath", sharedFolder.toString());
+        }
+        ServerConfig config = new ServerConfig(serverProperties);
+
+        // The server logs every message it handles; keep the cost but not the output
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        core = new ServerCore(config);
+        int port = core.start();
+        log("Server (" + config.getEngine() + " engine) listening on port " + port);
+
+        long connectStart = System.nanoTime();
+        connectPeers(port);
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        log(String.format("Connected %d peers in %.1f s", settings.peers, connectSeconds));
+        Thread.sleep(1000); // Let the server take in the catalogs
+
+        synchronized (this) {
+            startTime = System.nanoTime();
+            if (settings.warmup == 0) {
+                startMeasuring(startTime);
+            }
+        }
+        long generateStart = startTime;
+        long generateEnd = generateStart + TimeUnit.SECONDS.toNanos(settings.warmup + settings.duration);
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        generate(generateStart, generateEnd);
+        long measureEnd = System.nanoTime();
+        sentAtEnd = messagesSent.sum();
+        receivedAtEnd = messagesReceived.sum();
+        drain();
+        sampler.shutdown();
+        sampler.awaitTermination(5, TimeUnit.SECONDS);
+
+        LoadReport report = finish(config, connectSeconds, measureEnd);
+        Path reportFile = Paths.get(settings.report).toAbsolutePath();
+        report.write(reportFile);
+        report.print(stdout);
+        log("Report written to " + reportFile);
+    }
+
+    /**
+     * Disconnects the peers, stops the server and removes the shared folder
+     * the test made.
+     *
+     * @throws IOException If the shared folder cannot be removed.
+     */
+    public void close() throws IOException {
+        sampler.shutdownNow();
+        senders.shutdownNow();
+        for (SyntheticPeer peer : peers) {
+            peer.close();
+        }
+        if (core != null) {
+            core.close();
+        }
+        System.setOut(stdout);
+        if (sharedFolder != null) {
+            try (Stream<Path> files = Files.walk(sharedFolder)) {
+                for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private void connectPeers(int port) throws Exception {
+        int published = (int) Math.round(settings.peers * settings.published);
+        for (int i = 0; i < settings.peers; i++) {
+            Set<String> files = new HashSet<>();
+            for (int j = 0; j < settings.filesPerPeer; j++) {
+                files.add(fileName((i * settings.filesPerPeer + j) % fileCount));
+            }
+            peers.add(new SyntheticPeer(this, String.format("peer-%05d", i), FIRST_UPLOAD_PORT + i % 40000, files));
+        }
+        Semaphore permits = new Semaphore(settings.connectConcurrency);
+        List<Future<?>> connections = new ArrayList<>();
+        try (ExecutorService connectors = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < peers.size(); i++) {
+                SyntheticPeer peer = peers.get(i);
+                boolean publish = i < published;
+                connections.add(connectors.submit(() -> {
+                    permits.acquire();
+                    try {
+                        peer.connect(HOST, port);
+                        if (publish) {
+                            peer.publishCatalog();
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+        }
+        int failed = 0;
+        Exception firstFailure = null;
+        for (Future<?> connection : connections) {
+            try {
+                connection.get();
+            } catch (Exception e) {
+                failed++;
+                firstFailure = firstFailure == null ? e : firstFailure;
+            }
+        }
+        if (failed > 0) {
+            throw new IOException(failed + " of " + peers.size() + " peers could not connect (check the open "
+                    + "file limit, every peer needs two sockets)", firstFailure);
+        }
+        long deadline = System.currentTimeMillis() + REGISTER_TIMEOUT_MILLIS;
+        while (ServerCore.activeUsernames.size() < settings.peers) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Only " + ServerCore.activeUsernames.size() + " of " + settings.peers
+                        + " peers were registered");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Sends messages at the configured rate until the end time. Every message
+     * is sent on its own virtual thread, so a slow send never delays the
+     * next one; if too many are still in flight the message is skipped and
+     * counted instead.
+     */
+    private void generate(long start, long end) {
+        double interval = 1e9 / settings.rate;
+        int maxInFlight = (int) Math.max(1000, settings.rate * settings.timeout);
+        for (long count = 0;; count++) {
+            long dueTime = start + (long) (count * interval);
+            if (dueTime >= end) {
+                return;
+            }
+            long wait;
+            while ((wait = dueTime - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String type = settings.pickType(ThreadLocalRandom.current().nextDouble());
+            if (sendsInFlight.incrementAndGet() > maxInFlight) {
+                sendsInFlight.decrementAndGet();
+                sendsSkipped.increment();
+                continue;
+            }
+            senders.execute(() -> {
+                try {
+                    send(type, dueTime);
+                } finally {
+                    sendsInFlight.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private void send(String type, long dueTime) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        SyntheticPeer peer = peers.get(random.nextInt(peers.size()));
+        switch (type) {
+            case SEARCH:
+                stats.get(SEARCH).sent(dueTime);
+                peer.search(Workloads.query(random, settings.serverFiles), dueTime);
+                break;
+            case DOWNLOAD_REQUEST:
+                for (int attempt = 0; attempt < 8; attempt++) {
+                    String fileName = fileName(random.nextInt(fileCount));
+                    if (!peer.holds(fileName) && pendingDownloads.putIfAbsent(peer.getUsername() + "/" + fileName,
+                            new PendingDownload(dueTime)) == null) {
+                        stats.get(DOWNLOAD_REQUEST).sent(dueTime);
+                        peer.downloadRequest(fileName);
+                        return;
+                    }
+                }
+                sendsSkipped.increment();
+                break;
+            case FILE_AVAILABLE:
+                SyntheticPeer recipient = peers.get(random.nextInt(peers.size()));
+                if (recipient == peer) {
+                    sendsSkipped.increment();
+                    return;
+                }
+                String content = OFFER_PREFIX + offers.incrementAndGet() + ".bin:" + peer.getUploadPort();
+                pendingOffers.put(content, dueTime);
+                stats.get(FILE_AVAILABLE).sent(dueTime);
+                peer.offer(recipient.getUsername(), content);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message type: " + type);
+        }
+    }
+
+    /**
+     * Waits until every message sent has been answered, or the timeout has
+     * passed, and counts what is still unanswered as timed out.
+     */
+    private void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.timeout);
+        while (System.nanoTime() < deadline && (sendsInFlight.get() > 0 || pendingSearches() > 0
+                || !pendingOffers.isEmpty() || unansweredDownloads() > 0)) {
+            Thread.sleep(10);
+        }
+        stats.get(SEARCH).timedOut.add(pendingSearches()); // All sent while measuring, unless the warmup timed out
+        for (PendingDownload download : pendingDownloads.values()) {
+            if (!download.answered.get()) {
+                stats.get(DOWNLOAD_REQUEST).timedOut(download.dueTime);
+            }
+        }
+        for (long dueTime : pendingOffers.values()) {
+            stats.get(FILE_AVAILABLE).timedOut(dueTime);
+        }
+    }
+
+    private long pendingSearches() {
+        long pending = 0;
+        for (SyntheticPeer peer : peers) {
+            pending += peer.getPendingSearches();
+        }
+        return pending;
+    }
+
+    private long unansweredDownloads() {
+        return pendingDownloads.values().stream().filter(download -> !download.answered.get()).count();
+    }
+
+    /**
+     * Takes the last second's latencies and resource usage, prints them, and
+     * adds them to the report once the warmup is over. Also drops requests
+     * older than the timeout, counting those without an answer.
+     */
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        boolean warmedUp = now - startTime >= TimeUnit.SECONDS.toNanos(settings.warmup);
+        if (warmedUp && !measuring) {
+            startMeasuring(now);
+        }
+        long heapUsed = memory.getHeapMemoryUsage().getUsed();
+        StringBuilder line = new StringBuilder(String.format("%4ds %s", TimeUnit.NANOSECONDS.toSeconds(now - startTime),
+                measuring ? "    " : "warm"));
+        for (Map.Entry<String, MessageStats> entry : stats.entrySet()) {
+            Histogram interval = entry.getValue().takeInterval();
+            line.append(String.format(" | %s %d/s p99 %.1f ms", entry.getKey(), interval.getTotalCount(),
+                    interval.getValueAtPercentile(99) / 1000.0));
+        }
+        line.append(String.format(" | heap %d MB, %d threads", heapUsed >> 20, threads.getThreadCount()));
+        log(line.toString());
+        if (measuring) {
+            heapSamples++;
+            heapTotal += heapUsed;
+            heapMax = Math.max(heapMax, heapUsed);
+        }
+
+        long timeout = TimeUnit.SECONDS.toNanos(settings.timeout);
+        for (Iterator<PendingDownload> downloads = pendingDownloads.values().iterator(); downloads.hasNext();) {
+            PendingDownload download = downloads.next();
+            if (now - download.dueTime > timeout) {
+                downloads.remove();
+                if (!download.answered.get()) {
+                    stats.get(DOWNLOAD_REQUEST).timedOut(download.dueTime);
+                }
+            }
+        }
+        for (Iterator<Long> offerTimes = pendingOffers.values().iterator(); offerTimes.hasNext();) {
+            long dueTime = offerTimes.next();
+            if (now - dueTime > timeout) {
+                offerTimes.remove();
+                stats.get(FILE_AVAILABLE).timedOut(dueTime);
+            }
+        }
+    }
+
+    private void startMeasuring(long now) {
+        measuring = true;
+        measureStart = now;
+        sentAtStart = messagesSent.sum();
+        receivedAtStart = messagesReceived.sum();
+        gcCountAtStart = gcCount();
+        gcMillisAtStart = gcMillis();
+        cpuNanosAtStart = processCpuNanos();
+        threads.resetPeakThreadCount();
+    }
+
+    private synchronized LoadReport finish(ServerConfig config, double connectSeconds, long measureEnd) {
+        double seconds = (measureEnd - measureStart) / 1e9;
+        LoadReport report = new LoadReport(settings.label, seconds);
+        report.setting("peers", settings.peers);
+        report.setting("rate", settings.rate);
+        report.setting("durationSeconds", settings.duration);
+        report.setting("warmupSeconds", settings.warmup);
+        report.setting("mix", settings.mix);
+        report.setting("published", settings.published);
+        report.setting("filesPerPeer", settings.filesPerPeer);
+        report.setting("replicas", settings.replicas);
+        report.setting("serverFiles", settings.serverFiles);
+        report.setting("server.engine", config.getEngine());
+        report.setting("server.ioThreads", config.getIoThreads());
+        report.setting("server.workerThreads", config.getWorkerThreads());
+        report.setting("server.outboundQueue", config.getOutboundQueueCapacity());
+        for (String name : settings.server.stringPropertyNames()) {
+            report.setting(name, settings.server.getProperty(name));
+        }
+        report.setConnectSeconds(connectSeconds);
+
+        for (Map.Entry<String, MessageStats> entry : stats.entrySet()) {
+            MessageStats messageStats = entry.getValue();
+            report.addType(entry.getKey(), messageStats.sent.sum(), messageStats.timedOut.sum(),
+                    messageStats.measured.getIntervalHistogram());
+        }
+        report.setThroughput((sentAtEnd - sentAtStart) / seconds, (receivedAtEnd - receivedAtStart) / seconds,
+                sendsSkipped.sum());
+        report.setJvm(threads.getThreadCount(), threads.getPeakThreadCount(),
+                heapSamples == 0 ? 0 : heapTotal / heapSamples, heapMax, gcCount() - gcCountAtStart,
+                gcMillis() - gcMillisAtStart,
+                (processCpuNanos() - cpuNanosAtStart) / ((measureEnd - measureStart) * (double) availableCpus()));
+        report.setFailures(peerFailures.sum(), firstPeerFailure);
+        return report;
+    }
+
+    void sent() {
+        messagesSent.increment();
+    }
+
+    void received() {
+        messagesReceived.increment();
+    }
+
+    void searchAnswered(long dueTime, long now) {
+        stats.get(SEARCH).record(dueTime, now);
+    }
+
+    /**
+     * Takes an initiateDownloadFrom received by a peer: the answer to one of
+     * its download requests, or to a fileAvailable sent to it.
+     */
+    void downloadFrom(SyntheticPeer peer, String fileName, String content, long now) {
+        if (fileName.startsWith(OFFER_PREFIX)) {
+            Long dueTime = pendingOffers.remove(content);
+            if (dueTime != null) {
+                stats.get(FILE_AVAILABLE).record(dueTime, now);
+            }
+            return;
+        }
+        PendingDownload download = pendingDownloads.get(peer.getUsername() + "/" + fileName);
+        if (download != null && download.answered.compareAndSet(false, true)) {
+            stats.get(DOWNLOAD_REQUEST).record(download.dueTime, now);
+        }
+    }
+
+    void checkFileReceived(String requester, String fileName, long now) {
+        PendingDownload download = pendingDownloads.get(requester + "/" + fileName);
+        if (download != null) {
+            MessageStats checkFiles = stats.get(CHECK_FILE);
+            checkFiles.sent(download.dueTime);
+            checkFiles.record(download.dueTime, now);
+        }
+    }
+
+    void peerFailed(SyntheticPeer peer, IOException e) {
+        peerFailures.increment();
+        if (firstPeerFailure == null) {
+            firstPeerFailure = peer.getUsername() + ": " + e;
+        }
+    }
+
+    private static String fileName(int id) {
+        return "shared_" + id + ".bin";
+    }
+
+    private void log(String line) {
+        stdout.println(line);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long processCpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static int availableCpus() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * A download request waiting for its first initiateDownloadFrom.
+     */
+    private static final class PendingDownload {
+        final long dueTime;
+        final AtomicBoolean answered = new AtomicBoolean();
+
+        PendingDownload(long dueTime) {
+            this.dueTime = dueTime;
+        }
+    }
+
+    /**
+     * The counts and latencies of one message type. Latencies are recorded
+     * in microseconds by any thread. Every latency goes into the interval
+     * the sampler prints; only those of messages due while measuring count
+     * for the report, whenever their answer arrives.
+     */
+    private final class MessageStats {
+        final LongAdder sent = new LongAdder();
+        final LongAdder timedOut = new LongAdder();
+        final Recorder measured = new Recorder(3);
+        private final Recorder recorder = new Recorder(3);
+        private Histogram interval;
+
+        void sent(long dueTime) {
+            if (dueTime >= measureStart) {
+                sent.increment();
+            }
+        }
+
+        void timedOut(long dueTime) {
+            if (dueTime >= measureStart) {
+                timedOut.increment();
+            }
+        }
+
+        void record(long dueTime, long now) {
+            long micros = Math.max(0, (now - dueTime) / 1000);
+            recorder.recordValue(micros);
+            if (dueTime >= measureStart) {
+                measured.recordValue(micros);
+            }
+        }
+
+        Histogram takeInterval() {
+            interval = recorder.getIntervalHistogram(interval);
+            return interval;
+        }
+    }
+
+    /**
+     * The settings of a load test. Every setting has a default, so a run
+     * without arguments is a quick 1000 peer test.
+     */
+    public static final class Settings {
+        int peers = 1000;
+        double rate = 2000;
+        int duration = 30;
+        int warmup = 10;
+        String mix = "search=60,downloadRequest=30,fileAvailable=10";
+        double published = 0.9;
+        int filesPerPeer = 10;
+        int replicas = 3;
+        int serverFiles = 10000;
+        int connectConcurrency = 64;
+        int timeout = 10;
+        String label = "";
+        String report = "target/load-report.json";
+        final Properties server = new Properties();
+        private String[] mixTypes;
+        private double[] mixThresholds;
+
+        /**
+         * Reads the settings from command-line arguments.
+         *
+         * <ul>
+         * <li>peers: number of synthetic peers (1000).</li>
+         * <li>rate: messages sent per second by all peers together (2000).</li>
+         * <li>duration: seconds measured after the warmup (30).</li>
+         * <li>warmup: seconds of load before measuring (10).</li>
+         * <li>mix: relative weights of the message types sent
+         * (search=60,downloadRequest=30,fileAvailable=10).</li>
+         * <li>published: fraction of the peers that publish a catalog (0.9).</li>
+         * <li>filesPerPeer: files each peer holds (10).</li>
+         * <li>replicas: peers that hold each file (3).</li>
+         * <li>serverFiles: files in the server's shared folder (10000).</li>
+         * <li>connectConcurrency: peers logging in at once (64).</li>
+         * <li>timeout: seconds before a message counts as unanswered (10).</li>
+         * <li>label: name of the build or change being measured.</li>
+         * <li>report: path of the JSON report (target/load-report.json).</li>
+         * </ul>
+         *
+         * @param args Settings of the form --name=value.
+         * @return The settings.
+         * @throws IllegalArgumentException If an argument is not a known
+         *                                  setting or has a bad value.
+         */
+        public static Settings fromArgs(String[] args) {
+            Settings settings = new Settings();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 3) {
+                    throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                if (name.contains(".")) {
+                    settings.server.setProperty(name, value);
+                    continue;
+                }
+                switch (name) {
+                    case "peers" -> settings.peers = Integer.parseInt(value);
+                    case "rate" -> settings.rate = Double.parseDouble(value);
+                    case "duration" -> settings.duration = Integer.parseInt(value);
+                    case "warmup" -> settings.warmup = Integer.parseInt(value);
+                    case "mix" -> settings.mix = value;
+                    case "published" -> settings.published = Double.parseDouble(value);
+                    case "filesPerPeer" -> settings.filesPerPeer = Integer.parseInt(value);
+                    case "replicas" -> settings.replicas = Integer.parseInt(value);
+                    case "serverFiles" -> settings.serverFiles = Integer.parseInt(value);
+                    case "connectConcurrency" -> settings.connectConcurrency = Integer.parseInt(value);
+                    case "timeout" -> settings.timeout = Integer.parseInt(value);
+                    case "label" -> settings.label = value;
+                    case "report" -> settings.report = value;
+                    default -> throw new IllegalArgumentException("Unknown setting: " + name);
+                }
+            }
+            if (settings.peers < 2 || settings.rate <= 0 || settings.duration < 1 || settings.warmup < 0
+                    || settings.published < 0 || settings.published > 1 || settings.filesPerPeer < 1
+                    || settings.replicas < 1 || settings.connectConcurrency < 1 || settings.timeout < 1) {
+                throw new IllegalArgumentException("Settings out of range");
+            }
+            settings.parseMix();
+            return settings;
+        }
+
+        private void parseMix() {
+            Map<String, Double> weights = new LinkedHashMap<>();
+            double total = 0;
+            for (String part : mix.split(",")) {
+                String[] typeAndWeight = part.trim().split("=");
+                String type = typeAndWeight[0].trim();
+                if (typeAndWeight.length != 2
+                        || !(type.equals(SEARCH) || type.equals(DOWNLOAD_REQUEST) || type.equals(FILE_AVAILABLE))) {
+                    throw new IllegalArgumentException("Bad mix entry: " + part);
+                }
+                double weight = Double.parseDouble(typeAndWeight[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Bad mix entry: " + part);
+                }
+                weights.put(type, weight);
+                total += weight;
+            }
+            if (total <= 0) {
+                throw new IllegalArgumentException("The mix has no weight: " + mix);
+            }
+            mixTypes = weights.keySet().toArray(new String[0]);
+            mixThresholds = new double[mixTypes.length];
+            double cumulative = 0;
+            for (int i = 0; i < mixTypes.length; i++) {
+                cumulative += weights.get(mixTypes[i]) / total;
+                mixThresholds[i] = cumulative;
+            }
+        }
+
+        String pickType(double random) {
+            for (int i = 0; i < mixTypes.length - 1; i++) {
+                if (random < mixThresholds[i]) {
+                    return mixTypes[i];
+                }
+            }
+            return mixTypes[mixTypes.length - 1];
+        }
+    }
+}
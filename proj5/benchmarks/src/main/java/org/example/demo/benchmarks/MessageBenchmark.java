@@ -0,0 +1,149 @@
+package org.example.demo.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.example.demo.Message;
+import org.example.demo.MessageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The MessageBenchmark class measures a message's round trip through the
+ * wire formats: written by one side and read back by the other, as on a
+ * connection that stays open. The Object streams are reset every
+ * {@link MessageCodec#OBJECT_STREAM_RESET_INTERVAL} messages, as the client
+ * and server do; the binary frames are those of {@link MessageCodec}.
+ * Messages come from a pool larger than the reset interval, so an Object
+ * stream never gets away with a back-reference to content it already sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    private static final int POOL_SIZE = 2 * MessageCodec.OBJECT_STREAM_RESET_INTERVAL;
+
+    /** Length of the (already encrypted) content. */
+    @Param({"24", "1400", "32800"})
+    public int contentLength;
+
+    private Message[] messages;
+    private int next;
+    private ByteQueue pipe;
+    private ObjectOutputStream objectOut;
+    private ObjectInputStream objectIn;
+    private int messagesSinceReset;
+    private MessageCodec encoder;
+    private MessageCodec decoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        messages = new Message[POOL_SIZE];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            messages[i] = new Message("search", "user42", null, Workloads.text(contentLength, i));
+        }
+        pipe = new ByteQueue();
+        objectOut = new ObjectOutputStream(pipe.output());
+        objectOut.flush();
+        objectIn = new ObjectInputStream(pipe.input());
+        encoder = new MessageCodec();
+        decoder = new MessageCodec();
+    }
+
+    @Benchmark
+    public Message objectStreamRoundTrip() throws IOException, ClassNotFoundException {
+        objectOut.writeObject(nextMessage());
+        if (++messagesSinceReset >= MessageCodec.OBJECT_STREAM_RESET_INTERVAL) {
+            objectOut.reset();
+            messagesSinceReset = 0;
+        }
+        objectOut.flush();
+        return (Message) objectIn.readObject();
+    }
+
+    @Benchmark
+    public Message binaryFrameRoundTrip() throws IOException {
+        ByteBuffer frame = encoder.encode(nextMessage());
+        return decoder.decode(ByteBuffer.wrap(frame.array(), 4, frame.limit() - 4));
+    }
+
+    private Message nextMessage() {
+        Message message = messages[next];
+        next = (next + 1) % POOL_SIZE;
+        return message;
+    }
+
+    /**
+     * A byte buffer written at one end and read at the other by the same
+     * thread, standing in for a socket.
+     */
+    private static class ByteQueue {
+        private byte[] bytes = new byte[64 * 1024];
+        private int readPosition;
+        private int writePosition;
+
+        OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    if (readPosition == writePosition) {
+                        readPosition = 0;
+                        writePosition = 0;
+                    }
+                    if (writePosition + len > bytes.length) {
+                        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, writePosition + len));
+                    }
+                    System.arraycopy(b, off, bytes, writePosition, len);
+                    writePosition += len;
+                }
+            };
+        }
+
+        InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return readPosition < writePosition ? bytes[readPosition++] & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (readPosition == writePosition) {
+                        return -1;
+                    }
+                    int count = Math.min(len, writePosition - readPosition);
+                    System.arraycopy(bytes, readPosition, b, off, count);
+                    readPosition += count;
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return writePosition - readPosition;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.example.demo.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.example.demo.SearchManager;
+import org.example.demo.TrigramIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The SearchBenchmark class measures file name searches over synthetic
+ * catalogs: the {@link TrigramIndex} against the linear scan it replaced, and
+ * {@link SearchManager#searchFiles} over a real folder of empty files. The
+ * queries hit many names, one name and no name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"report", "_777.", "nothing"})
+    public String query;
+
+    /**
+     * A catalog held in memory.
+     */
+    @State(Scope.Benchmark)
+    public static class Catalog {
+        @Param({"1000", "100000", "1000000"})
+        public int catalogSize;
+
+        String[] names;
+        TrigramIndex index;
+
+        @Setup
+        public void setUp() {
+            names = Workloads.fileNames(catalogSize, 3);
+            index = new TrigramIndex(names);
+        }
+    }
+
+    /**
+     * A catalog in a folder, as the server shares it.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedFolder {
+        @Param({"1000", "100000"})
+        public int folderSize;
+
+        Path folder;
+        SearchManager searchManager;
+        private PrintStream stdout;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            folder = Files.createTempDirectory("search-benchmark");
+            for (String name : Workloads.fileNames(folderSize, 3)) {
+                Files.createFile(folder.resolve(name));
+            }
+            // searchFiles logs every search; keep its cost but not the output
+            stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            searchManager = new SearchManager(folder.toString());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            System.setOut(stdout);
+            try (Stream<Path> files = Files.walk(folder)) {
+                for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public List<String> trigramIndex(Catalog catalog) {
+        return catalog.index.search(query);
+    }
+
+    @Benchmark
+    public List<String> linearScan(Catalog catalog) {
+        List<String> results = new ArrayList<>();
+        for (String name : catalog.names) {
+            if (name.contains(query)) {
+                results.add(name);
+            }
+        }
+        return results;
+    }
+
+    @Benchmark
+    public List<String> searchManager(SharedFolder shared) {
+        return shared.searchManager.searchFiles(query);
+    }
+}
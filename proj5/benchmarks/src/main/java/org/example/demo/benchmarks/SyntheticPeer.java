@@ -0,0 +1,238 @@
+package org.example.demo.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import org.example.demo.Encryption;
+import org.example.demo.Message;
+import org.example.demo.MessageCodec;
+
+/**
+ * The SyntheticPeer class is one connection of the {@link LoadTest}. It
+ * speaks the client protocol the way {@link org.example.demo.PeerClient} does
+ * (login offering binary frames, encrypted content) but holds no files and
+ * runs no transfers: it only sends what the load test asks for, answers
+ * checkFile requests for the names in its catalog, and reports every answer
+ * it gets back to the load test.
+ */
+final class SyntheticPeer {
+    private static final String ENCRYPTION_KEY = "mySecretKey";
+
+    private final LoadTest test;
+    private final String username;
+    private final int uploadPort;
+    private final Set<String> files;
+    private final MessageCodec codec = new MessageCodec();
+    private final ReentrantLock sendLock = new ReentrantLock(); // Does not pin the virtual threads that send
+    // Send times of searches waiting for results; the server answers in order
+    private final Queue<Long> pendingSearches = new ConcurrentLinkedQueue<>();
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a peer that is not connected yet.
+     *
+     * @param test       The load test to report answers to.
+     * @param username   The username to log in with.
+     * @param uploadPort The port the peer claims to serve files on.
+     * @param files      The names of the files the peer claims to hold.
+     */
+    SyntheticPeer(LoadTest test, String username, int uploadPort, Set<String> files) {
+        this.test = test;
+        this.username = username;
+        this.uploadPort = uploadPort;
+        this.files = files;
+    }
+
+    /**
+     * Logs in, switches the connection to binary frames and starts reading
+     * on a virtual thread.
+     *
+     * @param host The server's host.
+     * @param port The server's port.
+     * @throws IOException If the connection or the login fails.
+     */
+    void connect(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        try {
+            ObjectOutputStream objectOut = new ObjectOutputStream(socket.getOutputStream());
+            objectOut.flush();
+            ObjectInputStream objectIn = new ObjectInputStream(socket.getInputStream());
+            objectOut.writeObject(encrypt(new Message("login", username, null, MessageCodec.BINARY)));
+            objectOut.flush();
+            Message reply = decrypt((Message) objectIn.readObject());
+            if (!"login".equals(reply.getType()) || !MessageCodec.BINARY.equals(reply.getContent())) {
+                throw new IOException("Login of " + username + " refused: " + reply.getContent());
+            }
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            objectOut.writeObject(encrypt(new Message("codec", username, null, MessageCodec.BINARY)));
+            objectOut.flush();
+            out = new BufferedOutputStream(socket.getOutputStream());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        Thread.ofVirtual().name("load-" + username).start(this::readLoop);
+    }
+
+    /**
+     * Publishes the peer's catalog, so the server finds its files in the
+     * directory instead of asking it with checkFile.
+     */
+    void publishCatalog() {
+        send(new Message("catalog", username, null, uploadPort + "\n" + String.join("\n", files)));
+    }
+
+    /**
+     * Sends a search.
+     *
+     * @param query     The query.
+     * @param startTime When the search was due, from System.nanoTime().
+     */
+    void search(String query, long startTime) {
+        sendLock.lock();
+        try { // Queued and sent in one step, so the results come back in queue order
+            pendingSearches.add(startTime);
+            send(new Message("search", username, null, query));
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Asks the server for the holders of a file.
+     *
+     * @param fileName The name of the file.
+     */
+    void downloadRequest(String fileName) {
+        send(new Message("downloadRequest", username, username, fileName));
+    }
+
+    /**
+     * Tells another peer, through the server, that a file can be downloaded
+     * from this one.
+     *
+     * @param recipient The username of the other peer.
+     * @param content   The file name and upload port, as "filename:port".
+     */
+    void offer(String recipient, String content) {
+        send(new Message("fileAvailable", username, recipient, content));
+    }
+
+    boolean holds(String fileName) {
+        return files.contains(fileName);
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    int getUploadPort() {
+        return uploadPort;
+    }
+
+    /**
+     * Counts the searches still waiting for results.
+     *
+     * @return The number of searches.
+     */
+    int getPendingSearches() {
+        return pendingSearches.size();
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void close() {
+        closed = true;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private void send(Message message) {
+        if (closed) {
+            return;
+        }
+        sendLock.lock();
+        try {
+            codec.write(encrypt(message), out);
+            out.flush();
+            test.sent();
+        } catch (IOException e) {
+            test.peerFailed(this, e);
+            close();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void readLoop() {
+        while (!closed) {
+            try {
+                Message message = codec.read(in);
+                if (message == null) {
+                    break;
+                }
+                handleMessage(decrypt(message));
+            } catch (IOException e) {
+                if (!closed) {
+                    test.peerFailed(this, e);
+                }
+                break;
+            }
+        }
+        close();
+    }
+
+    private void handleMessage(Message message) {
+        long now = System.nanoTime();
+        test.received();
+        switch (message.getType()) {
+            case "searchResults":
+                Long startTime = pendingSearches.poll();
+                if (startTime != null) {
+                    test.searchAnswered(startTime, now);
+                }
+                break;
+            case "initiateDownloadFrom":
+                String content = message.getContent();
+                test.downloadFrom(this, content.substring(0, content.lastIndexOf(':')), content, now);
+                break;
+            case "checkFile":
+                String fileName = message.getContent();
+                test.checkFileReceived(message.getSender(), fileName, now);
+                if (files.contains(fileName)) {
+                    send(new Message("fileAvailable", username, message.getRecipient(), fileName + ":" + uploadPort));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static Message encrypt(Message message) {
+        return new Message(message.getType(), message.getSender(), message.getRecipient(),
+                Encryption.encrypt(message.getContent(), ENCRYPTION_KEY));
+    }
+
+    private static Message decrypt(Message message) {
+        return new Message(message.getType(), message.getSender(), message.getRecipient(),
+                Encryption.decrypt(message.getContent(), ENCRYPTION_KEY));
+    }
+}
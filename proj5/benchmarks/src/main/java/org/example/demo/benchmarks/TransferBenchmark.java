@@ -0,0 +1,98 @@
+package org.example.demo.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.example.demo.FileTransferManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The TransferBenchmark class measures how fast a {@link FileTransferManager}
+ * serves a whole file over loopback: with FileChannel.transferTo, with the
+ * buffered copy loop, and sealed in encrypted chunks. The receiving side only
+ * counts the bytes, so the numbers are the upload path's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    private static final String FILE_NAME = "transfer.bin";
+
+    @Param({"zeroCopy", "copyLoop", "encrypted"})
+    public String mode;
+
+    @Param({"67108864"})
+    public int fileSize;
+
+    private Path folder;
+    private FileTransferManager manager;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("transfer-benchmark");
+        byte[] data = new byte[fileSize];
+        new Random(4).nextBytes(data);
+        Files.write(folder.resolve(FILE_NAME), data);
+        // Read once by the manager's constructor
+        System.setProperty("transfer.zeroCopy", String.valueOf(mode.equals("zeroCopy")));
+        manager = new FileTransferManager(folder.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        Files.deleteIfExists(folder.resolve(FILE_NAME));
+        Files.deleteIfExists(folder);
+    }
+
+    @Benchmark
+    public long serveFile() throws IOException {
+        try (Socket socket = new Socket("localhost", manager.getPort())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(FILE_NAME);
+            if (mode.equals("encrypted")) {
+                out.writeUTF("SECURE");
+                out.writeLong(0); // From the first chunk
+            } else {
+                out.writeUTF("NORMAL");
+            }
+            out.flush();
+            return drain(socket.getInputStream());
+        }
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            total += read;
+        }
+        if (total < fileSize) {
+            throw new IOException("Received " + total + " of " + fileSize + " bytes");
+        }
+        return total;
+    }
+}
@@ -0,0 +1,63 @@
+package org.example.demo.benchmarks;
+
+import java.util.Random;
+
+/**
+ * The Workloads class makes the synthetic data the benchmarks run on. The
+ * data only depends on the seed, so every run measures the same workload.
+ */
+final class Workloads {
+    private static final String[] WORDS = { "holiday", "report", "final", "draft", "music", "video", "photo",
+            "backup", "notes", "lecture", "project", "invoice", "scan", "recording", "copy", "joel", "josef",
+            "summary", "data", "export" };
+    private static final String[] EXTENSIONS = { ".txt", ".pdf", ".mp3", ".mp4", ".jpg", ".zip", ".csv" };
+
+    private Workloads() {
+    }
+
+    /**
+     * Makes text of lowercase words.
+     *
+     * @param length The number of characters.
+     * @param seed   The random seed.
+     * @return The text.
+     */
+    static String text(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return text.substring(0, length);
+    }
+
+    /**
+     * Makes distinct file names that look like a shared folder's.
+     *
+     * @param count The number of names.
+     * @param seed  The random seed.
+     * @return The names.
+     */
+    static String[] fileNames(int count, long seed) {
+        Random random = new Random(seed);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = WORDS[random.nextInt(WORDS.length)] + "_" + WORDS[random.nextInt(WORDS.length)] + "_" + i
+                    + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+        }
+        return names;
+    }
+
+    /**
+     * Picks a search query for a catalog made by {@link #fileNames}: half the
+     * time a word that many names share, otherwise the number of one name.
+     *
+     * @param random      The source of randomness.
+     * @param catalogSize The number of names in the catalog.
+     * @return The query.
+     */
+    static String query(Random random, int catalogSize) {
+        return random.nextBoolean() ? WORDS[random.nextInt(WORDS.length)]
+                : "_" + random.nextInt(Math.max(1, catalogSize)) + ".";
+    }
+}
@@ -1,6 +1,7 @@
 module org.example.group_36_project_5 {
     requires javafx.controls;
     requires javafx.fxml;
+    requires java.management;
 
 
     opens org.example.demo to javafx.fxml;
@@ -0,0 +1,241 @@
+package org.example.demo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The ActivityLog class collects the server's activity messages from any
+ * number of threads without ever making them wait. Entries go into a
+ * fixed-size ring buffer with one atomic increment; a single drain thread
+ * takes them out a few times a second and hands each batch to the listeners,
+ * such as the server window, and optionally appends it to a log file that is
+ * rolled over when it grows too large.
+ * If producers lap the drain thread, the oldest entries are overwritten and
+ * a line saying how many were dropped takes their place.
+ */
+public class ActivityLog {
+    private static final long DRAIN_INTERVAL_MILLIS = 200;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final List<Consumer<List<String>>> listeners = new CopyOnWriteArrayList<>();
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private long readSequence; // Only touched by the drain thread
+    private long dropped; // Only touched by the drain thread
+    private BufferedWriter writer; // Only touched by the drain thread
+    private long fileBytes; // Only touched by the drain thread
+    private ScheduledExecutorService drainer; // Guarded by this
+
+    /**
+     * Constructs an ActivityLog.
+     *
+     * @param capacity     The number of entries buffered between two drains,
+     *                     rounded up to a power of two.
+     * @param file         The file to also write the log to, or null.
+     * @param maxFileBytes The size at which the file is rolled over.
+     * @param maxFiles     The number of files kept, the current one included.
+     */
+    public ActivityLog(int capacity, String file, long maxFileBytes, int maxFiles) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.file = file == null ? null : Paths.get(file);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        if (this.file != null) {
+            startDraining();
+        }
+    }
+
+    /**
+     * Creates the activity log described by a server configuration.
+     *
+     * @param config The server configuration.
+     * @return The activity log.
+     */
+    public static ActivityLog fromConfig(ServerConfig config) {
+        return new ActivityLog(config.getActivityLogCapacity(), config.getActivityLogFile(),
+                config.getActivityLogFileBytes(), config.getActivityLogFiles());
+    }
+
+    /**
+     * Adds an entry. Never blocks; safe to call from any thread.
+     *
+     * @param activity The activity to log.
+     */
+    public void append(String activity) {
+        long sequence = nextSequence.getAndIncrement();
+        ring.set((int) (sequence & mask), new Entry(sequence, System.currentTimeMillis(), activity));
+    }
+
+    /**
+     * Registers a listener for the entries, in batches of lines of the form
+     * "HH:mm:ss activity". It is called on the drain thread, a few times a
+     * second at most, so it should only hand the batch over, for example with
+     * one Platform.runLater per batch.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(Consumer<List<String>> listener) {
+        listeners.add(listener);
+        startDraining();
+    }
+
+    /**
+     * Gets the number of entries added so far.
+     *
+     * @return The number of entries.
+     */
+    public long getEntryCount() {
+        return nextSequence.get();
+    }
+
+    private synchronized void startDraining() {
+        if (drainer == null) {
+            drainer = Executors.newSingleThreadScheduledExecutor(NioServer.namedThreads("activity-log"));
+            drainer.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL_MILLIS, DRAIN_INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Takes every entry added since the last drain out of the ring buffer.
+     */
+    void drain() {
+        try {
+            List<Entry> entries = new ArrayList<>();
+            long end = nextSequence.get();
+            if (end - readSequence > ring.length()) {
+                // Lapped: the entries before the last capacity are gone
+                dropped += end - ring.length() - readSequence;
+                readSequence = end - ring.length();
+            }
+            while (readSequence < end) {
+                Entry entry = ring.get((int) (readSequence & mask));
+                if (entry == null || entry.sequence < readSequence) {
+                    break; // Claimed but not written yet; take it next time
+                }
+                if (entry.sequence > readSequence) {
+                    dropped++; // Overwritten since end was read
+                } else {
+                    entries.add(entry);
+                }
+                readSequence++;
+            }
+            if (dropped > 0) {
+                entries.add(new Entry(-1, System.currentTimeMillis(), dropped + " activity entries dropped"));
+                dropped = 0;
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            if (file != null) {
+                writeToFile(entries);
+            }
+            if (!listeners.isEmpty()) {
+                List<String> lines = new ArrayList<>(entries.size());
+                for (Entry entry : entries) {
+                    lines.add(TIME.format(Instant.ofEpochMilli(entry.time)) + " " + entry.activity);
+                }
+                for (Consumer<List<String>> listener : listeners) {
+                    listener.accept(lines);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep draining; an exception would cancel the schedule
+            System.out.println("Activity log drain failed: " + e.getMessage());
+        }
+    }
+
+    private void writeToFile(List<Entry> entries) {
+        try {
+            for (Entry entry : entries) {
+                if (writer == null || fileBytes >= maxFileBytes) {
+                    openFile();
+                }
+                String line = TIMESTAMP.format(Instant.ofEpochMilli(entry.time)) + " " + entry.activity
+                        + System.lineSeparator();
+                writer.write(line);
+                fileBytes += line.getBytes(StandardCharsets.UTF_8).length;
+            }
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("Could not write activity log " + file + ": " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /**
+     * Opens the log file, first rolling it over to file.1, file.1 to file.2
+     * and so on if it is full.
+     */
+    private void openFile() throws IOException {
+        closeFile();
+        if (Files.exists(file) && Files.size(file) >= maxFileBytes) {
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = i == 1 ? file : Paths.get(file + "." + (i - 1));
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(file + "." + i), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.deleteIfExists(file); // Only left when a single file is kept
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileBytes = Files.size(file);
+    }
+
+    private void closeFile() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.out.println("Could not close activity log " + file + ": " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * One activity, stamped with its place in the log.
+     */
+    private static class Entry {
+        final long sequence;
+        final long time;
+        final String activity;
+
+        Entry(long sequence, long time, String activity) {
+            this.sequence = sequence;
+            this.time = time;
+            this.activity = activity;
+        }
+    }
+}
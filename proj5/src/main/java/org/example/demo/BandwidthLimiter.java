@@ -0,0 +1,130 @@
+package org.example.demo;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The BandwidthLimiter class caps how many bytes per second pass through it,
+ * as a token bucket. Limiters form a tree: a transfer takes its bytes from
+ * its own limiter and then from every limiter above it, so a transfer is held
+ * to its own cap, to the cap of all uploads or all downloads, and to the
+ * overall cap at once.
+ * Transfers waiting on the same limiter are served in arrival order, and each
+ * takes at most {@link #QUANTUM} bytes at a time, so concurrent transfers get
+ * equal shares of a saturated limiter. Rates can be changed while transfers
+ * are running; a rate of 0 means unlimited.
+ */
+public class BandwidthLimiter {
+    /** The most bytes a transfer should take at once, so waiters take turns. */
+    public static final int QUANTUM = 64 * 1024;
+
+    // Time transfers spent waiting for their bytes, in every limiter
+    private static final Metrics.Counter THROTTLED_MICROS = Metrics.counter("transfer.throttledMicros");
+
+    private final String name;
+    private final BandwidthLimiter parent;
+    private final ReentrantLock lock = new ReentrantLock(true); // Fair, so waiters are served in order
+    private volatile long bytesPerSecond;
+    private double tokens; // Guarded by lock; negative while a taker sleeps off its debt
+    private long lastRefill = System.nanoTime(); // Guarded by lock
+
+    /**
+     * Constructs a BandwidthLimiter.
+     *
+     * @param name           The name shown in log messages.
+     * @param bytesPerSecond The rate, or 0 for unlimited.
+     * @param parent         The limiter above this one, or null for a root.
+     */
+    public BandwidthLimiter(String name, long bytesPerSecond, BandwidthLimiter parent) {
+        this.name = name;
+        this.parent = parent;
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Creates a limiter for one transfer below this one.
+     *
+     * @param name           The name of the transfer.
+     * @param bytesPerSecond The transfer's own rate, or 0 for unlimited.
+     * @return The transfer's limiter.
+     */
+    public BandwidthLimiter newChild(String name, long bytesPerSecond) {
+        return new BandwidthLimiter(name, bytesPerSecond, this);
+    }
+
+    /**
+     * Changes the rate. Transfers already waiting finish their current wait
+     * at the old rate.
+     *
+     * @param bytesPerSecond The new rate, or 0 for unlimited.
+     */
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Checks whether this limiter or any limiter above it has a rate.
+     *
+     * @return true if transfers through this limiter may be slowed down.
+     */
+    public boolean isLimited() {
+        for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            if (limiter.bytesPerSecond > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until some bytes may be sent or received, taking them from this
+     * limiter and every limiter above it.
+     *
+     * @param bytes The number of bytes, at most {@link #QUANTUM} for fair sharing.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        try {
+            for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+                limiter.take(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + name);
+        }
+    }
+
+    private void take(int bytes) throws InterruptedException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        lock.lockInterruptibly();
+        try {
+            long now = System.nanoTime();
+            double capacity = Math.max(QUANTUM, rate / 10.0); // At most a tenth of a second of burst
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            if (tokens < 0) {
+                // Sleep off the debt while holding the lock, so the next taker
+                // in line only starts counting once this one has its bytes
+                long debtNanos = (long) (-tokens * 1e9 / rate);
+                THROTTLED_MICROS.add(debtNanos / 1000);
+                TimeUnit.NANOSECONDS.sleep(debtNanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + (bytesPerSecond > 0 ? bytesPerSecond + " B/s" : "unlimited") + ")";
+    }
+}
@@ -0,0 +1,186 @@
+package org.example.demo;
+
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The BloomFilter class is the summary of a client's shared folder as the
+ * server keeps it. It answers whether a file name might be shared (false
+ * positives are possible, false negatives are not). Clients build the filter
+ * with a {@link CountingBloomFilter} and send the set bits; later changes
+ * arrive as individual bits being set or cleared.
+ * Reads never lock, so any thread may query while the owning client's messages
+ * update the filter.
+ */
+public class BloomFilter {
+    /**
+     * Most bits a filter may have. A summary is Base64 encoded, then encrypted
+     * and Base64 encoded again, and still has to fit in one message, which both
+     * engines accept up to {@link MessageCodec#MAX_FRAME_LENGTH} bytes.
+     */
+    static final int MAX_BIT_COUNT = (MessageCodec.MAX_FRAME_LENGTH - 64 * 1024) / 16 * 9 * 8;
+
+    /** Most bit positions per name, which bounds the work of every lookup. */
+    static final int MAX_HASH_COUNT = 16;
+
+    private final int bitCount;
+    private final int hashCount;
+    private final AtomicLongArray words;
+
+    /**
+     * Constructs an empty BloomFilter.
+     *
+     * @param bitCount  The number of bits.
+     * @param hashCount The number of bit positions per name.
+     */
+    public BloomFilter(int bitCount, int hashCount) {
+        if (bitCount <= 0 || bitCount > MAX_BIT_COUNT || hashCount <= 0 || hashCount > MAX_HASH_COUNT) {
+            throw new IllegalArgumentException("Invalid Bloom filter size: " + bitCount + " bits, " + hashCount + " hashes");
+        }
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+        this.words = new AtomicLongArray((bitCount + 63) / 64);
+    }
+
+    /**
+     * Computes the number of bits a filter needs to hold a number of names at
+     * a given false positive rate.
+     *
+     * @param expectedNames     The number of names the filter should hold.
+     * @param falsePositiveRate The acceptable false positive rate, between 0 and 1.
+     * @return The number of bits.
+     */
+    public static int optimalBitCount(int expectedNames, double falsePositiveRate) {
+        double bits = -Math.max(1, expectedNames) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        return (int) Math.min(MAX_BIT_COUNT, Math.max(64, Math.ceil(bits)));
+    }
+
+    /**
+     * Computes the number of bit positions per name that minimises the false
+     * positive rate for a filter size.
+     *
+     * @param bitCount      The number of bits.
+     * @param expectedNames The number of names the filter should hold.
+     * @return The number of hashes.
+     */
+    public static int optimalHashCount(int bitCount, int expectedNames) {
+        long hashes = Math.round((double) bitCount / Math.max(1, expectedNames) * Math.log(2));
+        return (int) Math.max(1, Math.min(MAX_HASH_COUNT, hashes));
+    }
+
+    /**
+     * Computes the bit positions of a name. Clients and the server must agree
+     * on these, so the hash only depends on the characters of the name.
+     *
+     * @param name      The file name.
+     * @param bitCount  The number of bits in the filter.
+     * @param hashCount The number of positions to compute.
+     * @return The bit positions, possibly with repeats.
+     */
+    static int[] positions(String name, int bitCount, int hashCount) {
+        // 64-bit FNV-1a, split into two halves for double hashing
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int[] positions = new int[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            positions[i] = Math.floorMod(h1 + i * h2, bitCount);
+        }
+        return positions;
+    }
+
+    /**
+     * Checks whether a name might be in the filter.
+     *
+     * @param name The file name.
+     * @return false if the name is certainly not in the filter.
+     */
+    public boolean mightContain(String name) {
+        for (int position : positions(name, bitCount, hashCount)) {
+            if ((words.get(position >>> 6) & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets or clears a single bit.
+     *
+     * @param position The bit position.
+     * @param value    true to set the bit, false to clear it.
+     */
+    public void setBit(int position, boolean value) {
+        if (position < 0 || position >= bitCount) {
+            throw new IllegalArgumentException("Bit position out of range: " + position);
+        }
+        long mask = 1L << position;
+        if (value) {
+            words.getAndAccumulate(position >>> 6, mask, (word, m) -> word | m);
+        } else {
+            words.getAndAccumulate(position >>> 6, mask, (word, m) -> word & ~m);
+        }
+    }
+
+    public int getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Encodes the filter as text for a "summary" message: the number of bits,
+     * the number of hashes and the Base64 encoded bits, one per line.
+     *
+     * @return The encoded filter.
+     */
+    public String encode() {
+        byte[] bytes = new byte[(bitCount + 7) / 8];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (words.get(i >>> 3) >>> ((i & 7) * 8));
+        }
+        return bitCount + "\n" + hashCount + "\n" + Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * Decodes a filter written by {@link #encode()}. The sizes come from a
+     * client, so they are checked against the limits and against the length
+     * of the encoded bits before anything is allocated.
+     *
+     * @param lines The lines of the encoded filter.
+     * @param from  The index of the line holding the number of bits.
+     * @return The decoded filter.
+     * @throws IllegalArgumentException If the text is not a valid filter.
+     */
+    public static BloomFilter decode(String[] lines, int from) {
+        if (lines.length < from + 3) {
+            throw new IllegalArgumentException("Incomplete Bloom filter");
+        }
+        int bitCount = Integer.parseInt(lines[from].trim());
+        int hashCount = Integer.parseInt(lines[from + 1].trim());
+        if (bitCount <= 0 || bitCount > MAX_BIT_COUNT || hashCount <= 0 || hashCount > MAX_HASH_COUNT) {
+            throw new IllegalArgumentException("Bloom filter too large: " + bitCount + " bits, " + hashCount + " hashes");
+        }
+        String encoded = lines[from + 2].trim();
+        int byteCount = (bitCount + 7) / 8;
+        if (encoded.length() != (byteCount + 2) / 3 * 4) {
+            throw new IllegalArgumentException("Bloom filter has " + encoded.length() + " Base64 characters for " + bitCount + " bits");
+        }
+        byte[] bytes = Base64.getDecoder().decode(encoded);
+        if (bytes.length != byteCount) {
+            throw new IllegalArgumentException("Bloom filter has " + bytes.length + " bytes for " + bitCount + " bits");
+        }
+        BloomFilter filter = new BloomFilter(bitCount, hashCount);
+        for (int i = 0; i < bytes.length; i++) {
+            long word = filter.words.get(i >>> 3) | (bytes[i] & 0xFFL) << ((i & 7) * 8);
+            filter.words.set(i >>> 3, word);
+        }
+        return filter;
+    }
+}
@@ -1,13 +1,19 @@
 package org.example.demo;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
 import javafx.stage.Stage;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.HBox;
 import javafx.util.Callback;
 import javafx.scene.control.TextField;
 
@@ -25,7 +31,9 @@ public class ChatGuiController extends Application {
     @FXML
     private Button btnSearch, btnDownload, btnPauseDownload;
     @FXML
-    private ProgressBar downloadProgress;
+    private ListView<DownloadSession> downloadsListView;
+    private final Map<Integer, TransferProgress> downloadProgress = new ConcurrentHashMap<>(); // Latest, by session id
+    private final AtomicBoolean progressFrameScheduled = new AtomicBoolean();
 
     /**
      * Default constructor for ChatGuiController.
@@ -84,6 +92,11 @@ public class ChatGuiController extends Application {
                 };
             }
         });
+
+        // Show every download with its own progress bar
+        downloadsListView.setCellFactory(list -> new DownloadCell());
+        downloadsListView.getSelectionModel().selectedItemProperty()
+                .addListener((observable, previous, selected) -> updatePauseButton(selected));
     }
 
     /**
@@ -100,11 +113,8 @@ public class ChatGuiController extends Application {
         if (selectedItem != null) {
             System.out.println("selectedItem is not null"); // Debugging statement
 
-            // Create a new download request message
-            Message downloadRequest = new Message("downloadRequest", username, username, selectedItem);
-
-            // Send the download request to the server
-            client.sendMessage(downloadRequest);
+            // Ask the server for the peers holding the file
+            client.requestDownload(selectedItem);
         }
     }
 
@@ -124,42 +134,92 @@ public class ChatGuiController extends Application {
 
     /**
      * Handles the pause button action.
-     * Pauses or resumes the file download process based on the current download
-     * state.
+     * Pauses or resumes the download selected in the downloads list.
      */
     @FXML
     private void handlePauseButton() {
         System.out.println("Pause button is linked");
-        if (btnPauseDownload.getText().equals("Pause")) {
-            client.fileTransferManager.pauseDownload();
-            btnPauseDownload.setText("Resume");
+        DownloadSession selected = downloadsListView.getSelectionModel().getSelectedItem();
+        if (selected == null) {
+            return;
+        }
+        if (selected.isActive()) {
+            client.fileTransferManager.pauseDownload(selected.getId());
         } else {
-            client.fileTransferManager.resumeDownload();
-            btnPauseDownload.setText("Pause");
+            client.fileTransferManager.resumeDownload(selected.getId());
         }
     }
 
     /**
-     * Returns the progress bar used for showing file download progress.
-     * 
-     * @return ProgressBar the progress bar control.
+     * Shows the latest progress of the downloads. May be called from any
+     * thread; however often it is called, the downloads list is redrawn at
+     * most once per JavaFX pulse, with the newest snapshot of each download.
+     *
+     * @param changed The snapshots of the downloads that changed.
      */
-    public ProgressBar getProgressBar() {
-        return downloadProgress;
+    public void updateDownloads(List<TransferProgress> changed) {
+        for (TransferProgress progress : changed) {
+            downloadProgress.put(progress.getSession().getId(), progress);
+        }
+        if (progressFrameScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::showDownloadProgress);
+        }
+    }
+
+    private void showDownloadProgress() {
+        progressFrameScheduled.set(false);
+        for (TransferProgress progress : downloadProgress.values()) {
+            if (!downloadsListView.getItems().contains(progress.getSession())) {
+                downloadsListView.getItems().add(progress.getSession());
+            }
+        }
+        downloadsListView.refresh(); // Redraws the visible rows from downloadProgress
+        updatePauseButton(downloadsListView.getSelectionModel().getSelectedItem());
+    }
+
+    private void updatePauseButton(DownloadSession selected) {
+        btnPauseDownload.setText(selected == null || selected.isActive() ? "Pause" : "Resume");
     }
 
-    public void displaySearchResults(String results) {
+    public void displaySearchResults(List<String> results) {
         Platform.runLater(() -> {
             searchResultsListView.getItems().clear();
             btnSearch.setDisable(false); // Re-enable the button
-            if (results != null && !results.isEmpty()) {
-                searchResultsListView.getItems().addAll(results.split(", "));
+            if (!results.isEmpty()) {
+                searchResultsListView.getItems().addAll(results);
             } else {
                 searchResultsListView.getItems().add("No results found.");
             }
         });
     }
 
+    /**
+     * A row of the downloads list: a progress bar, then the file name, state,
+     * rate and time left.
+     */
+    private class DownloadCell extends ListCell<DownloadSession> {
+        private final Label label = new Label();
+        private final ProgressBar progressBar = new ProgressBar();
+        private final HBox box = new HBox(10, progressBar, label);
+
+        DownloadCell() {
+            progressBar.setPrefWidth(200);
+        }
+
+        @Override
+        protected void updateItem(DownloadSession session, boolean empty) {
+            super.updateItem(session, empty);
+            if (session == null || empty) {
+                setGraphic(null);
+            } else {
+                TransferProgress progress = downloadProgress.get(session.getId());
+                progressBar.setProgress(progress != null ? progress.getProgress() : session.getProgress());
+                label.setText(progress != null ? progress.toString() : session.toString());
+                setGraphic(box);
+            }
+        }
+    }
+
     // Format search result string for display
     private String formatSearchResult(String result) {
         // You can format the string however you need; this is a simple example
@@ -0,0 +1,125 @@
+package org.example.demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The ChunkCipher class encrypts a file transfer as a sequence of fixed-size
+ * AES-GCM chunks, so a file of any size is encrypted in constant memory and a
+ * transfer can resume at any chunk boundary.
+ * Every chunk is authenticated on its own. Its nonce is a random per-transfer
+ * salt followed by the chunk index, so chunks cannot be reordered, and the
+ * file size and chunk size are bound in as associated data, so the stream
+ * cannot be cut short or re-chunked without the receiver noticing.
+ * An instance serves one transfer on one thread.
+ */
+public class ChunkCipher {
+    /** Plaintext bytes per chunk; only the last chunk may be shorter. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /** Bytes the authentication tag adds to every chunk. */
+    public static final int TAG_LENGTH = 16;
+    /** Length of the random per-transfer salt. */
+    public static final int SALT_LENGTH = 8;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final byte[] nonce = new byte[12];
+    private final byte[] associatedData;
+    private final Cipher cipher;
+
+    /**
+     * Constructs a ChunkCipher for one transfer.
+     *
+     * @param key      The shared secret of the peers.
+     * @param salt     The transfer's salt, {@link #SALT_LENGTH} bytes.
+     * @param fileSize The size of the transferred file.
+     * @throws GeneralSecurityException If AES-GCM is not available.
+     */
+    public ChunkCipher(String key, byte[] salt, long fileSize) throws GeneralSecurityException {
+        if (salt.length != SALT_LENGTH) {
+            throw new IllegalArgumentException("Salt must be " + SALT_LENGTH + " bytes");
+        }
+        this.key = deriveKey(key);
+        System.arraycopy(salt, 0, nonce, 0, SALT_LENGTH);
+        this.associatedData = ByteBuffer.allocate(12).putLong(fileSize).putInt(CHUNK_SIZE).array();
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * Generates a fresh salt for a transfer.
+     *
+     * @return The salt.
+     */
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Gets the number of chunks a file is sent in.
+     *
+     * @param fileSize The size of the file.
+     * @return The number of chunks.
+     */
+    public static long chunkCount(long fileSize) {
+        return (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    /**
+     * Encrypts one chunk.
+     *
+     * @param index     The chunk index.
+     * @param plaintext The chunk's bytes.
+     * @param length    The number of bytes in the chunk.
+     * @param output    The buffer receiving the ciphertext, with room for
+     *                  length + {@link #TAG_LENGTH} bytes.
+     * @return The number of ciphertext bytes.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public int seal(long index, byte[] plaintext, int length, byte[] output) throws GeneralSecurityException {
+        init(Cipher.ENCRYPT_MODE, index);
+        return cipher.doFinal(plaintext, 0, length, output, 0);
+    }
+
+    /**
+     * Decrypts and verifies one chunk.
+     *
+     * @param index      The chunk index the receiver expects.
+     * @param ciphertext The chunk's ciphertext.
+     * @param length     The number of ciphertext bytes.
+     * @param output     The buffer receiving the plaintext.
+     * @return The number of plaintext bytes.
+     * @throws GeneralSecurityException If the chunk was altered, reordered or
+     *                                  belongs to another transfer.
+     */
+    public int open(long index, byte[] ciphertext, int length, byte[] output) throws GeneralSecurityException {
+        init(Cipher.DECRYPT_MODE, index);
+        return cipher.doFinal(ciphertext, 0, length, output, 0);
+    }
+
+    private void init(int mode, long index) throws GeneralSecurityException {
+        if (index < 0 || index > 0xFFFFFFFFL) {
+            throw new GeneralSecurityException("Chunk index out of range: " + index);
+        }
+        ByteBuffer.wrap(nonce, SALT_LENGTH, 4).putInt((int) index);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(associatedData);
+    }
+
+    private static SecretKey deriveKey(String key) throws GeneralSecurityException {
+        // A key of its own, so file chunks and control messages never share one
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        byte[] keyBytes = sha.digest(("file-transfer:" + key).getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(Arrays.copyOf(keyBytes, 16), "AES");
+    }
+}
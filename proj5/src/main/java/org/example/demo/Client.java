@@ -1,60 +1,66 @@
 package org.example.demo;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
-import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.stage.Stage;
 
 /**
- * The Client class handles the client-side functionality of the chat
- * application.
- * It manages the connection to the server, sending and receiving messages, and
- * updating the chat GUI.
+ * The Client class is the JavaFX side of a peer. It connects a
+ * {@link PeerClient} to the chat window: search results and download progress
+ * are shown in the {@link ChatGuiController}, and connection problems in
+ * dialogs. All the networking is done by the PeerClient.
  */
 public class Client extends Application {
-    private Socket socket;
-    private ObjectInputStream objectInputStream;
-    private ObjectOutputStream objectOutputStream;
-    private String username;
+    private PeerClient peer;
     private ChatGuiController controller;
     public Stage chatStage;
     public FileTransferManager fileTransferManager; // Each client has its own FileTransferManager
-    private String serverAddress;
-    private int serverPort;
-
-    private static final String ENCRYPTION_KEY = "mySecretKey";
 
     /**
-     * Constructs a Client instance with a specified socket, username, and
-     * controller.
+     * Constructs a Client and connects it to the server. This waits for the
+     * server to answer the login, so it should not be called on the JavaFX
+     * thread.
      *
-     * @param socket     The socket connecting to the server.
-     * @param username   The username of the client.
-     * @param controller The controller for the chat GUI.
+     * @param username      The username of the client.
+     * @param controller    The controller for the chat GUI.
+     * @param serverAddress The server's address.
+     * @param serverPort    The server's port.
+     * @throws PeerClient.UsernameTakenException If the username is already taken.
+     * @throws IOException                       If the server cannot be reached.
      */
-    public Client(Socket socket, String username, ChatGuiController controller, String serverAddress) {
-        this.fileTransferManager = new FileTransferManager();
-        try {
-            this.controller = controller;
-            this.socket = socket;
-            this.objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-            this.objectOutputStream.flush();
-            this.objectInputStream = new ObjectInputStream(socket.getInputStream());
-            this.username = username;
-            this.serverAddress = serverAddress;
+    public Client(String username, ChatGuiController controller, String serverAddress, int serverPort)
+            throws IOException {
+        this.controller = controller;
+        this.peer = new PeerClient(username, System.getProperty("user.dir") + "/files",
+                System.getProperty("user.dir") + "/downloads", new PeerClient.Listener() {
+                    @Override
+                    public void downloadFailed(String fileName, String reason) {
+                        showAlert("Download Failed", "Failed to initiate download for " + fileName + ": " + reason);
+                    }
+
+                    @Override
+                    public void serverDown() {
+                        handleServerDown();
+                    }
 
-            // Send the username as a Message object to the server
-            sendMessage(new Message("login", username, null, ""));
-            listenForMessage();
-        } catch (IOException e) {
-            closeEverything(socket, objectInputStream, objectOutputStream);
+                    @Override
+                    public void connectionLost(String reason) {
+                        System.out.println("Error: " + reason);
+                    }
+                });
+        this.fileTransferManager = peer.getFileTransferManager();
+        if (controller != null) {
+            fileTransferManager.addProgressListener(controller::updateDownloads);
+        }
+        try {
+            peer.connect(serverAddress, serverPort);
+        } catch (IOException | RuntimeException e) {
+            peer.close(); // Stop the upload server and transfer threads started for this peer
+            throw e;
         }
     }
 
@@ -64,16 +70,20 @@ public class Client extends Application {
     public Client() {
     }
 
+    public PeerClient getPeer() {
+        return peer;
+    }
+
     public FileTransferManager getFileTransferManager() {
         return fileTransferManager;
     }
 
     public String getServerAddress() {
-        return serverAddress;
+        return peer.getServerAddress();
     }
 
     public int getServerPort() {
-        return serverPort;
+        return peer.getServerPort();
     }
 
     /**
@@ -82,165 +92,40 @@ public class Client extends Application {
      * @param message The message to be sent.
      */
     public void sendMessage(Message message) {
-        try {
-
-            String encryptedContent = Encryption.encrypt(message.getContent(), ENCRYPTION_KEY);
-            Message encryptedMessage = new Message(message.getType(), message.getSender(), message.getRecipient(),
-                    encryptedContent);
-            objectOutputStream.writeObject(encryptedMessage);
-            objectOutputStream.flush();
-        } catch (IOException e) {
-            closeEverything(socket, objectInputStream, objectOutputStream);
-        }
-    }
-
-    public void listenForMessage() {
-        new Thread(() -> {
-            while (socket.isConnected()) {
-                try {
-                    Message messageFromServer = (Message) objectInputStream.readObject();
-                    if (messageFromServer != null) {
-                        // Decrypt the content
-                        String decryptedContent = Encryption.decrypt(messageFromServer.getContent(), ENCRYPTION_KEY);
-                        Message decryptedMessage = new Message(
-                                messageFromServer.getType(),
-                                messageFromServer.getSender(),
-                                messageFromServer.getRecipient(),
-                                decryptedContent);
-
-                        if (decryptedContent.equals("Username is already taken.")) {
-                            // Restart the client
-                            Platform.runLater(() -> {
-                                try {
-                                    closeEverything(socket, objectInputStream, objectOutputStream);
-                                    restartClient(username); // restart the client if username has been taken
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            });
-                            stop();
-                            return;
-                        }
-
-                        switch (decryptedMessage.getType()) {
-                            case "searchResults":
-                                handleSearchResults(decryptedMessage.getContent());
-                                break;
-                            case "initiateDownloadFrom":
-                                handleInitiateDownloadFrom(decryptedMessage);
-                                break;
-                            case "checkFile":
-                                handleCheckFileRequest(decryptedMessage);
-                                break;
-                            default:
-                                System.out.println("Unhandled message type: " + decryptedMessage.getType());
-                                break;
-                        }
-                    } else {
-                        handleServerDown();
-                    }
-                } catch (Exception e) {
-                    handleException(e.getMessage());
-                    break;
-                }
-            }
-        }).start();
-    }
-
-    private void handleCheckFileRequest(Message message) {
-        String filename = message.getContent();
-        if (fileTransferManager.hasFile(filename)) {
-            System.out.println("check file in client");
-            sendMessage(new Message("fileAvailable", username, message.getRecipient(),
-                    filename + ":" + fileTransferManager.getPort()));
-        }
-    }
-
-    private void handleInitiateDownloadFrom(Message message) {
-        System.out.println("I am called");
-        String[] contentParts = message.getContent().split(":"); // Assuming the format is "filename:port"
-        if (contentParts.length < 2) {
-            System.out.println("Invalid download initiation message format.");
-            return;
-        }
-        String filename = contentParts[0];
-        int port = Integer.parseInt(contentParts[1]); // Make sure to handle potential NumberFormatException
-        System.out.println(filename + ": " + port + ": " + getServerAddress());
-
-        Platform.runLater(() -> {
-            try {
-                String relativePath = System.getProperty("user.dir") + "/downloads/";
-                fileTransferManager.downloadFile(getServerAddress(), port, filename,
-                        relativePath + filename, controller.getProgressBar());
-            } catch (Exception e) {
-                showAlert("Download Failed", "Failed to initiate download for " + filename + ": " + e.getMessage());
-            }
-        });
+        peer.sendMessage(message);
     }
 
+    /**
+     * Searches the server and shows the results in the chat window.
+     *
+     * @param query The text to search for.
+     */
     public void sendSearchRequest(String query) {
-        sendMessage(new Message("search", username, null, query));
-    }
-
-    private void handleUsernameTaken() {
-        Platform.runLater(() -> {
-            try {
-                closeEverything(socket, objectInputStream, objectOutputStream);
-                restartClient(username);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+        peer.search(query).thenAccept(controller::displaySearchResults);
     }
 
-    private void handleSearchResults(String results) {
-        Platform.runLater(() -> controller.displaySearchResults(results));
+    /**
+     * Downloads a file; its progress shows in the downloads list.
+     *
+     * @param fileName The name of the file.
+     */
+    public void requestDownload(String fileName) {
+        peer.download(fileName);
     }
 
     private void handleServerDown() {
         Platform.runLater(() -> {
-            closeEverything(socket, objectInputStream, objectOutputStream);
+            peer.disconnect();
             System.out.println("SERVER: Server down, disconnecting clients...");
             System.exit(0);
         });
     }
 
-    private void handleException(String errorMessage) {
-        Platform.runLater(() -> {
-            closeEverything(socket, objectInputStream, objectOutputStream);
-            System.out.println("Error: " + errorMessage);
-        });
-    }
-
     /**
-     * Closes the socket and input/output streams.
+     * Disconnects from the server.
      */
     public void closeEverythingHelper() {
-        closeEverything(socket, objectInputStream, objectOutputStream);
-    }
-
-    /**
-     * Closes the socket and input/output streams.
-     *
-     * @param socket             The socket to close.
-     * @param objectInputStream  The input stream to close.
-     * @param objectOutputStream The output stream to close.
-     */
-    public void closeEverything(Socket socket, ObjectInputStream objectInputStream,
-            ObjectOutputStream objectOutputStream) {
-        try {
-            if (objectOutputStream != null) {
-                objectOutputStream.close();
-            }
-            if (objectInputStream != null) {
-                objectInputStream.close();
-            }
-            if (socket != null) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        peer.disconnect();
     }
 
     /**
@@ -285,37 +170,4 @@ public class Client extends Application {
     public void setChatStage(Stage chatStage) {
         this.chatStage = chatStage;
     }
-
-    /**
-     * Restarts the client when the username is already taken.
-     * 
-     * @param usernameTaken The username that is already taken.
-     * @throws IOException If the FXML file cannot be loaded.
-     */
-    public void restartClient(String usernameTaken) throws IOException {
-        Platform.runLater(() -> {
-            if (chatStage != null) {
-                chatStage.close();
-            }
-        });
-
-        Platform.runLater(() -> {
-            try {
-                FXMLLoader fxmlLoader = new FXMLLoader(Client.class.getResource("MainController.fxml"));
-                Parent root = fxmlLoader.load();
-                Stage stageRestart = new Stage();
-                stageRestart.setTitle("Login");
-                stageRestart.setScene(new Scene(root));
-                stageRestart.show();
-                Alert alert = new Alert(Alert.AlertType.ERROR);
-                alert.setTitle("Username Taken");
-                alert.setHeaderText(null);
-                alert.setContentText(
-                        "The username '" + usernameTaken + "' is already taken. Please choose a different username.");
-                alert.showAndWait();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-    }
 }
@@ -1,55 +1,169 @@
 package org.example.demo;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The ClientHandler class is responsible for managing individual client
  * connections to the server, including sending and receiving messages.
+ * Outgoing messages go through a bounded queue that a writer drains in
+ * batches, so sending to a client never waits on that client's socket.
  */
 public class ClientHandler implements Runnable {
-    public static ArrayList<ClientHandler> clientHandlers = new ArrayList<>();
+    // Connected clients by username; iteration is weakly consistent, so broadcasts
+    // never fail while clients join or leave
+    public static final ConcurrentMap<String, ClientHandler> clientHandlers = new ConcurrentHashMap<>();
     private Socket socket;
     private ObjectInputStream objectInputStream;
     private ObjectOutputStream objectOutputStream;
     private String clientUsername;
+    private NioConnection connection; // Only set when served by the NIO engine
+    private final MessageCodec codec = new MessageCodec();
+    private DataInputStream frameInputStream; // Set once the client sends binary frames
+    private OutputStream bufferedOutputStream; // Under the object stream, also carries binary frames
+    private boolean binaryOutbound; // Only touched by the writer
+    private int messagesSinceReset;
+    private boolean loggedIn;
+    private final Set<String> sharedFiles = ConcurrentHashMap.newKeySet(); // As published by the client
+    private volatile int uploadPort;
+
+    // Outbound queue; markers below are compared by identity
+    private final BlockingQueue<Message> outbound = new ArrayBlockingQueue<>(
+            ServerCore.getConfig().getOutboundQueueCapacity());
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(); // NIO engine only
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private static final Message SWITCH_TO_BINARY = new Message("codec", "SERVER", null, null);
+    private static final Message CLOSE = new Message("close", "SERVER", null, null);
+    private static final int MAX_BATCH = 64;
 
     private static final String ENCRYPTION_KEY = "mySecretKey";
 
+    private static final Metrics.Counter[] MESSAGES_IN = Metrics.countersByType("server.messagesIn");
+    private static final Metrics.Counter[] MESSAGES_OUT = Metrics.countersByType("server.messagesOut");
+    private static final Metrics.Counter MESSAGES_DROPPED = Metrics.counter("server.messagesDropped");
+    private static final Metrics.Counter SLOW_CLIENTS_DISCONNECTED = Metrics.counter("server.slowClientsDisconnected");
+    private static final Metrics.Histogram SEARCH_LATENCY = Metrics.histogram("server.search.latencyMicros",
+            Metrics.LATENCY_MICROS);
+    private static final Metrics.Histogram SEARCH_RESULTS = Metrics.histogram("server.search.results",
+            Metrics.COUNTS);
+    private static final Metrics.Histogram CHECK_FILE_FAN_OUT = Metrics.histogram("server.checkFile.fanOut",
+            Metrics.COUNTS);
+
+    static {
+        Metrics.gauge("server.connectedUsers").add(clientHandlers::size);
+        Metrics.gauge("server.outboundQueued").add(ClientHandler::countQueuedMessages);
+    }
+
     /**
      * Constructs a ClientHandler instance with a specified socket.
-     * Initializes the streams and sets up the client connection.
+     * Initializes the streams and sets up the client connection. The caller
+     * enforces the handshake timeout by closing the socket when it expires.
      *
      * @param socket The socket representing the client connection.
      */
     public ClientHandler(Socket socket) {
         try {
             this.socket = socket;
-            this.objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            this.bufferedOutputStream = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            this.objectOutputStream = new ObjectOutputStream(bufferedOutputStream);
             this.objectOutputStream.flush();
             this.objectInputStream = new ObjectInputStream(socket.getInputStream());
 
-            Message usernameMessage = (Message) objectInputStream.readObject();
-            this.clientUsername = usernameMessage.getSender();
+            Thread writer = Thread.ofVirtual().name("writer-" + socket.getRemoteSocketAddress())
+                    .unstarted(this::writeLoop);
+            writer.start();
 
-            if (!Server.activeUsernames.add(this.clientUsername)) {
-                sendMessage(new Message("login", "SERVER", null, "Username is already taken."));
+            Object usernameMessage = objectInputStream.readObject();
+            if (!(usernameMessage instanceof Message)) {
                 closeEverything();
                 return;
             }
+            loggedIn = login((Message) usernameMessage);
 
-            clientHandlers.add(this);
-            Server.activeUsernames.add(this.clientUsername);
+        } catch (IOException | ClassNotFoundException e) {
+            closeEverything();
+        }
+    }
 
-            Server.updateClientActivity("New user has connected");
+    /**
+     * Constructs a ClientHandler for a client served by the {@link NioServer}.
+     * The connection has no streams of its own; messages are passed in through
+     * {@link #login(Message)} and {@link #handleMessage(Message)}.
+     *
+     * @param connection The non-blocking connection of the client.
+     */
+    ClientHandler(NioConnection connection) {
+        this.connection = connection;
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
+    /**
+     * Registers the client named in its login message.
+     *
+     * @param usernameMessage The first message sent by the client.
+     * @return true if the client was registered, false if the username was taken
+     *         and the connection has been closed.
+     */
+    boolean login(Message usernameMessage) {
+        this.clientUsername = usernameMessage.getSender();
+        Metrics.countMessage(MESSAGES_IN, usernameMessage.getType());
+
+        if (this.clientUsername == null) {
             closeEverything();
+            return false;
+        }
+
+        // Claiming the username and registering the handler is a single step
+        if (clientHandlers.putIfAbsent(this.clientUsername, this) != null) {
+            sendMessage(new Message("login", "SERVER", null, "Username is already taken."));
+            closeAfterFlush();
+            return false;
+        }
+
+        ServerCore.fileDirectory.register(this);
+        ServerCore.updateClientActivity("New user has connected");
+
+        if (usernameMessage.getContent() != null
+                && MessageCodec.BINARY.equals(Encryption.decrypt(usernameMessage.getContent(), ENCRYPTION_KEY))) {
+            // Accept the binary protocol; the client confirms with a "codec" message
+            // once it has switched its side of the connection as well
+            sendMessage(new Message("login", "SERVER", null, MessageCodec.BINARY));
+            enqueue(SWITCH_TO_BINARY);
         }
+        return true;
+    }
+
+    /**
+     * Checks whether the client completed its login in the constructor.
+     *
+     * @return true if the client is registered and its messages should be read.
+     */
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    /**
+     * Gets the username this handler was registered with.
+     *
+     * @return The client's username.
+     */
+    String getClientUsername() {
+        return clientUsername;
     }
 
     /**
@@ -60,46 +174,90 @@ public class ClientHandler implements Runnable {
         try {
             while (socket.isConnected()) {
                 // Read an object from the input stream
-                Message messageFromClient = (Message) objectInputStream.readObject();
+                Message messageFromClient = frameInputStream != null
+                        ? codec.read(frameInputStream)
+                        : (Message) objectInputStream.readObject();
 
                 if (messageFromClient != null) {
-                    // Decrypt the message content
-                    String decryptedContent = Encryption.decrypt(messageFromClient.getContent(), ENCRYPTION_KEY);
-
-                    // Create a new message object with the decrypted content
-                    Message decryptedMessage = new Message(
-                            messageFromClient.getType(),
-                            messageFromClient.getSender(),
-                            messageFromClient.getRecipient(),
-                            decryptedContent);
-
-                    // Handle different message types
-                    switch (decryptedMessage.getType()) {
-                        case "search":
-                            handleSearchRequest(decryptedMessage);
-                            break;
-                        case "downloadRequest":
-                            handleDownloadRequest(decryptedMessage);
-                            break;
-                        case "fileAvailable":
-                            handleFileAvailable(decryptedMessage);
-                            break;
-                        default:
-                            System.out.println("Unhandled message type: " + decryptedMessage.getType());
-                            break;
+                    if (MessageType.CODEC.getWireName().equals(messageFromClient.getType())) {
+                        // Everything after this message arrives as binary frames
+                        frameInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        continue;
                     }
+                    handleMessage(messageFromClient);
                 }
             }
         } catch (IOException | ClassNotFoundException e) {
             // Handle exceptions when the client disconnects
             System.out.println(clientUsername + " has disconnected.");
-            Server.updateClientActivity("A user has disconnected");
+            ServerCore.updateClientActivity("A user has disconnected");
         } finally {
             // Remove the client handler from the server
             removeClientHandler();
         }
     }
 
+    /**
+     * Decrypts a message from the client and handles it according to its type.
+     * Every type handled here carries content, so a message without a type or
+     * content, which a binary frame can encode, is ignored, as is one that
+     * cannot be decrypted.
+     *
+     * @param messageFromClient The encrypted message as received.
+     */
+    void handleMessage(Message messageFromClient) {
+        Metrics.countMessage(MESSAGES_IN, messageFromClient.getType());
+        if (messageFromClient.getType() == null || messageFromClient.getContent() == null) {
+            System.out.println("Ignoring message without type or content from " + clientUsername);
+            return;
+        }
+
+        // Decrypt the message content
+        String decryptedContent = Encryption.decrypt(messageFromClient.getContent(), ENCRYPTION_KEY);
+        if (decryptedContent == null) {
+            System.out.println("Ignoring message that could not be decrypted from " + clientUsername);
+            return;
+        }
+
+        // Create a new message object with the decrypted content
+        Message decryptedMessage = new Message(
+                messageFromClient.getType(),
+                messageFromClient.getSender(),
+                messageFromClient.getRecipient(),
+                decryptedContent);
+
+        // Handle different message types
+        switch (decryptedMessage.getType()) {
+            case "search":
+                handleSearchRequest(decryptedMessage);
+                break;
+            case "downloadRequest":
+                handleDownloadRequest(decryptedMessage);
+                break;
+            case "fileAvailable":
+                handleFileAvailable(decryptedMessage);
+                break;
+            case "catalog":
+                handleCatalog(decryptedMessage);
+                break;
+            case "catalogAdd":
+                handleCatalogChange(decryptedMessage, true);
+                break;
+            case "catalogRemove":
+                handleCatalogChange(decryptedMessage, false);
+                break;
+            case "summary":
+                handleSummary(decryptedMessage);
+                break;
+            case "summaryUpdate":
+                handleSummaryUpdate(decryptedMessage);
+                break;
+            default:
+                System.out.println("Unhandled message type: " + decryptedMessage.getType());
+                break;
+        }
+    }
+
     /**
      * Handles a search request from the client.
      *
@@ -110,7 +268,10 @@ public class ClientHandler implements Runnable {
         System.out.println("Message content: " + message.getContent());
 
         // Perform the search using the server's search manager
-        List<String> searchResults = Server.searchManager.searchFiles(message.getContent());
+        long searchStart = System.nanoTime();
+        List<String> searchResults = ServerCore.searchManager.searchFiles(message.getContent());
+        SEARCH_LATENCY.record((System.nanoTime() - searchStart) / 1000);
+        SEARCH_RESULTS.record(searchResults.size());
 
         // Create a new message with the search results
         Message resultsMessage = new Message(
@@ -124,9 +285,101 @@ public class ClientHandler implements Runnable {
         sendMessage(resultsMessage);
     }
 
+    /**
+     * Handles the full catalog of a client's shared folder, replacing whatever
+     * it published before. The first line is the client's upload port, every
+     * following line a file name.
+     *
+     * @param message The message containing the catalog.
+     */
+    private void handleCatalog(Message message) {
+        String[] lines = message.getContent().split("\n");
+        try {
+            uploadPort = Integer.parseInt(lines[0].trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid catalog from " + clientUsername);
+            return;
+        }
+        ServerCore.fileDirectory.evict(this, sharedFiles);
+        sharedFiles.clear();
+        for (int i = 1; i < lines.length; i++) {
+            if (!lines[i].isEmpty() && sharedFiles.add(lines[i])) {
+                ServerCore.fileDirectory.add(this, lines[i]);
+            }
+        }
+        ServerCore.fileDirectory.markPublished(this);
+    }
+
+    /**
+     * Handles files added to or removed from a client's shared folder after it
+     * published its catalog. Every line of the content is a file name.
+     *
+     * @param message The message containing the file names.
+     * @param added   true if the files were added, false if they were removed.
+     */
+    private void handleCatalogChange(Message message, boolean added) {
+        for (String fileName : message.getContent().split("\n")) {
+            if (fileName.isEmpty()) {
+                continue;
+            }
+            if (added && sharedFiles.add(fileName)) {
+                ServerCore.fileDirectory.add(this, fileName);
+            } else if (!added && sharedFiles.remove(fileName)) {
+                ServerCore.fileDirectory.remove(this, fileName);
+            }
+        }
+    }
+
+    /**
+     * Handles a Bloom filter summary of a client's shared folder, replacing
+     * whatever it published before. The first line is the client's upload
+     * port, followed by the filter as written by {@link BloomFilter#encode()}.
+     *
+     * @param message The message containing the summary.
+     */
+    private void handleSummary(Message message) {
+        String[] lines = message.getContent().split("\n");
+        BloomFilter summary;
+        try {
+            uploadPort = Integer.parseInt(lines[0].trim());
+            summary = BloomFilter.decode(lines, 1);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid summary from " + clientUsername + ": " + e.getMessage());
+            return;
+        }
+        ServerCore.fileDirectory.evict(this, sharedFiles);
+        sharedFiles.clear();
+        ServerCore.fileDirectory.setSummary(this, summary);
+    }
+
+    /**
+     * Handles bits of a client's Bloom filter summary that changed. The content
+     * is a comma separated list of bit positions, each prefixed with "+" if the
+     * bit became set or "-" if it became clear.
+     *
+     * @param message The message containing the changed bits.
+     */
+    private void handleSummaryUpdate(Message message) {
+        BloomFilter summary = ServerCore.fileDirectory.getSummary(this);
+        if (summary == null) {
+            return;
+        }
+        try {
+            for (String change : message.getContent().split(",")) {
+                if (!change.isEmpty()) {
+                    summary.setBit(Integer.parseInt(change.substring(1)), change.charAt(0) == '+');
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid summary update from " + clientUsername + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Handles a download request from a client.
-     * Broadcasts the request to other clients to check for file availability.
+     * Clients that published their catalog and hold the file are known from the
+     * directory, so the requester is pointed at them straight away. Only clients
+     * without a catalog are asked to check for the file.
      *
      * @param message The message containing the requested file name.
      */
@@ -135,18 +388,44 @@ public class ClientHandler implements Runnable {
 
         // Get the requested file name from the message content
         String requestedFile = message.getContent();
+        long sendDeadline = sendDeadline(); // Shared by the whole fan-out
 
-        // Iterate over all connected clients
-        for (ClientHandler clientHandler : clientHandlers) {
-            // Skip the client who initiated the download request
-            if (!clientHandler.clientUsername.equals(this.clientUsername)) {
-                System.out.println("download request in client handler"); // Debugging statement
+        for (ClientHandler holder : ServerCore.fileDirectory.getHolders(requestedFile)) {
+            if (holder != this) {
+                sendMessage(new Message("initiateDownloadFrom", holder.clientUsername, null,
+                        requestedFile + ":" + holder.uploadPort), sendDeadline);
+            }
+        }
 
-                // Send a "checkFile" message to other clients to check for file availability
-                clientHandler
-                        .sendMessage(new Message("checkFile", clientUsername, message.getRecipient(), requestedFile));
+        // Ask the clients that did not publish a catalog, skipping those whose
+        // summary rules the file out
+        int sent = 0;
+        for (ClientHandler clientHandler : ServerCore.fileDirectory.getUnpublished()) {
+            // Skip the client who initiated the download request
+            if (clientHandler != this) {
+                sendCheckFile(clientHandler, message, sendDeadline);
+                sent++;
             }
         }
+        for (Map.Entry<ClientHandler, BloomFilter> entry : ServerCore.fileDirectory.getSummaries().entrySet()) {
+            if (entry.getKey() != this && entry.getValue().mightContain(requestedFile)) {
+                sendCheckFile(entry.getKey(), message, sendDeadline);
+                sent++;
+            }
+        }
+        int peers = Math.max(0, clientHandlers.size() - 1);
+        ServerCore.fileDirectory.recordCheckFiles(sent, Math.max(0, peers - sent));
+        CHECK_FILE_FAN_OUT.record(sent);
+        ServerCore.updateClientActivity("Download request for " + requestedFile + " checked with " + sent + " of "
+                + peers + " clients (" + ServerCore.fileDirectory.getCheckFilesAvoided() + " checks avoided in total)");
+    }
+
+    private void sendCheckFile(ClientHandler clientHandler, Message message, long sendDeadline) {
+        System.out.println("download request in client handler"); // Debugging statement
+
+        // Send a "checkFile" message to another client to check for file availability
+        clientHandler.sendMessage(new Message("checkFile", clientUsername, message.getRecipient(), message.getContent()),
+                sendDeadline);
     }
 
     /**
@@ -181,66 +460,230 @@ public class ClientHandler implements Runnable {
      *         null if not found.
      */
     private ClientHandler findClientHandler(String username) {
-        // Iterate over all connected clients
-        for (ClientHandler handler : clientHandlers) {
-            System.out.println(handler.clientUsername); // Debugging statement
+        return username == null ? null : clientHandlers.get(username);
+    }
 
-            // Check if the client's username matches the provided username
-            if (handler.clientUsername.equals(username)) {
-                return handler; // Return the matching ClientHandler instance
-            }
+    /**
+     * Queues a message for the client. The writer encrypts and sends it later,
+     * so the caller only pays for the enqueue. When the queue is full the
+     * configured {@link ServerConfig.SlowConsumerPolicy} decides what happens.
+     *
+     * @param message The message to be sent.
+     */
+    private void sendMessage(Message message) {
+        sendMessage(message, sendDeadline());
+    }
+
+    /**
+     * Queues a message for the client, waiting under the block policy no
+     * later than a deadline. Messages sent to many clients share one
+     * deadline, so slow clients cannot add up to a long stall of the sender.
+     *
+     * @param message      The message to be sent.
+     * @param sendDeadline The System.nanoTime() after which a full queue is
+     *                     no longer waited on.
+     */
+    private void sendMessage(Message message, long sendDeadline) {
+        if (closed.get()) {
+            return;
         }
+        if (enqueue(message)) {
+            return;
+        }
+        ServerConfig config = ServerCore.getConfig();
+        switch (config.getSlowConsumerPolicy()) {
+            case DROP:
+                MESSAGES_DROPPED.increment();
+                System.out.println("Outbound queue full, dropped " + message.getType() + " for " + clientUsername);
+                return;
+            case BLOCK:
+                try {
+                    long wait = Math.max(0, sendDeadline - System.nanoTime());
+                    if (outbound.offer(message, wait, TimeUnit.NANOSECONDS)) {
+                        Metrics.countMessage(MESSAGES_OUT, message.getType());
+                        wakeWriter();
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            default:
+                break;
+        }
+        SLOW_CLIENTS_DISCONNECTED.increment();
+        System.out.println("Disconnecting slow client " + clientUsername);
+        closeEverything();
+    }
 
-        return null; // Return null if no matching client is found
+    private static long sendDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServerCore.getConfig().getOutboundBlockMillis());
+    }
+
+    private boolean enqueue(Message message) {
+        if (!outbound.offer(message)) {
+            return false;
+        }
+        Metrics.countMessage(MESSAGES_OUT, message.getType());
+        wakeWriter();
+        return true;
     }
 
     /**
-     * Sends a message to the client after encrypting the content.
+     * Counts the messages waiting in every client's outbound queue.
      *
-     * @param message The message to be sent.
+     * @return The number of messages.
      */
-    private void sendMessage(Message message) {
-        try {
-            // Encrypt the message content
-            String encryptedContent = Encryption.encrypt(message.getContent(), ENCRYPTION_KEY);
+    private static long countQueuedMessages() {
+        long queued = 0;
+        for (ClientHandler handler : clientHandlers.values()) {
+            queued += handler.outbound.size();
+        }
+        return queued;
+    }
 
-            // Create a new message with the encrypted content
-            Message encryptedMessage = new Message(message.getType(), message.getSender(), message.getRecipient(),
-                    encryptedContent);
+    private void wakeWriter() {
+        // The blocking engine's writer waits on the queue by itself
+        if (connection != null && writerScheduled.compareAndSet(false, true)) {
+            connection.execute(this::drainToConnection);
+        }
+    }
 
-            // Write the encrypted message to the output stream
-            objectOutputStream.writeObject(encryptedMessage);
-            objectOutputStream.flush();
-        } catch (IOException e) {
-            // If an IOException occurs, close all resources
+    /**
+     * Writer of the thread per client engine. Writes everything that is queued,
+     * then flushes once, so a burst of messages costs one socket write.
+     */
+    private void writeLoop() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, MAX_BATCH - 1);
+                for (Message message : batch) {
+                    if (message == CLOSE) {
+                        objectOutputStream.flush();
+                        return;
+                    } else if (message == SWITCH_TO_BINARY) {
+                        objectOutputStream.flush();
+                        binaryOutbound = true;
+                    } else {
+                        writeMessage(encrypt(message));
+                    }
+                }
+                batch.clear();
+                objectOutputStream.flush(); // also flushes binary frames in the buffer below it
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client is gone; the reader notices and deregisters it
+        } finally {
             closeEverything();
         }
     }
 
+    private void writeMessage(Message encryptedMessage) throws IOException {
+        if (binaryOutbound) {
+            // Write the encrypted message as a binary frame
+            codec.write(encryptedMessage, bufferedOutputStream);
+            return;
+        }
+
+        // Write the encrypted message to the output stream
+        objectOutputStream.writeObject(encryptedMessage);
+        if (++messagesSinceReset >= MessageCodec.OBJECT_STREAM_RESET_INTERVAL) {
+            // Keep the stream's back-reference table from growing for the whole connection
+            objectOutputStream.reset();
+            messagesSinceReset = 0;
+        }
+    }
+
+    /**
+     * Writer of the NIO engine, run on the worker pool whenever the queue goes
+     * from empty to non-empty. It stops early while the socket is backed up and
+     * is resumed by the connection once it has caught up.
+     */
+    private void drainToConnection() {
+        do {
+            try {
+                Message message;
+                while ((message = outbound.poll()) != null) {
+                    if (message == CLOSE) {
+                        connection.close();
+                        return; // stay scheduled so nothing else is written
+                    } else if (message == SWITCH_TO_BINARY) {
+                        connection.enableBinaryOutbound();
+                    } else if (!connection.send(encrypt(message))) {
+                        return; // resumed by resumeWriter
+                    }
+                }
+            } catch (IOException e) {
+                return;
+            }
+            writerScheduled.set(false);
+        } while (!outbound.isEmpty() && writerScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Continues draining the outbound queue after the NIO connection has
+     * written its backlog.
+     */
+    void resumeWriter() {
+        connection.execute(this::drainToConnection);
+    }
+
+    private static Message encrypt(Message message) {
+        // Encrypt the message content
+        String encryptedContent = Encryption.encrypt(message.getContent(), ENCRYPTION_KEY);
+
+        // Create a new message with the encrypted content
+        return new Message(message.getType(), message.getSender(), message.getRecipient(), encryptedContent);
+    }
+
     /**
      * Removes the ClientHandler instance from the server and closes all resources.
      */
     public void removeClientHandler() {
-        // Remove the client's username from the list of active usernames
-        Server.activeUsernames.remove(this.clientUsername);
+        // Release the username, unless it belongs to another handler because this
+        // one was rejected at login
+        if (this.clientUsername != null) {
+            clientHandlers.remove(this.clientUsername, this);
+        }
 
-        // Remove this ClientHandler instance from the list of client handlers
-        clientHandlers.remove(this);
+        // Forget the files this client shared
+        ServerCore.fileDirectory.evict(this, sharedFiles);
 
         // Close all resources
         closeEverything();
     }
 
+    /**
+     * Closes the connection once the messages queued so far have been written.
+     */
+    private void closeAfterFlush() {
+        if (!outbound.offer(CLOSE)) {
+            closeEverything();
+            return;
+        }
+        wakeWriter();
+    }
+
     /**
      * Closes the input and output streams, and the socket connection.
      */
     private void closeEverything() {
-        try {
-            // Close the output stream if it's not null
-            if (objectOutputStream != null)
-                objectOutputStream.close();
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        // Discard unsent messages and release a writer waiting on the queue
+        outbound.clear();
+        outbound.offer(CLOSE);
 
-            // Close the input stream if it's not null
+        if (connection != null) {
+            connection.abort();
+            return;
+        }
+        try {
+            // Closing the socket also fails a writer blocked on it; the writer owns
+            // the output stream and stops by itself
             if (objectInputStream != null)
                 objectInputStream.close();
 
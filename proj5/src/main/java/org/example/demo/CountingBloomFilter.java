@@ -0,0 +1,114 @@
+package org.example.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The CountingBloomFilter class keeps a counter instead of a bit for every
+ * position, so names can be removed as well as added without rebuilding the
+ * filter. A client keeps one for its shared folder and tells the server which
+ * bits of the equivalent {@link BloomFilter} changed.
+ * Counters stop at 255; a saturated counter is never decremented again, which
+ * can only cause false positives. Not thread-safe.
+ */
+public class CountingBloomFilter {
+    private static final int MAX_COUNT = 0xFF;
+
+    private final int expectedNames;
+    private final int hashCount;
+    private final byte[] counters;
+    private int size;
+
+    /**
+     * Constructs an empty CountingBloomFilter sized for a number of names.
+     *
+     * @param expectedNames     The number of names the filter should hold.
+     * @param falsePositiveRate The acceptable false positive rate, between 0 and 1.
+     */
+    public CountingBloomFilter(int expectedNames, double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        this.expectedNames = expectedNames;
+        int bitCount = BloomFilter.optimalBitCount(expectedNames, falsePositiveRate);
+        this.hashCount = BloomFilter.optimalHashCount(bitCount, expectedNames);
+        this.counters = new byte[bitCount];
+    }
+
+    /**
+     * Adds a name.
+     *
+     * @param name The file name.
+     * @return The bit positions that became set.
+     */
+    public List<Integer> add(String name) {
+        List<Integer> changed = new ArrayList<>();
+        for (int position : BloomFilter.positions(name, counters.length, hashCount)) {
+            int count = counters[position] & MAX_COUNT;
+            if (count == 0) {
+                changed.add(position);
+            }
+            if (count < MAX_COUNT) {
+                counters[position] = (byte) (count + 1);
+            }
+        }
+        size++;
+        return changed;
+    }
+
+    /**
+     * Removes a name. The name must have been added before.
+     *
+     * @param name The file name.
+     * @return The bit positions that became clear.
+     */
+    public List<Integer> remove(String name) {
+        List<Integer> changed = new ArrayList<>();
+        for (int position : BloomFilter.positions(name, counters.length, hashCount)) {
+            int count = counters[position] & MAX_COUNT;
+            if (count > 0 && count < MAX_COUNT) {
+                counters[position] = (byte) (count - 1);
+                if (count == 1) {
+                    changed.add(position);
+                }
+            }
+        }
+        size--;
+        return changed;
+    }
+
+    /**
+     * Gets the number of names in the filter.
+     *
+     * @return The number of names.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of names the filter was sized for. Beyond that the false
+     * positive rate grows, and the filter should be rebuilt larger.
+     *
+     * @return The expected number of names.
+     */
+    public int getExpectedNames() {
+        return expectedNames;
+    }
+
+    /**
+     * Builds the plain filter the server keeps, with a bit set wherever a
+     * counter is not zero.
+     *
+     * @return The equivalent BloomFilter.
+     */
+    public BloomFilter toBloomFilter() {
+        BloomFilter filter = new BloomFilter(counters.length, hashCount);
+        for (int i = 0; i < counters.length; i++) {
+            if (counters[i] != 0) {
+                filter.setBit(i, true);
+            }
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,219 @@
+package org.example.demo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The DownloadJournal class records how far a download got, so it can be
+ * resumed after the client restarts. It lives beside the partial file as
+ * "name.journal" and holds the name of the file, where it is saved, the
+ * identity of the source file (its size and the hash of its manifest) and
+ * which pieces are already on disk.
+ * A journal is always replaced as a whole: it is written to a temporary file,
+ * synced and then renamed over the old one, so a crash leaves either the old
+ * or the new journal, never a torn one.
+ */
+public class DownloadJournal {
+    /** Appended to the partial file's name to get its journal's name. */
+    public static final String SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x4A524E31; // "JRN1"
+
+    private final String fileName;
+    private final String savePath;
+    private final long fileSize;
+    private final byte[] manifestDigest;
+    private final BitSet completedPieces;
+
+    /**
+     * Constructs a DownloadJournal.
+     *
+     * @param fileName        The name of the file as its holders share it.
+     * @param savePath        The local path the file is saved to.
+     * @param fileSize        The size of the source file.
+     * @param manifestDigest  The source file's {@link FileManifest#getDigest()}.
+     * @param completedPieces The pieces already written and synced.
+     */
+    public DownloadJournal(String fileName, String savePath, long fileSize, byte[] manifestDigest,
+            BitSet completedPieces) {
+        this.fileName = fileName;
+        this.savePath = savePath;
+        this.fileSize = fileSize;
+        this.manifestDigest = manifestDigest;
+        this.completedPieces = completedPieces;
+    }
+
+    /**
+     * Gets the path of the journal of a download.
+     *
+     * @param savePath The local path the file is saved to.
+     * @return The journal's path.
+     */
+    public static Path pathFor(String savePath) {
+        return Paths.get(savePath + SUFFIX);
+    }
+
+    /**
+     * Reads the journal of a download.
+     *
+     * @param savePath The local path the file is saved to.
+     * @return The journal, or null if the download has none.
+     * @throws IOException If the journal cannot be read or is not a journal.
+     */
+    public static DownloadJournal read(String savePath) throws IOException {
+        try {
+            return read(pathFor(savePath));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static DownloadJournal read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FileManifest.CHUNK_SIZE) {
+                throw new IOException("Not a download journal: " + path);
+            }
+            String fileName = in.readUTF();
+            String savePath = in.readUTF();
+            long fileSize = in.readLong();
+            byte[] manifestDigest = new byte[FileManifest.HASH_LENGTH];
+            in.readFully(manifestDigest);
+            int words = in.readInt();
+            if (fileSize < 0 || words < 0 || words > FileManifest.chunkCount(fileSize) / 64 + 1) {
+                throw new IOException("Invalid download journal: " + path);
+            }
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = in.readLong();
+            }
+            return new DownloadJournal(fileName, savePath, fileSize, manifestDigest, BitSet.valueOf(bits));
+        }
+    }
+
+    /**
+     * Finds the journals of every incomplete download in a folder.
+     * Unreadable journals are skipped.
+     *
+     * @param folder The folder downloads are saved to.
+     * @return The journals found.
+     */
+    public static List<DownloadJournal> findAll(Path folder) {
+        List<DownloadJournal> journals = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return journals;
+        }
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(folder, "*" + SUFFIX)) {
+            for (Path path : paths) {
+                try {
+                    journals.add(read(path));
+                } catch (IOException e) {
+                    System.out.println("Ignoring unreadable journal " + path + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not look for journals in " + folder + ": " + e.getMessage());
+        }
+        return journals;
+    }
+
+    /**
+     * Replaces the download's journal with this one.
+     *
+     * @throws IOException If the journal cannot be written.
+     */
+    public void write() throws IOException {
+        Path path = pathFor(savePath);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FileManifest.CHUNK_SIZE);
+            out.writeUTF(fileName);
+            out.writeUTF(savePath);
+            out.writeLong(fileSize);
+            out.write(manifestDigest);
+            long[] bits = completedPieces.toLongArray();
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+            out.flush();
+            file.getFD().sync(); // On disk before it replaces the old journal
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the journal of a download, once the download is complete or
+     * abandoned.
+     *
+     * @param savePath The local path the file is saved to.
+     */
+    public static void delete(String savePath) {
+        try {
+            Files.deleteIfExists(pathFor(savePath));
+        } catch (IOException e) {
+            System.out.println("Could not delete journal of " + savePath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether the journal was written for the same source file as a
+     * manifest describes.
+     *
+     * @param manifest The manifest sent by a source.
+     * @return true if the recorded pieces belong to that file.
+     */
+    public boolean matches(FileManifest manifest) {
+        return manifest.getFileSize() == fileSize && MessageDigest.isEqual(manifestDigest, manifest.getDigest());
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getSavePath() {
+        return savePath;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Checks whether a piece was recorded as written.
+     *
+     * @param piece The piece index.
+     * @return true if the piece is on disk.
+     */
+    public boolean isComplete(int piece) {
+        return completedPieces.get(piece);
+    }
+
+    /**
+     * Gets the number of bytes in the recorded pieces.
+     *
+     * @return The number of completed bytes.
+     */
+    public long getCompletedBytes() {
+        long bytes = 0;
+        for (int i = completedPieces.nextSetBit(0); i >= 0; i = completedPieces.nextSetBit(i + 1)) {
+            bytes += Math.max(0, Math.min(FileManifest.CHUNK_SIZE, fileSize - (long) i * FileManifest.CHUNK_SIZE));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,169 @@
+package org.example.demo;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The DownloadSession class is one download managed by a
+ * {@link FileTransferManager}: its identifier, its state and its progress.
+ * Each session pauses and resumes on its own. The bytes themselves are fetched
+ * by the session's {@link SwarmDownload}.
+ */
+public class DownloadSession implements SwarmDownload.Listener {
+
+    /**
+     * The states a download goes through.
+     * QUEUED sessions wait for a free download slot, RUNNING ones transfer,
+     * PAUSED ones wait for the user and WAITING ones, resumed from a journal
+     * after a restart, wait for a peer holding the file. COMPLETED and FAILED
+     * are final until the user resumes a failed session or another source for
+     * it appears.
+     */
+    public enum State {
+        QUEUED, RUNNING, PAUSED, WAITING, COMPLETED, FAILED
+    }
+
+    private final int id;
+    private final String fileName;
+    private final String savePath;
+    private final FileTransferManager manager;
+    private SwarmDownload swarm;
+    private volatile State state = State.QUEUED;
+    private volatile long completedBytes;
+    private volatile long fileSize = -1;
+    private final CompletableFuture<DownloadSession> completion = new CompletableFuture<>();
+
+    /**
+     * Constructs a DownloadSession in the QUEUED state.
+     *
+     * @param id       The session's identifier, unique within its manager.
+     * @param fileName The name of the file being downloaded.
+     * @param savePath The local path the file is saved to.
+     * @param manager  The manager the session reports to.
+     */
+    DownloadSession(int id, String fileName, String savePath, FileTransferManager manager) {
+        this.id = id;
+        this.fileName = fileName;
+        this.savePath = savePath;
+        this.manager = manager;
+    }
+
+    void setSwarm(SwarmDownload swarm) {
+        this.swarm = swarm;
+    }
+
+    SwarmDownload getSwarm() {
+        return swarm;
+    }
+
+    void setState(State state) {
+        this.state = state;
+        if (state == State.COMPLETED) {
+            completion.complete(this);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getSavePath() {
+        return savePath;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Gets a future that completes with this session once the file is
+     * downloaded and verified. A FAILED session is retried with the sources
+     * found later, so the future does not fail with it; wait with a timeout
+     * instead, for example with orTimeout.
+     *
+     * @return The future of the completed download.
+     */
+    public CompletableFuture<DownloadSession> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Gets how far the download is; this is also the offset a resume starts
+     * from, although pieces are verified again before being trusted.
+     *
+     * @return The number of bytes written and verified.
+     */
+    public long getCompletedBytes() {
+        return completedBytes;
+    }
+
+    /**
+     * Gets the number of bytes received so far, growing with every chunk.
+     *
+     * @return The number of received bytes.
+     */
+    public long getReceivedBytes() {
+        return swarm == null ? 0 : swarm.getReceivedBytes();
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return The size, or -1 until a source has answered.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Gets the progress of the download.
+     *
+     * @return The progress, from 0 to 1.
+     */
+    public double getProgress() {
+        if (state == State.COMPLETED) {
+            return 1.0;
+        }
+        return fileSize <= 0 ? 0.0 : completedBytes / (double) fileSize;
+    }
+
+    /**
+     * Checks whether the download is running or will run without the user
+     * resuming it.
+     *
+     * @return true if the session is RUNNING, QUEUED or WAITING.
+     */
+    public boolean isActive() {
+        return state == State.RUNNING || state == State.QUEUED || state == State.WAITING;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return state != State.RUNNING;
+    }
+
+    @Override
+    public void progress(long completedBytes, long fileSize) {
+        this.completedBytes = completedBytes;
+        this.fileSize = fileSize;
+        manager.sessionChanged(this);
+    }
+
+    @Override
+    public void finished() {
+        manager.sessionStopped(this, State.COMPLETED);
+    }
+
+    @Override
+    public void failed() {
+        manager.sessionStopped(this, State.FAILED);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + fileName + " (" + state + ")";
+    }
+}
@@ -1,15 +1,62 @@
 package org.example.demo;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * The Encryption class encrypts message content with AES. An instance is a
+ * crypto context for one key: the key is derived once and every thread keeps
+ * its own initialised ciphers, so a call costs only the AES work itself.
+ * The static methods keep the original string API and share one context per
+ * key. Content is only logged when the encryption.debug system property is
+ * true.
+ */
 public class Encryption {
     private static final String ALGORITHM = "AES";
     private static final int KEY_SIZE = 128;
+    private static final boolean DEBUG = Boolean.getBoolean("encryption.debug");
+    private static final ConcurrentMap<String, Encryption> CONTEXTS = new ConcurrentHashMap<>();
+
+    private final Key secretKey;
+    private final ThreadLocal<Cipher> encryptCipher;
+    private final ThreadLocal<Cipher> decryptCipher;
+
+    /**
+     * Constructs a crypto context for a key.
+     *
+     * @param key The encryption key.
+     * @throws GeneralSecurityException If the key cannot be derived.
+     */
+    public Encryption(String key) throws GeneralSecurityException {
+        this.secretKey = generateKey(key);
+        this.encryptCipher = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE));
+        this.decryptCipher = ThreadLocal.withInitial(() -> newCipher(Cipher.DECRYPT_MODE));
+    }
+
+    /**
+     * Gets the shared crypto context for a key, creating it on first use.
+     *
+     * @param key The encryption key.
+     * @return The context for the key.
+     */
+    public static Encryption forKey(String key) {
+        return CONTEXTS.computeIfAbsent(key, k -> {
+            try {
+                return new Encryption(k);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot derive encryption key", e);
+            }
+        });
+    }
 
     /**
      * Encrypts the given content using the provided key.
@@ -20,26 +67,7 @@ public class Encryption {
      */
     public static String encrypt(String content, String key) {
         try {
-            System.out.println("Content before encryption: " + content); // Debugging statement
-
-            // Generate the secret key from the provided key
-            Key secretKey = generateKey(key);
-
-            // Get an instance of the cipher algorithm
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-
-            // Initialize the cipher in encryption mode with the secret key
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-
-            // Encrypt the content
-            byte[] encryptedBytes = cipher.doFinal(content.getBytes());
-
-            // Encode the encrypted bytes to a Base64 string
-            String encryptedContent = Base64.getEncoder().encodeToString(encryptedBytes);
-
-            System.out.println("Encrypted content: " + encryptedContent); // Debugging statement
-
-            return encryptedContent;
+            return forKey(key).encrypt(content);
         } catch (Exception e) {
             e.printStackTrace(); // Print the stack trace if an exception occurs
             return null;
@@ -55,29 +83,119 @@ public class Encryption {
      */
     public static String decrypt(String encryptedContent, String key) {
         try {
-            System.out.println("Encrypted content before decryption: " + encryptedContent); // Debugging statement
+            return forKey(key).decrypt(encryptedContent);
+        } catch (Exception e) {
+            e.printStackTrace(); // Print the stack trace if an exception occurs
+            return null;
+        }
+    }
+
+    /**
+     * Encrypts text and encodes the result in Base64, for transports that
+     * carry strings.
+     *
+     * @param content The content to be encrypted.
+     * @return The Base64 encoded ciphertext.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public String encrypt(String content) throws GeneralSecurityException {
+        if (DEBUG) {
+            System.out.println("Content before encryption: " + content); // Debugging statement
+        }
+        String encryptedContent = Base64.getEncoder()
+                .encodeToString(encrypt(content.getBytes(StandardCharsets.UTF_8)));
+        if (DEBUG) {
+            System.out.println("Encrypted content: " + encryptedContent); // Debugging statement
+        }
+        return encryptedContent;
+    }
 
-            // Generate the secret key from the provided key
-            Key secretKey = generateKey(key);
+    /**
+     * Decrypts Base64 encoded ciphertext written by {@link #encrypt(String)}.
+     *
+     * @param encryptedContent The Base64 encoded ciphertext.
+     * @return The decrypted text.
+     * @throws GeneralSecurityException If decryption fails.
+     */
+    public String decrypt(String encryptedContent) throws GeneralSecurityException {
+        if (DEBUG) {
+            System.out.println("Encrypted content before decryption: " + encryptedContent); // Debugging statement
+        }
+        String decryptedContent = new String(decrypt(Base64.getDecoder().decode(encryptedContent)),
+                StandardCharsets.UTF_8);
+        if (DEBUG) {
+            System.out.println("Decrypted content: " + decryptedContent); // Debugging statement
+        }
+        return decryptedContent;
+    }
 
-            // Get an instance of the cipher algorithm
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
+    /**
+     * Encrypts bytes, for binary transports that need no Base64 step.
+     *
+     * @param plaintext The bytes to be encrypted.
+     * @return The ciphertext.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        return encryptCipher.get().doFinal(plaintext);
+    }
 
-            // Initialize the cipher in decryption mode with the secret key
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+    /**
+     * Decrypts bytes written by {@link #encrypt(byte[])}.
+     *
+     * @param ciphertext The ciphertext.
+     * @return The plaintext.
+     * @throws GeneralSecurityException If decryption fails.
+     */
+    public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException {
+        return decryptCipher.get().doFinal(ciphertext);
+    }
 
-            // Decode the encrypted content from Base64 to bytes
-            byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedContent));
+    /**
+     * Encrypts the remaining bytes of a buffer into another buffer without
+     * allocating. The output needs room for {@link #encryptedLength(int)} bytes.
+     *
+     * @param plaintext The bytes to be encrypted; its position is advanced to its limit.
+     * @param output    The buffer receiving the ciphertext.
+     * @return The number of bytes written to the output.
+     * @throws GeneralSecurityException If encryption fails or the output is too small.
+     */
+    public int encrypt(ByteBuffer plaintext, ByteBuffer output) throws GeneralSecurityException {
+        return encryptCipher.get().doFinal(plaintext, output);
+    }
 
-            // Convert the decrypted bytes to a string
-            String decryptedContent = new String(decryptedBytes);
+    /**
+     * Decrypts the remaining bytes of a buffer into another buffer without
+     * allocating. The output needs as much room as the ciphertext.
+     *
+     * @param ciphertext The ciphertext; its position is advanced to its limit.
+     * @param output     The buffer receiving the plaintext.
+     * @return The number of bytes written to the output.
+     * @throws GeneralSecurityException If decryption fails or the output is too small.
+     */
+    public int decrypt(ByteBuffer ciphertext, ByteBuffer output) throws GeneralSecurityException {
+        return decryptCipher.get().doFinal(ciphertext, output);
+    }
 
-            System.out.println("Decrypted content: " + decryptedContent); // Debugging statement
+    /**
+     * Gets the length of the ciphertext for a plaintext length, including the
+     * block padding.
+     *
+     * @param plaintextLength The plaintext length in bytes.
+     * @return The ciphertext length in bytes.
+     */
+    public int encryptedLength(int plaintextLength) {
+        return (plaintextLength / 16 + 1) * 16;
+    }
 
-            return decryptedContent;
-        } catch (Exception e) {
-            e.printStackTrace(); // Print the stack trace if an exception occurs
-            return null;
+    private Cipher newCipher(int mode) {
+        try {
+            // Get an instance of the cipher algorithm and initialize it once for this thread
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(mode, secretKey);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES is not available", e);
         }
     }
 
@@ -86,11 +204,11 @@ public class Encryption {
      *
      * @param keyString The key string.
      * @return The generated secret key.
-     * @throws Exception If an exception occurs during key generation.
+     * @throws GeneralSecurityException If an exception occurs during key generation.
      */
-    private static Key generateKey(String keyString) throws Exception {
+    private static Key generateKey(String keyString) throws GeneralSecurityException {
         // Convert the key string to bytes
-        byte[] keyBytes = keyString.getBytes();
+        byte[] keyBytes = keyString.getBytes(StandardCharsets.UTF_8);
 
         // Get an instance of the SHA-1 message digest
         MessageDigest sha = MessageDigest.getInstance("SHA-1");
@@ -104,4 +222,4 @@ public class Encryption {
         // Create a SecretKeySpec object with the key bytes and the algorithm
         return new SecretKeySpec(keyBytes, ALGORITHM);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+package org.example.demo;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The FileDirectory class is the server's map from file name to the connected
+ * clients that share it. Clients publish their shared folder when they log in
+ * and send changes afterwards, so a download request can be answered by
+ * looking up the holders instead of asking every client to check its disk.
+ * Clients may instead publish a Bloom filter summary of their folder, which is
+ * smaller but can only say that a client might hold a file; those clients are
+ * asked with "checkFile" when their filter matches. Clients that publish
+ * nothing (older versions) are always asked.
+ */
+public class FileDirectory {
+    private final ConcurrentMap<String, Set<ClientHandler>> holders = new ConcurrentHashMap<>();
+    private final Set<ClientHandler> unpublished = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<ClientHandler, BloomFilter> summaries = new ConcurrentHashMap<>();
+    private final AtomicLong checkFilesSent = new AtomicLong();
+    private final AtomicLong checkFilesAvoided = new AtomicLong();
+
+    /**
+     * Records a newly logged in client that has not published a catalog yet.
+     *
+     * @param handler The client's handler.
+     */
+    public void register(ClientHandler handler) {
+        unpublished.add(handler);
+    }
+
+    /**
+     * Marks a client as publishing its catalog, so it is no longer asked with
+     * "checkFile".
+     *
+     * @param handler The client's handler.
+     */
+    public void markPublished(ClientHandler handler) {
+        unpublished.remove(handler);
+        summaries.remove(handler);
+    }
+
+    /**
+     * Records a client's Bloom filter summary, replacing any earlier summary.
+     *
+     * @param handler The client's handler.
+     * @param summary The filter of the client's shared file names.
+     */
+    public void setSummary(ClientHandler handler, BloomFilter summary) {
+        summaries.put(handler, summary);
+        unpublished.remove(handler);
+    }
+
+    /**
+     * Gets a client's Bloom filter summary.
+     *
+     * @param handler The client's handler.
+     * @return The summary, or null if the client did not send one.
+     */
+    public BloomFilter getSummary(ClientHandler handler) {
+        return summaries.get(handler);
+    }
+
+    /**
+     * Records that a client shares a file.
+     *
+     * @param handler  The client's handler.
+     * @param fileName The shared file name.
+     */
+    public void add(ClientHandler handler, String fileName) {
+        holders.compute(fileName, (name, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(handler);
+            return set;
+        });
+    }
+
+    /**
+     * Records that a client no longer shares a file.
+     *
+     * @param handler  The client's handler.
+     * @param fileName The file name.
+     */
+    public void remove(ClientHandler handler, String fileName) {
+        holders.computeIfPresent(fileName, (name, set) -> {
+            set.remove(handler);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Removes every trace of a disconnected client.
+     *
+     * @param handler   The client's handler.
+     * @param fileNames The file names the client had published.
+     */
+    public void evict(ClientHandler handler, Iterable<String> fileNames) {
+        unpublished.remove(handler);
+        summaries.remove(handler);
+        for (String fileName : fileNames) {
+            remove(handler, fileName);
+        }
+    }
+
+    /**
+     * Gets the clients known to share a file.
+     *
+     * @param fileName The file name.
+     * @return A live, weakly consistent view of the holders.
+     */
+    public Set<ClientHandler> getHolders(String fileName) {
+        Set<ClientHandler> set = holders.get(fileName);
+        return set == null ? Collections.emptySet() : set;
+    }
+
+    /**
+     * Gets the clients that have not published a catalog and have to be asked
+     * whether they hold a file.
+     *
+     * @return A live, weakly consistent view of those clients.
+     */
+    public Set<ClientHandler> getUnpublished() {
+        return unpublished;
+    }
+
+    /**
+     * Gets the clients that published a Bloom filter summary.
+     *
+     * @return A live, weakly consistent view of the clients and their summaries.
+     */
+    public Map<ClientHandler, BloomFilter> getSummaries() {
+        return summaries;
+    }
+
+    /**
+     * Records the outcome of routing one download request.
+     *
+     * @param sent    The number of "checkFile" messages sent.
+     * @param avoided The number of clients that a broadcast would have asked
+     *                but were not.
+     */
+    public void recordCheckFiles(int sent, int avoided) {
+        checkFilesSent.addAndGet(sent);
+        checkFilesAvoided.addAndGet(avoided);
+    }
+
+    /**
+     * Gets the number of "checkFile" messages sent since the server started.
+     *
+     * @return The number of messages sent.
+     */
+    public long getCheckFilesSent() {
+        return checkFilesSent.get();
+    }
+
+    /**
+     * Gets the number of "checkFile" messages that a broadcast to every client
+     * would have sent but the directory and the summaries made unnecessary.
+     *
+     * @return The number of messages avoided.
+     */
+    public long getCheckFilesAvoided() {
+        return checkFilesAvoided.get();
+    }
+}
@@ -0,0 +1,251 @@
+package org.example.demo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+/**
+ * The FileManifest class lists the SHA-256 hash of every chunk of a shared
+ * file, so a downloader can verify each chunk as it arrives and check which
+ * chunks of a partial download are already correct.
+ * Hashing a large file is spread over all cores. The result is cached in a
+ * .manifests folder beside the shared folder and recomputed when the file's
+ * size or modification time changes.
+ */
+public class FileManifest {
+    /** Bytes per hashed chunk; the last chunk may be shorter. */
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    /** Bytes per chunk hash. */
+    public static final int HASH_LENGTH = 32;
+
+    private static final int MAGIC = 0x4D414E31; // "MAN1"
+    private static final int MAX_CHUNKS = 1 << 20; // Files up to 4 TiB
+
+    private final long fileSize;
+    private final long lastModified;
+    private final byte[][] hashes;
+
+    private FileManifest(long fileSize, long lastModified, byte[][] hashes) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Gets the manifest of a shared file, from the cache if it still matches
+     * the file, otherwise by hashing the file and caching the result.
+     *
+     * @param file The shared file.
+     * @return The file's manifest.
+     * @throws IOException If the file cannot be read.
+     */
+    public static FileManifest forFile(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Path cached = cachePath(file);
+        if (Files.exists(cached)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cached)))) {
+                if (in.readInt() == MAGIC && in.readLong() == size && in.readLong() == lastModified) {
+                    return new FileManifest(size, lastModified, readHashes(in, size));
+                }
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable manifest " + cached + ": " + e.getMessage());
+            }
+        }
+
+        FileManifest manifest;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            manifest = new FileManifest(size, lastModified, hashChunks(channel, size));
+        }
+        try {
+            manifest.save(cached);
+        } catch (IOException e) {
+            System.out.println("Could not cache manifest for " + file + ": " + e.getMessage());
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads a manifest as sent by {@link #write(DataOutputStream)}, once the
+     * file size it starts with has been read.
+     *
+     * @param size The file size read from the stream.
+     * @param in   The stream to read the rest from.
+     * @return The manifest.
+     * @throws IOException If the stream ends early or holds an invalid manifest.
+     */
+    public static FileManifest read(long size, DataInputStream in) throws IOException {
+        if (size < 0 || in.readInt() != CHUNK_SIZE || chunkCount(size) > MAX_CHUNKS) {
+            throw new IOException("Invalid manifest");
+        }
+        return new FileManifest(size, 0, readHashes(in, size));
+    }
+
+    /**
+     * Sends the manifest to a downloader: the file size, the chunk size and
+     * the chunk hashes.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(fileSize);
+        out.writeInt(CHUNK_SIZE);
+        for (byte[] hash : hashes) {
+            out.write(hash);
+        }
+    }
+
+    /**
+     * Gets the number of chunks a file of some size is hashed in.
+     *
+     * @param fileSize The size of the file.
+     * @return The number of chunks.
+     */
+    public static int chunkCount(long fileSize) {
+        return (int) Math.max(1, (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkCount() {
+        return hashes.length;
+    }
+
+    /**
+     * Gets a hash identifying the file's content: the SHA-256 of every chunk
+     * hash in turn.
+     *
+     * @return The hash of the chunk hashes.
+     */
+    public byte[] getDigest() {
+        MessageDigest digest = newDigest();
+        for (byte[] hash : hashes) {
+            digest.update(hash);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Checks a chunk's hash against the manifest.
+     *
+     * @param index The chunk index.
+     * @param hash  The hash of the received chunk.
+     * @return true if the chunk is correct.
+     */
+    public boolean matches(int index, byte[] hash) {
+        return MessageDigest.isEqual(hashes[index], hash);
+    }
+
+    /**
+     * Checks which chunks of a partially downloaded file are already correct,
+     * hashing the chunks in parallel.
+     *
+     * @param channel The partial file.
+     * @return For every chunk, whether it is complete and correct.
+     * @throws IOException If the file cannot be read.
+     */
+    public boolean[] verify(FileChannel channel) throws IOException {
+        boolean[] valid = new boolean[hashes.length];
+        long available = Math.min(channel.size(), fileSize);
+        try {
+            IntStream.range(0, hashes.length).parallel().forEach(i -> {
+                long end = Math.min(fileSize, (long) (i + 1) * CHUNK_SIZE);
+                if (end <= available) {
+                    valid[i] = matches(i, hashChunk(channel, i, fileSize));
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return valid;
+    }
+
+    /**
+     * Creates a digest for hashing one chunk as it arrives.
+     *
+     * @return A fresh SHA-256 digest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[][] hashChunks(FileChannel channel, long size) throws IOException {
+        byte[][] hashes = new byte[chunkCount(size)][];
+        try {
+            IntStream.range(0, hashes.length).parallel().forEach(i -> hashes[i] = hashChunk(channel, i, size));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return hashes;
+    }
+
+    private static byte[] hashChunk(FileChannel channel, int index, long size) {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = (long) index * CHUNK_SIZE;
+        long end = Math.min(size, position + CHUNK_SIZE);
+        try {
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position); // Positional, so threads can share the channel
+                if (read < 0) {
+                    break;
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return digest.digest();
+    }
+
+    private static byte[][] readHashes(DataInputStream in, long size) throws IOException {
+        byte[][] hashes = new byte[chunkCount(size)][HASH_LENGTH];
+        for (byte[] hash : hashes) {
+            in.readFully(hash);
+        }
+        return hashes;
+    }
+
+    private void save(Path cached) throws IOException {
+        Files.createDirectories(cached.getParent());
+        Path temporary = cached.resolveSibling(cached.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(fileSize);
+            out.writeLong(lastModified);
+            for (byte[] hash : hashes) {
+                out.write(hash);
+            }
+        }
+        Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path cachePath(File file) {
+        Path path = file.toPath().toAbsolutePath();
+        Path folder = path.getParent();
+        Path base = folder.getParent() != null ? folder.getParent() : folder;
+        return base.resolve(".manifests").resolve(folder.getFileName() + "-" + path.getFileName() + ".manifest");
+    }
+}
@@ -4,56 +4,131 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import javafx.application.Platform;
-import javafx.scene.control.ProgressBar;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
+/**
+ * The FileTransferManager class handles file transfer operations between clients.
+ * It serves this peer's shared files to other peers, and keeps a registry of
+ * {@link DownloadSession}s for the files this peer downloads. Each download
+ * has its own state and can be paused and resumed on its own; at most
+ * transfer.maxConcurrent downloads run at once and the rest wait in a queue.
+ * Every few seconds each download's progress is saved to its
+ * {@link DownloadJournal}, so incomplete downloads can be adopted again after
+ * a restart. Completed downloads leave the registry; the last
+ * transfer.finishedKept of them (100 by default) are still listed.
+ * Transfers pass through a tree of {@link BandwidthLimiter}s: each upload
+ * and each download has its own limiter, below one for all uploads or all
+ * downloads, below one for all transfers. Every rate is in bytes per second,
+ * 0 meaning unlimited, and can be changed while transfers run.
+ * Uploads run in a fixed number of slots of a {@link TransferScheduler};
+ * requesters beyond its queue are told to retry later.
+ * Bytes sent and received, running and queued transfers and rejected
+ * uploads are counted in the {@link Metrics} under "transfer.", summed over
+ * every manager in the process.
+ */
 public class FileTransferManager {
-    private ExecutorService executorService; // To manage threads efficiently
-    private volatile boolean pauseDownloadFlag = false; // Flag to control download pausing
-    private long downloadOffset = 0; // Variable to store the download offset
-    private boolean isDownloadPaused = false; // Variable to track if the download is paused
-
-    private ProgressBar progressBar;
+    private ExecutorService executorService; // Runs the download workers
+    private final ScheduledExecutorService scheduler; // Journal writes and source searches
     private ChatGuiController chatGuiController;
     ServerController serverController;
     private int port;
+    private ServerSocket uploadServerSocket;
+    private volatile boolean closed;
 
-    private String serverAddress;
-    private int serverPort;
-    private String fileToDownload;
-    private String savePath;
+    final String uploadPath; // The shared folder, ending with a separator
 
-    String uploadPath = System.getProperty("user.dir") + "/files/";
+    private static final String TRANSFER_KEY = "mySecretKey"; // The peers' shared secret, as for messages
+    // Downloads ask for encrypted chunks unless -Dtransfer.encrypted=false
+    private final boolean encryptTransfers = Boolean.parseBoolean(System.getProperty("transfer.encrypted", "true"));
+    // Plaintext uploads use FileChannel.transferTo unless -Dtransfer.zeroCopy=false
+    private final boolean zeroCopy = Boolean.parseBoolean(System.getProperty("transfer.zeroCopy", "true"));
+    // Downloads fetch ranges from this many holders at once; 1 downloads from a single peer
+    private final int maxSourcesPerDownload = Math.max(1, Integer.getInteger("transfer.maxSources", 8));
+    private final int maxConcurrentDownloads = Math.max(1, Integer.getInteger("transfer.maxConcurrent", 3));
+    // How often download progress is saved to the journals, and how often a source is looked for
+    private final long journalIntervalMillis = Math.max(100, Long.getLong("transfer.journalIntervalMillis", 2000));
+    private final long sourceRetrySeconds = Math.max(1, Long.getLong("transfer.sourceRetrySeconds", 30));
+    // Bandwidth caps, from transfer.maxRate, transfer.uploadRate, transfer.downloadRate,
+    // transfer.perUploadRate and transfer.perDownloadRate
+    private final BandwidthLimiter totalLimiter = new BandwidthLimiter("all transfers",
+            Long.getLong("transfer.maxRate", 0), null);
+    private final BandwidthLimiter uploadLimiter = totalLimiter.newChild("uploads",
+            Long.getLong("transfer.uploadRate", 0));
+    private final BandwidthLimiter downloadLimiter = totalLimiter.newChild("downloads",
+            Long.getLong("transfer.downloadRate", 0));
+    private volatile long perUploadRate = Long.getLong("transfer.perUploadRate", 0);
+    private volatile long perDownloadRate = Long.getLong("transfer.perDownloadRate", 0);
+    private final Set<BandwidthLimiter> uploadLimiters = ConcurrentHashMap.newKeySet(); // Of running uploads
+    // Run transfers on virtual threads, which makes many waiting or idle transfers cheap
+    private final boolean virtualThreads = Boolean.getBoolean("transfer.virtualThreads");
+    private final TransferScheduler uploadScheduler = new TransferScheduler(
+            Integer.getInteger("transfer.uploadSlots", 8), Integer.getInteger("transfer.uploadQueue", 32),
+            Long.getLong("transfer.busyRetryMillis", 500), virtualThreads);
+    private static final long BUSY_CLOSE_DELAY_SECONDS = 2;
+    private static final long TRANSFER_SLICE = 8L * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final Metrics.Counter BYTES_UPLOADED = Metrics.counter("transfer.bytesUploaded");
+    private static final Metrics.Counter UPLOADS_REJECTED = Metrics.counter("transfer.uploadsRejected");
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>(); // Added to the metrics by name
 
-    /**
-     * The FileTransferManager class handles file transfer operations between clients.
-     * It provides methods for uploading and downloading files, as well as managing
-     * the upload server and download progress.
-     */
-    public FileTransferManager() {
-        executorService = Executors.newCachedThreadPool();
-        startUploadServer();
-    }
+    private final Map<Integer, DownloadSession> sessions = new ConcurrentSkipListMap<>(); // Unfinished, by id
+    private final Deque<DownloadSession> finishedSessions = new ArrayDeque<>(); // Guarded by this, oldest first
+    private final int finishedKept = Math.max(0, Integer.getInteger("transfer.finishedKept", 100));
+    private final Deque<DownloadSession> downloadQueue = new ArrayDeque<>(); // Guarded by this
+    private final List<Consumer<DownloadSession>> downloadListeners = new CopyOnWriteArrayList<>();
+    private final ProgressReporter progressReporter = new ProgressReporter(sessions::values,
+            Double.parseDouble(System.getProperty("transfer.progressHz", "30"))); // Frames per second
+    private int nextSessionId = 1; // Guarded by this
+    private int runningDownloads; // Guarded by this
 
-    /**
-     * Resumes a paused download.
-     */
-    public void resumeDownload() {
-        pauseDownloadFlag = false;
-        isDownloadPaused = false;
-        resumeDownload(this.serverAddress, this.serverPort, this.fileToDownload, this.savePath);
+    public FileTransferManager() {
+        this(System.getProperty("user.dir") + "/files/");
     }
 
     /**
-     * Pauses the current download.
+     * Constructs a FileTransferManager sharing the files of a folder.
+     *
+     * @param sharePath The folder whose files are served to other peers.
      */
-    public void pauseDownload() {
-        System.out.println("pauseDownload() is called");
-        pauseDownloadFlag = true;
-        isDownloadPaused = true;
-        Server.updateClientActivity("Download paused");
+    public FileTransferManager(String sharePath) {
+        this.uploadPath = sharePath.endsWith("/") || sharePath.endsWith(File.separator) ? sharePath
+                : sharePath + File.separator;
+        // At most transfer.maxConcurrent downloads of transfer.maxSources workers each
+        executorService = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool(NioServer.namedThreads("download"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(NioServer.namedThreads("transfer-scheduler"));
+        scheduler.scheduleWithFixedDelay(this::saveJournals, journalIntervalMillis, journalIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        gauges.put("transfer.activeUploads", uploadScheduler::getActiveSlots);
+        gauges.put("transfer.uploadQueue", uploadScheduler::getQueueLength);
+        gauges.put("transfer.activeDownloads", this::getRunningDownloadCount);
+        gauges.put("transfer.downloadQueue", this::getQueuedDownloadCount);
+        gauges.forEach((name, source) -> Metrics.gauge(name).add(source));
+        startUploadServer();
     }
 
     /**
@@ -69,126 +144,397 @@ public class FileTransferManager {
      * Starts the upload server on a dynamically assigned port.
      */
     void startUploadServer() {
-        executorService.submit(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(0)) { // System-assigned port
-                this.port = serverSocket.getLocalPort();
-                System.out.println("Upload server started on dynamically assigned port: " + this.port);
+        ServerSocket serverSocket;
+        try {
+            // Bind before returning so the port can be published with the catalog
+            serverSocket = ServerSocketChannel.open().bind(null).socket(); // System-assigned port
+        } catch (IOException e) {
+            System.out.println("Upload server error: " + e.getMessage());
+            return;
+        }
+        this.port = serverSocket.getLocalPort();
+        this.uploadServerSocket = serverSocket;
+        System.out.println("Upload server started on dynamically assigned port: " + this.port);
+        Thread acceptor = new Thread(() -> {
+            try (serverSocket) {
                 while (!Thread.currentThread().isInterrupted()) {
-                    Socket clientSocket = serverSocket.accept();
+                    // Accepted through the channel, so uploads can hand files to the socket directly
+                    Socket clientSocket = serverSocket.getChannel().accept().socket();
                     handleUploadRequest(clientSocket);
                 }
             } catch (IOException e) {
-                System.out.println("Upload server error: " + e.getMessage());
+                if (!closed) {
+                    System.out.println("Upload server error: " + e.getMessage());
+                }
             }
-        });
+        }, "upload-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
     }
 
     /**
-     * Initiates a file download from another peer, with progress update.
-     * 
-     * @param serverAddress  The IP address of the peer from which to download.
-     * @param serverPort     The port number on the peer for downloading.
+     * Adds a peer that holds a file to the download of that file. The first
+     * peer creates a new download session; every further peer announcing the
+     * same file joins it, and the session fetches different parts from each of
+     * them.
+     *
+     * @param serverAddress  The IP address of the peer holding the file.
+     * @param serverPort     The upload port of the peer.
      * @param fileToDownload The name of the file to download.
      * @param savePath       The local path to save the downloaded file.
-     * @param progressBar    The progress bar UI element to update.
-     */
-    public void downloadFile(String serverAddress, int serverPort, String fileToDownload, String savePath,
-            ProgressBar progressBar) {
-        // Save the parameters to instance variables
-        this.serverAddress = serverAddress;
-        this.serverPort = serverPort;
-        this.fileToDownload = fileToDownload;
-        this.savePath = savePath;
-        this.progressBar = progressBar;
-
-        executorService.submit(() -> {
-            try (Socket socket = new Socket(serverAddress, serverPort);
-                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                    DataInputStream dis = new DataInputStream(socket.getInputStream());
-                    FileOutputStream fos = new FileOutputStream(savePath)) {
-
-                System.out.println("save dir in downloadFile: " + savePath);
-                System.out.println("file to download: " + uploadPath + fileToDownload);
-                dos.writeUTF(uploadPath + fileToDownload); // Send the file request
-                dos.writeUTF("NORMAL");
-                dos.flush();
-
-                long fileSize = dis.readLong(); // Read file size
-                System.out.println("File size to download: " + fileSize);
-                long totalRead = 0;
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = dis.read(buffer)) > 0 && !pauseDownloadFlag) {
-                    fos.write(buffer, 0, read);
-                    totalRead += read;
-                    downloadOffset = totalRead; // Update the offset
-                    double progress = totalRead / (double) fileSize;
-                    if (progressBar != null) {
-                        Platform.runLater(() -> progressBar.setProgress(progress));
-                    }
-                    Server.updateClientActivity("Download progress: " + progress);
-                }
-                if (totalRead >= fileSize) {
-                    System.out.println("Download complete.");
-                    if (progressBar != null) {
-                        Platform.runLater(() -> progressBar.setProgress(1.0)); // Complete the progress bar
-                    }
-                    Server.updateClientActivity("Download completed for file: " + fileToDownload);
-                } else if (pauseDownloadFlag) {
-                    System.out.println("Download paused at " + totalRead + " bytes.");
-                    Server.updateClientActivity("Download paused for file: " + fileToDownload);
-                }
-            } catch (IOException e) {
-                System.out.println("Download error: " + e.getMessage());
-                Server.updateClientActivity("Download error for file: " + fileToDownload);
-            }
-        });
+     * @return The session downloading the file.
+     */
+    public synchronized DownloadSession downloadFromSource(String serverAddress, int serverPort,
+            String fileToDownload, String savePath) {
+        DownloadSession session = findSession(savePath);
+        boolean created = session == null;
+        if (created) {
+            session = createSession(fileToDownload, savePath);
+        }
+        session.getSwarm().addSource(serverAddress, serverPort);
+        if (created || session.getState() == DownloadSession.State.FAILED
+                || session.getState() == DownloadSession.State.WAITING) {
+            // A new source may succeed where the others failed
+            enqueue(session);
+        }
+        sessionChanged(session);
+        return session;
     }
 
     /**
-     * Resumes a paused download.
+     * Starts the download of a file before any peer holding it is known. The
+     * session waits until a holder is added with {@link #downloadFromSource},
+     * and is handed to the source finder until then. If the file is already
+     * being downloaded to the same path, that session is returned.
+     *
+     * @param fileToDownload The name of the file to download.
+     * @param savePath       The local path to save the downloaded file.
+     * @return The session downloading the file.
+     */
+    public synchronized DownloadSession requestDownload(String fileToDownload, String savePath) {
+        DownloadSession session = findSession(savePath);
+        if (session == null) {
+            session = createSession(fileToDownload, savePath);
+            session.setState(DownloadSession.State.WAITING);
+            sessionChanged(session);
+        }
+        return session;
+    }
+
+    /**
+     * Initiates a file download from another peer.
      *
      * @param serverAddress  The IP address of the peer from which to download.
      * @param serverPort     The port number on the peer for downloading.
      * @param fileToDownload The name of the file to download.
      * @param savePath       The local path to save the downloaded file.
+     * @return The session downloading the file.
+     */
+    public DownloadSession downloadFile(String serverAddress, int serverPort, String fileToDownload, String savePath) {
+        return downloadFromSource(serverAddress, serverPort, fileToDownload, savePath);
+    }
+
+    /**
+     * Pauses one download. Its slot goes to the next queued download.
+     *
+     * @param sessionId The session's identifier.
      */
-    public void resumeDownload(String serverAddress, int serverPort, String fileToDownload, String savePath) {
-        pauseDownloadFlag = false;
-        isDownloadPaused = false;
-        executorService.submit(() -> {
-            try (Socket socket = new Socket(serverAddress, serverPort);
-                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                    DataInputStream dis = new DataInputStream(socket.getInputStream());
-                    RandomAccessFile raf = new RandomAccessFile(savePath, "rw")) {
-
-                dos.writeUTF(fileToDownload); // Send the file name to resume downloading
-                dos.writeUTF("RESUME"); // Indicate it's a resume request
-                dos.writeLong(downloadOffset); // Send the offset to resume from
-
-                raf.seek(downloadOffset); // Move the file pointer to the offset
-                long fileSize = dis.readLong(); // Read the remaining file size
-                long totalRead = downloadOffset;
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = dis.read(buffer)) > 0 && !pauseDownloadFlag) {
-                    raf.write(buffer, 0, read);
-                    totalRead += read;
-                    downloadOffset = totalRead; // Update the offset
-                    double progress = totalRead / (double) fileSize;
-                    Platform.runLater(() -> progressBar.setProgress(progress));
+    public synchronized void pauseDownload(int sessionId) {
+        DownloadSession session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        DownloadSession.State state = session.getState();
+        if (state == DownloadSession.State.RUNNING) {
+            session.setState(DownloadSession.State.PAUSED);
+            runningDownloads--;
+            startQueued();
+        } else if (state == DownloadSession.State.QUEUED || state == DownloadSession.State.WAITING) {
+            downloadQueue.remove(session);
+            session.setState(DownloadSession.State.PAUSED);
+        } else {
+            return;
+        }
+        ServerCore.updateClientActivity("Download paused for file: " + session.getFileName());
+        sessionChanged(session);
+    }
+
+    /**
+     * Resumes a paused or failed download, or queues it if the maximum number
+     * of downloads is already running.
+     *
+     * @param sessionId The session's identifier.
+     */
+    public synchronized void resumeDownload(int sessionId) {
+        DownloadSession session = sessions.get(sessionId);
+        if (session != null && (session.getState() == DownloadSession.State.PAUSED
+                || session.getState() == DownloadSession.State.FAILED)) {
+            enqueue(session);
+            sessionChanged(session);
+        }
+    }
+
+    /**
+     * Pauses every download.
+     */
+    public synchronized void pauseDownload() {
+        System.out.println("pauseDownload() is called");
+        for (DownloadSession session : sessions.values()) {
+            pauseDownload(session.getId());
+        }
+    }
+
+    /**
+     * Resumes every paused download.
+     */
+    public synchronized void resumeDownload() {
+        for (DownloadSession session : sessions.values()) {
+            if (session.getState() == DownloadSession.State.PAUSED) {
+                resumeDownload(session.getId());
+            }
+        }
+    }
+
+    /**
+     * Adopts the incomplete downloads a previous run left in a folder: every
+     * partial file with a journal becomes a WAITING session, which resumes as
+     * soon as a peer holding the file is added with
+     * {@link #downloadFromSource}.
+     *
+     * @param downloadFolder The folder downloads are saved to.
+     * @return The adopted sessions.
+     */
+    public synchronized List<DownloadSession> adoptIncompleteDownloads(String downloadFolder) {
+        List<DownloadSession> adopted = new ArrayList<>();
+        for (DownloadJournal journal : DownloadJournal.findAll(Paths.get(downloadFolder))) {
+            String savePath = journal.getSavePath();
+            if (!Files.exists(Paths.get(savePath))) {
+                DownloadJournal.delete(savePath); // The partial file was removed
+                continue;
+            }
+            if (findSession(savePath) != null) {
+                continue;
+            }
+            DownloadSession session = createSession(journal.getFileName(), savePath);
+            session.setState(DownloadSession.State.WAITING);
+            session.progress(journal.getCompletedBytes(), journal.getFileSize());
+            System.out.println("Adopted incomplete download: " + savePath);
+            adopted.add(session);
+        }
+        return adopted;
+    }
+
+    /**
+     * Sets how sources are looked for. Every transfer.sourceRetrySeconds, and
+     * once right away, the finder is called for each download that is waiting
+     * for a source or whose sources all failed; it is expected to ask the
+     * server who holds the file, whose answers then reach
+     * {@link #downloadFromSource}. Meant to be called once.
+     *
+     * @param finder Asks for the sources of a session's file.
+     */
+    public void setSourceFinder(Consumer<DownloadSession> finder) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (DownloadSession session : sessions.values()) {
+                if (session.getState() == DownloadSession.State.WAITING
+                        || session.getState() == DownloadSession.State.FAILED) {
+                    try {
+                        finder.accept(session);
+                    } catch (RuntimeException e) {
+                        System.out.println("Could not look for sources of " + session + ": " + e.getMessage());
+                    }
                 }
+            }
+        }, 0, sourceRetrySeconds, TimeUnit.SECONDS);
+    }
 
-                if (!pauseDownloadFlag) {
-                    System.out.println("Resume complete.");
-                    Platform.runLater(() -> progressBar.setProgress(1.0));
-                } else {
-                    System.out.println("Download paused at " + totalRead + " bytes during resume.");
+    /**
+     * Gets every unfinished download session and the most recently completed
+     * ones, in start order.
+     *
+     * @return The sessions.
+     */
+    public synchronized List<DownloadSession> getDownloadSessions() {
+        List<DownloadSession> all = new ArrayList<>(finishedSessions);
+        all.addAll(sessions.values());
+        all.sort(Comparator.comparingInt(DownloadSession::getId));
+        return all;
+    }
+
+    /**
+     * Registers a listener for the progress of the downloads, sampled
+     * transfer.progressHz times a second (30 by default). Each call carries
+     * the downloads that changed since the previous one, with their rates and
+     * estimated time left. This is the listener to drive a user interface
+     * with.
+     *
+     * @param listener The listener, called on the sampling thread.
+     */
+    public void addProgressListener(Consumer<List<TransferProgress>> listener) {
+        progressReporter.addListener(listener);
+    }
+
+    /**
+     * Registers a listener that is told whenever a session's state or
+     * progress changes. It is called from transfer threads, as often as every
+     * completed piece.
+     *
+     * @param listener The listener.
+     */
+    public void addDownloadListener(Consumer<DownloadSession> listener) {
+        downloadListeners.add(listener);
+    }
+
+    private synchronized long getRunningDownloadCount() {
+        return runningDownloads;
+    }
+
+    private synchronized long getQueuedDownloadCount() {
+        return downloadQueue.size();
+    }
+
+    private DownloadSession createSession(String fileName, String savePath) {
+        DownloadSession session = new DownloadSession(nextSessionId++, fileName, savePath, this);
+        session.setSwarm(new SwarmDownload(fileName, uploadPath + fileName, savePath, TRANSFER_KEY,
+                encryptTransfers, executorService, maxSourcesPerDownload,
+                downloadLimiter.newChild("download " + fileName, perDownloadRate), session));
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    private DownloadSession findSession(String savePath) {
+        for (DownloadSession session : sessions.values()) {
+            if (session.getSavePath().equals(savePath) && session.getState() != DownloadSession.State.COMPLETED) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private void enqueue(DownloadSession session) {
+        session.setState(DownloadSession.State.QUEUED);
+        downloadQueue.add(session);
+        startQueued();
+    }
+
+    private void startQueued() {
+        while (runningDownloads < maxConcurrentDownloads && !downloadQueue.isEmpty()) {
+            DownloadSession session = downloadQueue.poll();
+            if (session.getSwarm().getSourceCount() == 0) {
+                session.setState(DownloadSession.State.WAITING); // Adopted, and no holder has been found yet
+                sessionChanged(session);
+                continue;
+            }
+            session.setState(DownloadSession.State.RUNNING);
+            runningDownloads++;
+            session.getSwarm().resume();
+            sessionChanged(session);
+        }
+    }
+
+    /**
+     * Saves the progress of every unfinished download to its journal.
+     */
+    private void saveJournals() {
+        for (DownloadSession session : sessions.values()) {
+            if (session.getState() != DownloadSession.State.COMPLETED) {
+                try {
+                    session.getSwarm().saveJournal();
+                } catch (IOException e) {
+                    System.out.println("Could not save journal of " + session + ": " + e.getMessage());
                 }
-            } catch (IOException e) {
-                System.out.println("Resume download error: " + e.getMessage());
             }
-        });
+        }
+    }
+
+    /**
+     * Called by a session when it finished or failed.
+     */
+    synchronized void sessionStopped(DownloadSession session, DownloadSession.State state) {
+        if (session.getState() == DownloadSession.State.RUNNING) {
+            runningDownloads--;
+        } else {
+            downloadQueue.remove(session);
+        }
+        session.setState(state);
+        if (state == DownloadSession.State.COMPLETED) {
+            // Out of the registry, so neither the journals nor the progress reporter visit it again
+            sessions.remove(session.getId());
+            finishedSessions.add(session);
+            while (finishedSessions.size() > finishedKept) {
+                finishedSessions.poll();
+            }
+            progressReporter.finished(session);
+            System.out.println("Download complete.");
+            ServerCore.updateClientActivity("Download completed for file: " + session.getFileName());
+        } else {
+            ServerCore.updateClientActivity("Download error for file: " + session.getFileName());
+        }
+        startQueued();
+        sessionChanged(session);
+    }
+
+    /**
+     * Called by a session when its state or progress changed.
+     */
+    void sessionChanged(DownloadSession session) {
+        for (Consumer<DownloadSession> listener : downloadListeners) {
+            listener.accept(session);
+        }
+    }
+
+    /**
+     * Gets the limiter all transfers pass through, to read or change the
+     * overall cap.
+     *
+     * @return The overall limiter.
+     */
+    public BandwidthLimiter getTotalLimiter() {
+        return totalLimiter;
+    }
+
+    /**
+     * Gets the limiter all uploads pass through, to read or change the cap on
+     * serving other peers.
+     *
+     * @return The upload limiter.
+     */
+    public BandwidthLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    /**
+     * Gets the limiter all downloads pass through, to read or change the cap
+     * on downloading.
+     *
+     * @return The download limiter.
+     */
+    public BandwidthLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    /**
+     * Sets the cap of each single upload, running ones included.
+     *
+     * @param bytesPerSecond The rate, or 0 for unlimited.
+     */
+    public void setPerUploadRate(long bytesPerSecond) {
+        perUploadRate = bytesPerSecond;
+        for (BandwidthLimiter limiter : uploadLimiters) {
+            limiter.setRate(bytesPerSecond);
+        }
+    }
+
+    /**
+     * Sets the cap of each single download, running ones included.
+     *
+     * @param bytesPerSecond The rate, or 0 for unlimited.
+     */
+    public void setPerDownloadRate(long bytesPerSecond) {
+        perDownloadRate = bytesPerSecond;
+        for (DownloadSession session : sessions.values()) {
+            session.getSwarm().getLimiter().setRate(bytesPerSecond);
+        }
     }
 
     /**
@@ -198,72 +544,258 @@ public class FileTransferManager {
      * @return true if the file exists, false otherwise.
      */
     public boolean hasFile(String fileName) {
-        String relativePath = System.getProperty("user.dir") + "/files/";
-        File fileToCheck = new File(relativePath + fileName);
+        File fileToCheck = new File(uploadPath + fileName);
         return fileToCheck.exists() && !fileToCheck.isDirectory();
     }
 
     /**
-     * Handles an upload request from a client.
+     * Gets the folder whose files are served to other peers.
+     *
+     * @return The shared folder, ending with a separator.
+     */
+    public String getSharePath() {
+        return uploadPath;
+    }
+
+    /**
+     * Stops serving uploads and stops every download, saving its journal
+     * first so it can be adopted again later.
+     */
+    public void close() {
+        closed = true;
+        saveJournals();
+        try {
+            if (uploadServerSocket != null) {
+                uploadServerSocket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not close upload server: " + e.getMessage());
+        }
+        progressReporter.stop();
+        uploadScheduler.shutdown();
+        scheduler.shutdownNow();
+        executorService.shutdownNow();
+        gauges.forEach((name, source) -> Metrics.gauge(name).remove(source));
+    }
+
+    /**
+     * Gets the scheduler uploads run in, to read its queue length and slot
+     * utilization.
+     *
+     * @return The upload scheduler.
+     */
+    public TransferScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    /**
+     * Handles an upload request from a client: serves it in an upload slot, or
+     * tells the client to retry if every slot is taken and the queue is full.
      *
      * @param clientSocket The socket connection with the client.
      */
     private void handleUploadRequest(Socket clientSocket) {
-        executorService.submit(() -> {
-            try (DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
-                    DataInputStream dis = new DataInputStream(clientSocket.getInputStream())) {
-
-                String fileName = dis.readUTF(); // Read the requested file name
-                String requestType = dis.readUTF(); // Read the type of request (NORMAL or RESUME)
-
-                System.out.println("filename in handleUploadRequest(): " + fileName);
-                File fileToUpload = new File(fileName); // Ensure the correct file path is used
-
-                if (fileToUpload.exists() && !fileToUpload.isDirectory()) {
-                    // Send file size
-                    dos.writeLong(fileToUpload.length());
-                    dos.flush(); // Ensure the file size is sent before sending file data
-
-                    if (requestType.equals("RESUME")) {
-                        long offset = dis.readLong(); // Read the offset for resume
-                        System.out.println("Resuming upload from offset: " + offset);
-
-                        // Read and send file data from offset
-                        try (RandomAccessFile raf = new RandomAccessFile(fileToUpload, "r")) {
-                            raf.seek(offset);
-                            byte[] buffer = new byte[4096];
-                            int read;
-                            while ((read = raf.read(buffer)) > 0 && !pauseDownloadFlag) {
-                                dos.write(buffer, 0, read);
-                            }
-                        }
-                    } else {
-                        System.out.println("Starting normal file upload.");
-
-                        // Read and send file data from beginning
-                        try (FileInputStream fis = new FileInputStream(fileToUpload)) {
-                            byte[] buffer = new byte[4096];
-                            int read;
-                            while ((read = fis.read(buffer)) > 0 && !pauseDownloadFlag) {
-                                dos.write(buffer, 0, read);
-                            }
-                        }
-                    }
+        if (closed) {
+            closeQuietly(clientSocket);
+        } else if (!uploadScheduler.submit(() -> serveUpload(clientSocket))) {
+            UPLOADS_REJECTED.increment();
+            long retryMillis = uploadScheduler.getRetryAfterMillis();
+            // The request is read on a virtual thread of its own, so a slow client never blocks the acceptor
+            Thread.ofVirtual().name("upload-reject").start(() -> rejectUpload(clientSocket, retryMillis));
+        }
+    }
+
+    /**
+     * Tells a client that every upload slot is taken, once its request shows
+     * it understands the reply (see {@link TransferScheduler}); an older peer's
+     * connection is closed without one. The socket is closed a little later
+     * rather than right away, since closing it while part of the request is
+     * still unread would reset the connection and could discard the reply.
+     *
+     * @param clientSocket The socket connection with the client.
+     * @param retryMillis  The delay to retry after.
+     */
+    private void rejectUpload(Socket clientSocket, long retryMillis) {
+        try {
+            clientSocket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(BUSY_CLOSE_DELAY_SECONDS));
+            DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
+            dis.readUTF(); // The file name
+            if (TransferScheduler.understandsBusy(dis.readUTF())) {
+                TransferScheduler.writeBusy(new DataOutputStream(clientSocket.getOutputStream()), retryMillis);
+            }
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            System.out.println("Could not reject upload request: " + e.getMessage());
+        }
+        try {
+            scheduler.schedule(() -> closeQuietly(clientSocket), BUSY_CLOSE_DELAY_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            closeQuietly(clientSocket); // Closed meanwhile
+        }
+    }
+
+    private static void closeQuietly(Socket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            System.out.println("Error closing client socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves an upload request in an upload slot.
+     *
+     * @param clientSocket The socket connection with the client.
+     */
+    private void serveUpload(Socket clientSocket) {
+        BandwidthLimiter limiter = uploadLimiter.newChild("upload to " + clientSocket.getRemoteSocketAddress(),
+                perUploadRate);
+        uploadLimiters.add(limiter);
+        try (DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
+                DataInputStream dis = new DataInputStream(clientSocket.getInputStream())) {
+
+            String fileName = dis.readUTF(); // Read the requested file name
+            String requestType = dis.readUTF(); // Read the type of request (NORMAL or RESUME)
+
+            System.out.println("filename in handleUploadRequest(): " + fileName);
+            // Peers send the path of the file in their own shared folder; serve ours
+            File fileToUpload = new File(uploadPath, new File(fileName).getName());
+
+            if (fileToUpload.exists() && !fileToUpload.isDirectory() && requestType.equals("MANIFEST")) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos));
+                FileManifest.forFile(fileToUpload).write(out);
+                out.flush();
+            } else if (fileToUpload.exists() && !fileToUpload.isDirectory() && requestType.equals("SECURE")) {
+                sendEncrypted(fileToUpload, dis.readLong(), Long.MAX_VALUE, dos, limiter);
+            } else if (fileToUpload.exists() && !fileToUpload.isDirectory() && requestType.equals("SECURE_RANGE")) {
+                long startChunk = dis.readLong(); // Read the range of chunks to send
+                sendEncrypted(fileToUpload, startChunk, dis.readLong(), dos, limiter);
+            } else if (fileToUpload.exists() && !fileToUpload.isDirectory()) {
+                // Send file size
+                dos.writeLong(fileToUpload.length());
+                dos.flush(); // Ensure the file size is sent before sending file data
+
+                long offset = 0;
+                long length = Long.MAX_VALUE;
+                if (requestType.equals("RESUME")) {
+                    offset = dis.readLong(); // Read the offset for resume
+                    System.out.println("Resuming upload from offset: " + offset);
+                } else if (requestType.equals("RANGE")) {
+                    offset = dis.readLong(); // Read the range to send
+                    length = dis.readLong();
                 } else {
-                    System.out.println("Requested file does not exist: " + fileName);
+                    System.out.println("Starting normal file upload.");
                 }
-            } catch (SocketException e) {
-                // Handle client disconnection gracefully
-                System.out.println("Client disconnected: " + e.getMessage());
-            } catch (IOException e) {
-                // System.out.println("Upload error: " + e.getMessage());
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.out.println("Error closing client socket: " + e.getMessage());
+                if (offset < 0 || length < 0) {
+                    throw new IOException("Invalid range requested: offset " + offset + ", length " + length);
                 }
+                sendFile(fileToUpload, offset, length, dos, clientSocket.getChannel(), limiter);
+            } else {
+                System.out.println("Requested file does not exist: " + fileName);
+            }
+        } catch (GeneralSecurityException e) {
+            System.out.println("Encrypted upload failed: " + e.getMessage());
+        } catch (SocketException e) {
+            // Handle client disconnection gracefully
+            System.out.println("Client disconnected: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Upload error: " + e.getMessage());
+        } finally {
+            uploadLimiters.remove(limiter);
+            closeQuietly(clientSocket);
+        }
+    }
+
+    /**
+     * Sends a file as it is, starting at an offset. When the connection has a
+     * channel the kernel copies the file straight to the socket
+     * ({@link FileChannel#transferTo}); otherwise, or with
+     * -Dtransfer.zeroCopy=false, the bytes go through a heap buffer.
+     *
+     * @param fileToUpload The file to send.
+     * @param offset       The position of the first byte to send.
+     * @param length       The maximum number of bytes to send.
+     * @param dos          The stream to the downloading peer, with nothing buffered.
+     * @param channel      The channel of the connection, or null if there is none.
+     * @param limiter      Caps the rate the file is sent at.
+     * @throws IOException If the file cannot be read or the peer disconnects.
+     */
+    private void sendFile(File fileToUpload, long offset, long length, DataOutputStream dos, SocketChannel channel,
+            BandwidthLimiter limiter) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(fileToUpload.toPath(), StandardOpenOption.READ)) {
+            long size = offset + Math.min(length, Math.max(0, fileChannel.size() - offset));
+            long position = offset;
+            if (channel != null && zeroCopy) {
+                // Smaller slices when limited, so other uploads get their turn in between
+                long slice = limiter.isLimited() ? BandwidthLimiter.QUANTUM : TRANSFER_SLICE;
+                while (position < size) {
+                    long end = position + Math.min(slice, size - position);
+                    limiter.acquire((int) (end - position));
+                    // transferTo may send less than asked, so keep going until the end
+                    while (position < end) {
+                        long sent = fileChannel.transferTo(position, end - position, channel);
+                        BYTES_UPLOADED.add(sent);
+                        position += sent;
+                    }
+                }
+                return;
+            }
+            InputStream in = Channels.newInputStream(fileChannel.position(position));
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while (position < size
+                    && (read = in.read(buffer, 0, (int) Math.min(buffer.length, size - position))) > 0) {
+                limiter.acquire(read);
+                dos.write(buffer, 0, read);
+                BYTES_UPLOADED.add(read);
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Sends a range of a file as encrypted chunks: the file size, the chunk
+     * size and the transfer's salt, then every chunk as its length followed by
+     * its ciphertext.
+     *
+     * @param fileToUpload The file to send.
+     * @param startChunk   The index of the first chunk to send.
+     * @param endChunk     The index after the last chunk to send.
+     * @param dos          The stream to the downloading peer.
+     * @param limiter      Caps the rate the file is sent at.
+     * @throws IOException              If the file cannot be read or the peer disconnects.
+     * @throws GeneralSecurityException If AES-GCM is not available.
+     */
+    private void sendEncrypted(File fileToUpload, long startChunk, long endChunk, DataOutputStream dos,
+            BandwidthLimiter limiter) throws IOException, GeneralSecurityException {
+        if (startChunk < 0) {
+            throw new IOException("Invalid range requested: chunk " + startChunk);
+        }
+        long fileSize = fileToUpload.length();
+        byte[] salt = ChunkCipher.newSalt();
+        ChunkCipher chunkCipher = new ChunkCipher(TRANSFER_KEY, salt, fileSize);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(dos, 2 * ChunkCipher.CHUNK_SIZE));
+        out.writeLong(fileSize);
+        out.writeInt(ChunkCipher.CHUNK_SIZE);
+        out.write(salt);
+        System.out.println("Starting encrypted upload from chunk " + startChunk);
+
+        try (RandomAccessFile raf = new RandomAccessFile(fileToUpload, "r")) {
+            raf.seek(startChunk * ChunkCipher.CHUNK_SIZE);
+            byte[] chunk = new byte[ChunkCipher.CHUNK_SIZE];
+            byte[] sealed = new byte[ChunkCipher.CHUNK_SIZE + ChunkCipher.TAG_LENGTH];
+            long chunkCount = Math.min(endChunk, ChunkCipher.chunkCount(fileSize));
+            for (long index = startChunk; index < chunkCount; index++) {
+                int length = (int) Math.min(ChunkCipher.CHUNK_SIZE, fileSize - index * ChunkCipher.CHUNK_SIZE);
+                raf.readFully(chunk, 0, length);
+                int sealedLength = chunkCipher.seal(index, chunk, length, sealed);
+                limiter.acquire(sealedLength);
+                out.writeInt(sealedLength);
+                out.write(sealed, 0, sealedLength);
+                BYTES_UPLOADED.add(length);
             }
-        });
+        }
+        out.flush();
     }
 }
@@ -0,0 +1,112 @@
+package org.example.demo;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * The FolderWatcher class reports files created in or deleted from a folder on
+ * a background thread, using the platform's {@link WatchService}. A rename
+ * arrives as a deletion of the old name and a creation of the new one.
+ */
+public class FolderWatcher {
+
+    /**
+     * Receives the changes seen by a FolderWatcher. Calls come from the
+     * watcher's thread, one at a time.
+     */
+    public interface Listener {
+        /**
+         * A file appeared in the folder.
+         *
+         * @param name The file name.
+         */
+        void fileAdded(String name);
+
+        /**
+         * A file disappeared from the folder.
+         *
+         * @param name The file name.
+         */
+        void fileRemoved(String name);
+
+        /**
+         * Individual changes were lost, so the folder has to be listed again.
+         */
+        void rescan();
+    }
+
+    private final Path folder;
+    private final Listener listener;
+    private WatchService watchService;
+
+    /**
+     * Constructs a FolderWatcher. Nothing is watched until {@link #start(String)}.
+     *
+     * @param folder   The folder to watch.
+     * @param listener The listener to report changes to.
+     */
+    public FolderWatcher(Path folder, Listener listener) {
+        this.folder = folder;
+        this.listener = listener;
+    }
+
+    /**
+     * Registers the folder and starts the watcher thread. Changes made before
+     * this returns may be missed, so callers list the folder afterwards.
+     *
+     * @param threadName The name of the watcher thread.
+     * @throws IOException If the folder cannot be watched.
+     */
+    public void start(String threadName) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcher = new Thread(this::watchFolder, threadName);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops the watcher thread, if it is running.
+     */
+    public void stop() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void watchFolder() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were dropped, so the deltas can no longer be trusted
+                        listener.rescan();
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        listener.fileAdded(((Path) event.context()).getFileName().toString());
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        listener.fileRemoved(((Path) event.context()).getFileName().toString());
+                    }
+                }
+                if (!key.reset()) {
+                    System.out.println("Watched folder is no longer accessible: " + folder);
+                    listener.rescan();
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watching stopped
+        }
+    }
+}
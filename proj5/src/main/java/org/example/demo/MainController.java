@@ -10,7 +10,6 @@ import javafx.scene.control.*;
 import javafx.stage.Stage;
 import javafx.scene.Node;
 import java.io.IOException;
-import java.net.Socket;
 import java.net.UnknownHostException;
 
 /**
@@ -36,35 +35,48 @@ public class MainController {
         String username = InputUsername.getText().trim();
         String serverAddress = InputIP.getText().trim();
 
-        try {
-            Socket socket = new Socket(serverAddress, 4044);
-            Stage stage2 = new Stage();
+        Stage stage2 = new Stage();
 
-            stage2.setTitle("Messenger");
+        stage2.setTitle("Messenger");
 
-            FXMLLoader fxmlLoader2 = new FXMLLoader(getClass().getResource("ChatGUI.fxml"));
-            Parent root = fxmlLoader2.load();
+        FXMLLoader fxmlLoader2 = new FXMLLoader(getClass().getResource("ChatGUI.fxml"));
+        Parent root = fxmlLoader2.load();
 
-            stage2.setScene(new Scene(root));
-            stage2.show();
+        ChatGuiController controller = fxmlLoader2.getController();
+        btnJoinServer.setDisable(true); // Until the server has answered
 
-            ChatGuiController controller = fxmlLoader2.getController();
-            Client client = new Client(socket, username, controller, serverAddress);
+        // Connecting waits for the login to be answered, so keep it off the JavaFX thread
+        Thread connector = new Thread(() -> {
+            try {
+                Client client = new Client(username, controller, serverAddress, 4044);
+                Platform.runLater(() -> {
+                    stage2.setScene(new Scene(root));
+                    stage2.show();
 
-            controller.setClient(client);
-            controller.setUsername(username);
-            client.setChatStage(stage2);
+                    controller.setClient(client);
+                    controller.setUsername(username);
+                    client.setChatStage(stage2);
 
-            // Hide the main window after opening the chat window
-            ((Node) (event.getSource())).getScene().getWindow().hide();
+                    // Hide the main window after opening the chat window
+                    ((Node) (event.getSource())).getScene().getWindow().hide();
+                });
+            } catch (PeerClient.UsernameTakenException e) {
+                loginFailed("Username Taken", e.getMessage() + " Please choose a different username.");
+            } catch (UnknownHostException e) {
+                loginFailed("Connection Error", "Could not connect to server. Check the IP address and try again.");
+            } catch (IOException e) {
+                loginFailed("Connection Error", "Could not connect to server. Server might be down.");
+            }
+        }, "join-server");
+        connector.setDaemon(true);
+        connector.start();
+    }
 
-        } catch (UnknownHostException e) {
-            showAlert("Connection Error", "Could not connect to server. Check the IP address and try again.");
-            restartLogin();
-        } catch (IOException e) {
-            showAlert("Connection Error", "Could not connect to server. Server might be down.");
+    private void loginFailed(String title, String content) {
+        Platform.runLater(() -> {
+            showAlert(title, content);
             restartLogin();
-        }
+        });
     }
 
     private void showAlert(String title, String content) {
@@ -0,0 +1,271 @@
+package org.example.demo;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The MessageCodec class implements the compact binary wire protocol that
+ * replaces Java serialization of {@link Message} once both ends have agreed on
+ * it during login. Every frame looks like this:
+ *
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   type code from {@link MessageType}, or -1 followed by the type name
+ * string sender
+ * string recipient
+ * int    content length in bytes, -1 for null content
+ * bytes  content as UTF-8
+ * </pre>
+ *
+ * Sender and recipient names are interned per connection: the first time a
+ * name is sent it is given a small id, and later frames only carry the id.
+ * At most 1024 names are interned per direction; later names are sent in full.
+ * One codec holds the state of both directions of one connection, and both
+ * directions reuse their buffers, so callers must not use the same direction
+ * from two threads at once.
+ */
+public class MessageCodec {
+    /** Content of a login message that asks for, or accepts, this protocol. */
+    public static final String BINARY = "codec:binary1";
+
+    /** Messages between resets on connections that stay on Object streams. */
+    public static final int OBJECT_STREAM_RESET_INTERVAL = 256;
+
+    /** Largest frame accepted from the wire. */
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** Most names interned per direction; later names are sent in full. */
+    static final int MAX_INTERNED = 1024;
+
+    private static final byte UNKNOWN_TYPE = -1;
+    private static final short NULL_REF = 0;
+    private static final short LITERAL_REF = Short.MIN_VALUE;
+
+    // Encoder state
+    private final Map<String, Short> encodeTable = new HashMap<>();
+    private final CharsetEncoder utf8Encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(512);
+
+    // Decoder state
+    private final List<String> decodeTable = new ArrayList<>();
+    private byte[] readBuffer = new byte[512];
+
+    /**
+     * Encodes a message into a frame. The returned buffer is owned by the codec
+     * and only valid until the next call.
+     *
+     * @param message The message to encode.
+     * @return A buffer positioned at the start of the frame.
+     */
+    public ByteBuffer encode(Message message) {
+        encodeBuffer.clear();
+        encodeBuffer.putInt(0); // frame length, patched below
+
+        MessageType type = MessageType.fromName(message.getType());
+        ensureCapacity(1);
+        if (type != null) {
+            encodeBuffer.put(type.getCode());
+        } else {
+            encodeBuffer.put(UNKNOWN_TYPE);
+            writeName(message.getType());
+        }
+        writeName(message.getSender());
+        writeName(message.getRecipient());
+
+        String content = message.getContent();
+        ensureCapacity(4);
+        if (content == null) {
+            encodeBuffer.putInt(-1);
+        } else {
+            int lengthPosition = encodeBuffer.position();
+            encodeBuffer.putInt(0);
+            int length = writeUtf8(content);
+            encodeBuffer.putInt(lengthPosition, length);
+        }
+
+        encodeBuffer.putInt(0, encodeBuffer.position() - 4);
+        encodeBuffer.flip();
+        return encodeBuffer;
+    }
+
+    /**
+     * Encodes a message and writes the frame to a stream.
+     *
+     * @param message The message to send.
+     * @param out     The stream to write to. It is not flushed.
+     * @throws IOException If writing fails.
+     */
+    public void write(Message message, OutputStream out) throws IOException {
+        ByteBuffer frame = encode(message);
+        out.write(frame.array(), frame.arrayOffset(), frame.limit());
+    }
+
+    /**
+     * Reads one frame from a stream and decodes it.
+     *
+     * @param in The stream to read from.
+     * @return The decoded message.
+     * @throws IOException If the stream ends or the frame is malformed.
+     */
+    public Message read(DataInputStream in) throws IOException {
+        int length = checkFrameLength(in.readInt());
+        if (readBuffer.length < length) {
+            readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+        }
+        in.readFully(readBuffer, 0, length);
+        return decode(ByteBuffer.wrap(readBuffer, 0, length));
+    }
+
+    /**
+     * Returns the total length of the frame at the buffer's position if it has
+     * been received completely. The buffer is not modified.
+     *
+     * @param buf The buffered bytes received so far.
+     * @return The frame length including its length prefix, or -1 if more bytes
+     *         are needed.
+     * @throws StreamCorruptedException If the frame is larger than allowed.
+     */
+    public static int frameLength(ByteBuffer buf) throws StreamCorruptedException {
+        if (buf.remaining() < 4) {
+            return -1;
+        }
+        int length = checkFrameLength(buf.getInt(buf.position()));
+        return buf.remaining() - 4 >= length ? length + 4 : -1;
+    }
+
+    /**
+     * Decodes the body of a frame, that is everything after the length prefix.
+     * The buffer must be backed by an array.
+     *
+     * @param body The frame body, from its position to its limit.
+     * @return The decoded message.
+     * @throws StreamCorruptedException If the frame is malformed.
+     */
+    public Message decode(ByteBuffer body) throws StreamCorruptedException {
+        try {
+            byte code = body.get();
+            String type;
+            if (code == UNKNOWN_TYPE) {
+                type = readName(body);
+            } else {
+                MessageType known = MessageType.fromCode(code);
+                if (known == null) {
+                    throw new StreamCorruptedException("Unknown message type code " + code);
+                }
+                type = known.getWireName();
+            }
+            String sender = readName(body);
+            String recipient = readName(body);
+            int contentLength = body.getInt();
+            String content = contentLength < 0 ? null : readUtf8(body, contentLength);
+            return new Message(type, sender, recipient, content);
+        } catch (RuntimeException e) {
+            StreamCorruptedException corrupted = new StreamCorruptedException("Malformed frame");
+            corrupted.initCause(e);
+            throw corrupted;
+        }
+    }
+
+    private static int checkFrameLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    private void writeName(String name) {
+        ensureCapacity(2);
+        if (name == null) {
+            encodeBuffer.putShort(NULL_REF);
+            return;
+        }
+        Short id = encodeTable.get(name);
+        if (id != null) {
+            encodeBuffer.putShort(id);
+            return;
+        }
+        if (encodeTable.size() < MAX_INTERNED) {
+            id = (short) (encodeTable.size() + 1);
+            encodeTable.put(name, id);
+            encodeBuffer.putShort((short) -id);
+        } else {
+            encodeBuffer.putShort(LITERAL_REF);
+        }
+        ensureCapacity(2);
+        int lengthPosition = encodeBuffer.position();
+        encodeBuffer.putShort((short) 0);
+        int length = writeUtf8(name);
+        if (length > 0xffff) {
+            throw new IllegalArgumentException("Name too long: " + length + " bytes");
+        }
+        encodeBuffer.putShort(lengthPosition, (short) length);
+    }
+
+    private String readName(ByteBuffer body) throws StreamCorruptedException {
+        short ref = body.getShort();
+        if (ref == NULL_REF) {
+            return null;
+        }
+        if (ref == LITERAL_REF) {
+            return readUtf8(body, body.getShort() & 0xffff);
+        }
+        if (ref > 0) {
+            if (ref > decodeTable.size()) {
+                throw new StreamCorruptedException("Unknown name id " + ref);
+            }
+            return decodeTable.get(ref - 1);
+        }
+        if (-ref != decodeTable.size() + 1) {
+            throw new StreamCorruptedException("Out of order name id " + -ref);
+        }
+        if (decodeTable.size() >= MAX_INTERNED) { // Encoders stop interning here too
+            throw new StreamCorruptedException("More than " + MAX_INTERNED + " interned names");
+        }
+        String name = readUtf8(body, body.getShort() & 0xffff);
+        decodeTable.add(name);
+        return name;
+    }
+
+    private int writeUtf8(String value) {
+        // A UTF-16 char never needs more than three UTF-8 bytes
+        ensureCapacity(value.length() * 3);
+        int start = encodeBuffer.position();
+        utf8Encoder.reset();
+        utf8Encoder.encode(CharBuffer.wrap(value), encodeBuffer, true);
+        utf8Encoder.flush(encodeBuffer);
+        return encodeBuffer.position() - start;
+    }
+
+    private static String readUtf8(ByteBuffer body, int length) {
+        if (length > body.remaining()) {
+            throw new IndexOutOfBoundsException("Content runs past the frame");
+        }
+        String value = new String(body.array(), body.arrayOffset() + body.position(), length,
+                StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return value;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (encodeBuffer.remaining() < bytes) {
+            int needed = encodeBuffer.position() + bytes;
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, encodeBuffer.capacity() * 2));
+            encodeBuffer.flip();
+            larger.put(encodeBuffer);
+            encodeBuffer = larger;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.example.demo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The MessageType enum lists the message types exchanged between clients and
+ * the server. The binary wire protocol sends the one byte code of a type
+ * instead of its name.
+ */
+public enum MessageType {
+    LOGIN("login"),
+    CODEC("codec"),
+    SEARCH("search"),
+    SEARCH_RESULTS("searchResults"),
+    DOWNLOAD_REQUEST("downloadRequest"),
+    CHECK_FILE("checkFile"),
+    FILE_AVAILABLE("fileAvailable"),
+    INITIATE_DOWNLOAD_FROM("initiateDownloadFrom"),
+    CATALOG("catalog"),
+    CATALOG_ADD("catalogAdd"),
+    CATALOG_REMOVE("catalogRemove"),
+    SUMMARY("summary"),
+    SUMMARY_UPDATE("summaryUpdate");
+
+    private static final MessageType[] BY_CODE = values();
+    private static final Map<String, MessageType> BY_NAME = new HashMap<>();
+
+    static {
+        for (MessageType type : BY_CODE) {
+            BY_NAME.put(type.wireName, type);
+        }
+    }
+
+    private final String wireName;
+
+    MessageType(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * Gets the name used for this type in {@link Message#getType()}.
+     *
+     * @return The message type name.
+     */
+    public String getWireName() {
+        return wireName;
+    }
+
+    /**
+     * Gets the one byte code used for this type on the binary wire.
+     *
+     * @return The type code.
+     */
+    public byte getCode() {
+        return (byte) ordinal();
+    }
+
+    /**
+     * Looks up a type by the name used in {@link Message#getType()}.
+     *
+     * @param wireName The message type name.
+     * @return The matching type, or null if the name is unknown.
+     */
+    public static MessageType fromName(String wireName) {
+        return BY_NAME.get(wireName);
+    }
+
+    /**
+     * Looks up a type by its binary code.
+     *
+     * @param code The type code.
+     * @return The matching type, or null if the code is unknown.
+     */
+    public static MessageType fromCode(byte code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
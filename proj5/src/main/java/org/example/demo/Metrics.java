@@ -0,0 +1,414 @@
+package org.example.demo;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * The Metrics class is the registry of the process's metrics: counters,
+ * gauges and histograms, named with dots, like "server.messagesIn.search".
+ * Recording is cheap enough for the message path: counters and histogram
+ * buckets are {@link LongAdder}s, and callers look a metric up once and keep
+ * it. Gauges are read only when someone looks.
+ *
+ * <p>Every metric is visible over JMX, in one MBean per group named by the
+ * first part of the metric names ({@code org.example.demo:type=Metrics,name=server}),
+ * so jconsole or any JMX client can watch a running server or peer. The
+ * same values can be written out as text with {@link #dump()}, or every few
+ * seconds with {@link #startDump}.
+ */
+public final class Metrics {
+    /** Bucket bounds for latencies in microseconds, from 10 us to 10 s. */
+    public static final long[] LATENCY_MICROS = { 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 20_000,
+            50_000, 100_000, 200_000, 500_000, 1_000_000, 2_000_000, 5_000_000, 10_000_000 };
+    /** Bucket bounds for counts of things, like search results or peers asked. */
+    public static final long[] COUNTS = { 0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000,
+            20_000, 50_000, 100_000 };
+
+    private static final String DOMAIN = "org.example.demo";
+    private static final ConcurrentMap<String, Object> METRICS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Group> GROUPS = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumper; // Guarded by Metrics.class
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets a counter, creating it the first time.
+     *
+     * @param name The metric name.
+     * @return The counter.
+     */
+    public static Counter counter(String name) {
+        return register(name, Counter.class, Counter::new);
+    }
+
+    /**
+     * Gets a gauge, creating it the first time. Sources are added to it with
+     * {@link Gauge#add(LongSupplier)}.
+     *
+     * @param name The metric name.
+     * @return The gauge.
+     */
+    public static Gauge gauge(String name) {
+        return register(name, Gauge.class, Gauge::new);
+    }
+
+    /**
+     * Gets a histogram, creating it the first time.
+     *
+     * @param name   The metric name.
+     * @param bounds The inclusive upper bounds of the buckets, in increasing
+     *               order, such as {@link #LATENCY_MICROS}. Only used when
+     *               the histogram is created.
+     * @return The histogram.
+     */
+    public static Histogram histogram(String name, long[] bounds) {
+        return register(name, Histogram.class, () -> new Histogram(bounds));
+    }
+
+    /**
+     * Gets one counter per {@link MessageType}, named prefix.wireName, and
+     * one for unknown types named prefix.other.
+     *
+     * @param prefix The start of the metric names.
+     * @return The counters, indexed by the type's ordinal, the last one for
+     *         unknown types.
+     */
+    public static Counter[] countersByType(String prefix) {
+        MessageType[] types = MessageType.values();
+        Counter[] counters = new Counter[types.length + 1];
+        for (MessageType type : types) {
+            counters[type.ordinal()] = counter(prefix + "." + type.getWireName());
+        }
+        counters[types.length] = counter(prefix + ".other");
+        return counters;
+    }
+
+    /**
+     * Counts a message in the counters made by {@link #countersByType}.
+     *
+     * @param counters The counters.
+     * @param type     The message's type name.
+     */
+    public static void countMessage(Counter[] counters, String type) {
+        MessageType messageType = MessageType.fromName(type);
+        counters[messageType == null ? counters.length - 1 : messageType.ordinal()].increment();
+    }
+
+    /**
+     * Writes every metric as text, one line each, sorted by name.
+     *
+     * @return The lines.
+     */
+    public static List<String> dump() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : new TreeMap<>(METRICS).entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue());
+        }
+        return lines;
+    }
+
+    /**
+     * Hands the {@link #dump()} to a consumer at a fixed period, on a daemon
+     * thread, until the returned task is cancelled.
+     *
+     * @param periodSeconds The period.
+     * @param consumer      Takes the lines.
+     * @return The scheduled dump.
+     */
+    public static synchronized ScheduledFuture<?> startDump(long periodSeconds, Consumer<List<String>> consumer) {
+        if (dumper == null) {
+            dumper = Executors.newSingleThreadScheduledExecutor(NioServer.namedThreads("metrics-dump"));
+        }
+        return dumper.scheduleAtFixedRate(() -> consumer.accept(dump()), periodSeconds, periodSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    private static <T> T register(String name, Class<T> kind, Supplier<T> factory) {
+        Object metric = METRICS.get(name);
+        if (metric == null) {
+            metric = METRICS.computeIfAbsent(name, key -> factory.get());
+            groupOf(name);
+        }
+        if (!kind.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already registered as a "
+                    + metric.getClass().getSimpleName());
+        }
+        return kind.cast(metric);
+    }
+
+    private static void groupOf(String name) {
+        int dot = name.indexOf('.');
+        String group = dot < 0 ? name : name.substring(0, dot);
+        GROUPS.computeIfAbsent(group, key -> {
+            Group mbean = new Group(key + ".");
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                        new ObjectName(DOMAIN + ":type=Metrics,name=" + key));
+            } catch (JMException e) {
+                System.out.println("Could not register metrics " + key + " with JMX: " + e.getMessage());
+            }
+            return mbean;
+        });
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(get());
+        }
+    }
+
+    /**
+     * A value read when the gauge is read. A gauge can have several sources,
+     * such as the upload queues of several peers in one process, and reads
+     * as their sum; an object that goes away removes its source again.
+     */
+    public static final class Gauge {
+        private final List<LongSupplier> sources = new CopyOnWriteArrayList<>();
+
+        /**
+         * Adds a source.
+         *
+         * @param source The source, read on the thread reading the gauge.
+         * @return The source, to remove it with later.
+         */
+        public LongSupplier add(LongSupplier source) {
+            sources.add(source);
+            return source;
+        }
+
+        public void remove(LongSupplier source) {
+            sources.remove(source);
+        }
+
+        public long get() {
+            long value = 0;
+            for (LongSupplier source : sources) {
+                value += source.getAsLong();
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(get());
+        }
+    }
+
+    /**
+     * Counts values in fixed buckets, so recording is a search through a
+     * short array and an add. Percentiles are read as the upper bound of the
+     * bucket they fall in, and as the largest value seen for the bucket above
+     * the last bound.
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            int index = Arrays.binarySearch(bounds, value);
+            buckets[index >= 0 ? index : -index - 1].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : sum.sum() / (double) count;
+        }
+
+        public long getMax() {
+            long value = max.get();
+            return value == Long.MIN_VALUE ? 0 : value;
+        }
+
+        /**
+         * Gets the value a share of the recorded values are at or below.
+         *
+         * @param percentile The share, from 0 to 100.
+         * @return The bucket bound at the percentile, or 0 if nothing was
+         *         recorded.
+         */
+        public long getPercentile(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bounds[i], getMax());
+                }
+            }
+            return getMax();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1f p50=%d p99=%d p999=%d max=%d", getCount(), getMean(),
+                    getPercentile(50), getPercentile(99), getPercentile(99.9), getMax());
+        }
+    }
+
+    /**
+     * The MBean of one group. Its attributes are the group's metrics with
+     * the group name left off; a histogram shows up as name.count,
+     * name.mean, name.p50, name.p99, name.p999 and name.max.
+     */
+    private static final class Group implements DynamicMBean {
+        private static final String[] HISTOGRAM_FIELDS = { "count", "mean", "p50", "p99", "p999", "max" };
+
+        private final String prefix;
+
+        Group(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object metric = METRICS.get(prefix + attribute);
+            if (metric instanceof Counter counter) {
+                return counter.get();
+            } else if (metric instanceof Gauge gauge) {
+                return gauge.get();
+            }
+            int dot = attribute.lastIndexOf('.');
+            if (dot > 0 && METRICS.get(prefix + attribute.substring(0, dot)) instanceof Histogram histogram) {
+                switch (attribute.substring(dot + 1)) {
+                    case "count":
+                        return histogram.getCount();
+                    case "mean":
+                        return histogram.getMean();
+                    case "p50":
+                        return histogram.getPercentile(50);
+                    case "p99":
+                        return histogram.getPercentile(99);
+                    case "p999":
+                        return histogram.getPercentile(99.9);
+                    case "max":
+                        return histogram.getMax();
+                    default:
+                        break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the interface asks
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : new TreeMap<>(METRICS).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    continue;
+                }
+                String name = entry.getKey().substring(prefix.length());
+                if (entry.getValue() instanceof Histogram) {
+                    for (String field : HISTOGRAM_FIELDS) {
+                        String type = field.equals("mean") ? "double" : "long";
+                        attributes.add(new MBeanAttributeInfo(name + "." + field, type, entry.getKey() + " " + field,
+                                true, false, false));
+                    }
+                } else {
+                    attributes.add(new MBeanAttributeInfo(name, "long", entry.getKey(), true, false, false));
+                }
+            }
+            return new MBeanInfo(Group.class.getName(), "Metrics " + prefix + "*",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
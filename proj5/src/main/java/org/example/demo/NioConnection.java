@@ -0,0 +1,445 @@
+package org.example.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The NioConnection class is the per-client state of the {@link NioServer}. It
+ * speaks the same Object stream protocol as the blocking {@link ClientHandler},
+ * including the switch to {@link MessageCodec} frames negotiated at login, so
+ * clients do not notice which engine the server runs. Incoming
+ * bytes are only handed to the ObjectInputStream once a whole message has been
+ * buffered, and handler work for one client runs on the worker pool strictly in
+ * arrival order.
+ */
+class NioConnection {
+    /** Buffers waiting for the socket before the handler's writer is paused. */
+    private static final int MAX_PENDING_WRITES = 16;
+    /** Largest message a client may send, the same on both engines. */
+    private static final int MAX_MESSAGE_BYTES = 4 + MessageCodec.MAX_FRAME_LENGTH;
+
+    private final SocketChannel channel;
+    private final NioServer.IoLoop loop;
+    private final Executor workers;
+    private SelectionKey key;
+
+    // Read side, only touched by the I/O thread
+    private final ObjectStreamFramer framer = new ObjectStreamFramer();
+    private final RecordInputStream recordInput = new RecordInputStream();
+    private ObjectInputStream objectInputStream;
+    private ByteBuffer partialRead; // null while no message is half received
+    private ByteBuffer largeRead; // Own buffer, holding the start of a message too large for the shared one
+    private boolean binaryInbound;
+
+    // Write side, guarded by this
+    private final OutputBuffer outputBuffer = new OutputBuffer();
+    private final ObjectOutputStream objectOutputStream;
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private boolean writerWaiting; // The handler stopped sending until the backlog is written
+    private final MessageCodec codec = new MessageCodec();
+    private boolean binaryOutbound;
+    private int messagesSinceReset;
+    private boolean closeWhenFlushed;
+    private boolean closed;
+
+    // Dispatch side, handler work runs on the worker pool one task at a time
+    private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private ClientHandler handler;
+    private boolean loggedIn;
+    private final Semaphore pendingHandshakes;
+    private final AtomicBoolean handshakeDone = new AtomicBoolean();
+
+    /**
+     * Constructs a NioConnection for an accepted, non-blocking channel and queues
+     * the stream header the client waits for.
+     *
+     * @param channel The accepted socket channel.
+     * @param loop    The selector thread that owns the channel.
+     * @param workers           The pool that runs the handler logic.
+     * @param pendingHandshakes The permits of clients still logging in, one of
+     *                          which this connection holds until its login is
+     *                          over.
+     * @throws IOException If the stream header cannot be written.
+     */
+    NioConnection(SocketChannel channel, NioServer.IoLoop loop, Executor workers, Semaphore pendingHandshakes)
+            throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.pendingHandshakes = pendingHandshakes;
+        synchronized (this) {
+            this.objectOutputStream = new ObjectOutputStream(outputBuffer);
+            this.objectOutputStream.flush();
+            pendingWrites.add(copyOf(outputBuffer.view()));
+            outputBuffer.reset();
+        }
+    }
+
+    /**
+     * Registers the channel with the selector of its I/O thread.
+     *
+     * @param selector The selector of the owning loop.
+     */
+    void register(Selector selector) {
+        try {
+            synchronized (this) {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            }
+            onWritable();
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Reads what is available on the channel and dispatches every complete
+     * message. Called on the I/O thread.
+     *
+     * @param sharedBuffer The loop's shared read buffer.
+     */
+    void onReadable(ByteBuffer sharedBuffer) {
+        ByteBuffer readBuffer = largeRead;
+        if (readBuffer == null) {
+            readBuffer = sharedBuffer;
+            readBuffer.clear();
+            if (partialRead != null) {
+                readBuffer.put(partialRead);
+                partialRead = null;
+            }
+        }
+        try {
+            if (channel.read(readBuffer) < 0) {
+                abort();
+                return;
+            }
+            readBuffer.flip();
+            int consumed = readBuffer.position();
+            while (true) {
+                if (binaryInbound) {
+                    int length = MessageCodec.frameLength(readBuffer);
+                    if (length < 0) {
+                        break;
+                    }
+                    int end = consumed + length;
+                    int limit = readBuffer.limit();
+                    readBuffer.limit(end).position(consumed + 4);
+                    Message message = codec.decode(readBuffer);
+                    readBuffer.limit(limit).position(end);
+                    consumed = end;
+                    dispatch(() -> onMessage(message));
+                    continue;
+                }
+
+                int length = framer.nextRecordLength(readBuffer);
+                if (length < 0) {
+                    break;
+                }
+                int end = readBuffer.position() + length;
+                readBuffer.position(end);
+                if (framer.lastRecordWasReset()) {
+                    continue; // consumed by the ObjectInputStream together with the next object
+                }
+                recordInput.window(readBuffer.array(), consumed, end);
+                consumed = end;
+                if (objectInputStream == null) {
+                    objectInputStream = new ObjectInputStream(recordInput);
+                    continue;
+                }
+                Object object = objectInputStream.readObject();
+                if (object instanceof Message) {
+                    Message message = (Message) object;
+                    if (MessageType.CODEC.getWireName().equals(message.getType())) {
+                        // Everything after this message arrives as binary frames
+                        binaryInbound = true;
+                        continue;
+                    }
+                    dispatch(() -> onMessage(message));
+                }
+            }
+            readBuffer.position(consumed);
+            if (!readBuffer.hasRemaining()) {
+                largeRead = null;
+            } else if (readBuffer.remaining() == readBuffer.capacity()) {
+                // Full with one message; grow an own buffer, doubling so a large
+                // message is copied a bounded number of times
+                if (readBuffer.capacity() >= MAX_MESSAGE_BYTES) {
+                    throw new IOException("Message exceeds " + MAX_MESSAGE_BYTES + " bytes");
+                }
+                largeRead = ByteBuffer.allocate((int) Math.min(MAX_MESSAGE_BYTES, 2L * readBuffer.capacity()));
+                largeRead.put(readBuffer);
+            } else if (readBuffer == largeRead && readBuffer.remaining() >= sharedBuffer.capacity()) {
+                largeRead.compact();
+            } else {
+                largeRead = null;
+                partialRead = ByteBuffer.allocate(readBuffer.remaining());
+                partialRead.put(readBuffer).flip();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Writes queued output until the socket buffer is full. Called on the I/O
+     * thread when the channel becomes writable, and by senders directly.
+     */
+    synchronized void onWritable() {
+        try {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer next = pendingWrites.peek();
+                channel.write(next);
+                if (next.hasRemaining()) {
+                    if (key != null) {
+                        loop.requestWrite(key);
+                    }
+                    return;
+                }
+                pendingWrites.poll();
+            }
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (closeWhenFlushed) {
+                abort();
+            } else if (writerWaiting) {
+                writerWaiting = false;
+                handler.resumeWriter();
+            }
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Serializes a message onto this connection. Safe to call from any thread.
+     * The message is written straight to the socket when nothing else is
+     * queued, and only copied when the socket buffer is full.
+     *
+     * @param message The message to send.
+     * @return true if the caller may keep sending, false if the socket is backed
+     *         up and the handler's writer will be resumed once it has drained.
+     * @throws IOException If the connection is already closed.
+     */
+    synchronized boolean send(Message message) throws IOException {
+        if (closed || closeWhenFlushed) {
+            throw new IOException("Connection closed");
+        }
+        ByteBuffer bytes;
+        if (binaryOutbound) {
+            bytes = codec.encode(message);
+        } else {
+            objectOutputStream.writeObject(message);
+            if (++messagesSinceReset >= MessageCodec.OBJECT_STREAM_RESET_INTERVAL) {
+                // Keep the stream's back-reference table from growing for the whole connection
+                objectOutputStream.reset();
+                messagesSinceReset = 0;
+            }
+            objectOutputStream.flush();
+            bytes = outputBuffer.view();
+        }
+        try {
+            if (pendingWrites.isEmpty()) {
+                try {
+                    channel.write(bytes);
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                }
+                if (!bytes.hasRemaining()) {
+                    return true;
+                }
+            }
+            pendingWrites.add(copyOf(bytes));
+            if (key != null) {
+                loop.requestWrite(key);
+            }
+            if (pendingWrites.size() >= MAX_PENDING_WRITES) {
+                writerWaiting = true;
+                return false;
+            }
+            return true;
+        } finally {
+            outputBuffer.reset();
+        }
+    }
+
+    /**
+     * Switches messages sent to the client from Object streams to binary frames.
+     */
+    synchronized void enableBinaryOutbound() {
+        binaryOutbound = true;
+    }
+
+    /**
+     * Runs a task for this connection on the worker pool.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * Closes the connection once everything already queued has been written.
+     */
+    synchronized void close() {
+        closeWhenFlushed = true;
+        if (pendingWrites.isEmpty()) {
+            abort();
+        }
+    }
+
+    /**
+     * Closes the channel immediately and lets the handler deregister the client.
+     */
+    void abort() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingWrites.clear();
+            if (key != null) {
+                key.cancel();
+            }
+        }
+        finishHandshake();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        dispatch(this::onClosed);
+    }
+
+    /**
+     * Disconnects the client if it has not finished logging in. Scheduled for
+     * when the handshake timeout expires.
+     */
+    void checkHandshake() {
+        if (!handshakeDone.get()) {
+            ServerCore.handshakeTimedOut(channel.socket());
+            abort();
+        }
+    }
+
+    private void finishHandshake() {
+        if (handshakeDone.compareAndSet(false, true)) {
+            pendingHandshakes.release();
+        }
+    }
+
+    private void onMessage(Message message) {
+        if (handler == null) {
+            handler = new ClientHandler(this);
+            loggedIn = handler.login(message);
+            finishHandshake();
+        } else if (loggedIn) {
+            handler.handleMessage(message);
+        }
+    }
+
+    private void onClosed() {
+        if (loggedIn) {
+            loggedIn = false;
+            System.out.println(handler.getClientUsername() + " has disconnected.");
+            ServerCore.updateClientActivity("A user has disconnected");
+            handler.removeClientHandler();
+        }
+    }
+
+    private void dispatch(Runnable task) {
+        inbox.add(task);
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                workers.execute(this::drainInbox);
+            } catch (RejectedExecutionException e) {
+                // The server is shutting down and no longer handles messages
+            }
+        }
+    }
+
+    private void drainInbox() {
+        do {
+            Runnable task;
+            while ((task = inbox.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            drainScheduled.set(false);
+        } while (!inbox.isEmpty() && drainScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * An InputStream over the bytes of complete records in the loop's read
+     * buffer. It never blocks: reading past the window reports end of stream.
+     */
+    private static class RecordInputStream extends InputStream {
+        private byte[] bytes;
+        private int position;
+        private int limit;
+
+        void window(byte[] bytes, int from, int to) {
+            this.bytes = bytes;
+            this.position = from;
+            this.limit = to;
+        }
+
+        @Override
+        public int read() {
+            return position < limit ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int count = Math.min(len, limit - position);
+            if (count <= 0) {
+                return -1;
+            }
+            System.arraycopy(bytes, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer bytes) {
+        ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+        copy.put(bytes).flip();
+        return copy;
+    }
+
+    /**
+     * A reusable byte sink for the ObjectOutputStream.
+     */
+    private static class OutputBuffer extends ByteArrayOutputStream {
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
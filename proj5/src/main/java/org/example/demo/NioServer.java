@@ -0,0 +1,231 @@
+package org.example.demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.LongSupplier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NioServer class is the non-blocking alternative to the thread per client
+ * model of {@link ServerCore}. Accepted sockets are spread over a
+ * small fixed set of selector threads that only move bytes, while decoded
+ * messages are dispatched to a separate worker pool that runs the
+ * {@link ClientHandler} logic. Idle clients therefore cost a selection key and
+ * a few small objects instead of a whole thread stack.
+ */
+public class NioServer {
+    /**
+     * Size of each selector thread's shared read buffer. Larger messages, up
+     * to {@link MessageCodec#MAX_FRAME_LENGTH} like on the threaded engine, are
+     * read into a buffer of their connection's own.
+     */
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ServerConfig config;
+    private final IoLoop[] loops;
+    private final ThreadPoolExecutor workers;
+    private final LongSupplier workerQueueGauge;
+    private final ScheduledExecutorService handshakeTimer;
+    private final Semaphore pendingHandshakes;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    /**
+     * Constructs a NioServer with the given configuration. Nothing is bound
+     * until {@link #bind()} or {@link #run()} is called.
+     *
+     * @param config The server configuration.
+     */
+    public NioServer(ServerConfig config) {
+        this.config = config;
+        this.loops = new IoLoop[config.getIoThreads()];
+        this.workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(config.getWorkerThreads(),
+                namedThreads("nio-worker"));
+        this.workerQueueGauge = Metrics.gauge("server.nio.workerQueue").add(() -> workers.getQueue().size());
+        this.handshakeTimer = Executors.newSingleThreadScheduledExecutor(namedThreads("nio-handshake-timer"));
+        this.pendingHandshakes = new Semaphore(config.getMaxPendingHandshakes());
+    }
+
+    /**
+     * Binds the server port and starts the selector threads. Clients are only
+     * accepted once {@link #run()} is called.
+     *
+     * @return The bound port, which differs from the configured one if that
+     *         was 0.
+     * @throws IOException If the port cannot be bound or a selector cannot be
+     *                     opened.
+     */
+    public synchronized int bind() throws IOException {
+        if (serverChannel == null) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(Selector.open());
+                Thread thread = new Thread(loops[i], "nio-io-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            System.out.println("NIO server listening on port " + serverChannel.socket().getLocalPort() + " with "
+                    + loops.length + " I/O threads and " + config.getWorkerThreads() + " workers");
+        }
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Binds the server port if {@link #bind()} has not, starts the selector
+     * threads and accepts clients on the calling thread until the server is
+     * closed. Only the configured number of clients may be logging in at once;
+     * further connections wait in the accept backlog.
+     *
+     * @throws IOException If the port cannot be bound or a selector cannot be
+     *                     opened.
+     */
+    public void run() throws IOException {
+        bind();
+        try {
+            while (serverChannel.isOpen()) {
+                pendingHandshakes.acquire();
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    pendingHandshakes.release();
+                    throw e;
+                }
+                IoLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                NioConnection connection = new NioConnection(channel, loop, workers, pendingHandshakes);
+                loop.register(connection);
+                handshakeTimer.schedule(connection::checkHandshake, config.getHandshakeTimeoutMillis(),
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops accepting clients and shuts down the selector and worker threads.
+     */
+    public void close() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (IoLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+        workers.shutdown();
+        handshakeTimer.shutdownNow();
+        Metrics.gauge("server.nio.workerQueue").remove(workerQueueGauge);
+    }
+
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A selector thread. It owns one shared read buffer, so a connection only
+     * keeps bytes of its own while a message is partially received.
+     */
+    static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hands a freshly accepted connection to this loop.
+         *
+         * @param connection The connection to register for reads.
+         */
+        void register(NioConnection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Adds write interest for a connection whose outbound data did not fit
+         * into the socket buffer.
+         *
+         * @param key The selection key of the connection.
+         */
+        void requestWrite(SelectionKey key) {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    NioConnection connection;
+                    while ((connection = registrations.poll()) != null) {
+                        connection.register(selector);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection selected = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            selected.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            selected.onReadable(readBuffer);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.out.println("I/O loop stopped: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.example.demo;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The ObjectStreamFramer class finds the boundaries of top-level records in a
+ * Java serialization stream without deserializing them. The NIO engine uses it
+ * to know when a whole {@link Message} has arrived, so that the connection's
+ * ObjectInputStream only ever reads bytes that are already buffered and never
+ * blocks a selector thread.
+ *
+ * Only the subset of the grammar that {@link Message} needs is supported:
+ * strings, null, back references, resets and plain serializable objects
+ * without custom writeObject methods.
+ */
+class ObjectStreamFramer {
+    private static final short STREAM_MAGIC = (short) 0xaced;
+    private static final short STREAM_VERSION = 5;
+    private static final int BASE_WIRE_HANDLE = 0x7e0000;
+
+    private static final byte TC_NULL = 0x70;
+    private static final byte TC_REFERENCE = 0x71;
+    private static final byte TC_CLASSDESC = 0x72;
+    private static final byte TC_OBJECT = 0x73;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_ENDBLOCKDATA = 0x78;
+    private static final byte TC_RESET = 0x79;
+    private static final byte TC_LONGSTRING = 0x7c;
+
+    private static final byte SC_WRITE_METHOD = 0x01;
+    private static final byte SC_SERIALIZABLE = 0x02;
+
+    /** Thrown internally when the buffer ends in the middle of a record. */
+    private static final RuntimeException INCOMPLETE = new RuntimeException("incomplete", null, false, false) {
+    };
+
+    private final Map<Integer, ClassDesc> classDescs = new HashMap<>();
+    private boolean headerRead;
+    private boolean lastRecordWasReset;
+    private int nextHandle = BASE_WIRE_HANDLE;
+
+    private int position;
+    private int limit;
+    private ByteBuffer buffer;
+
+    /**
+     * Returns the length of the next complete record starting at the buffer's
+     * position. The buffer itself is not modified.
+     *
+     * @param buf The buffered bytes received so far.
+     * @return The length of the next record in bytes, or -1 if more bytes are
+     *         needed.
+     * @throws StreamCorruptedException If the bytes are not a supported
+     *                                  serialization stream.
+     */
+    int nextRecordLength(ByteBuffer buf) throws StreamCorruptedException {
+        this.buffer = buf;
+        this.position = buf.position();
+        this.limit = buf.limit();
+        int handleMark = nextHandle;
+        lastRecordWasReset = false;
+        try {
+            if (!headerRead) {
+                if (readShort() != STREAM_MAGIC || readShort() != STREAM_VERSION) {
+                    throw new StreamCorruptedException("Invalid stream header");
+                }
+                headerRead = true;
+            } else if (peekByte() == TC_RESET) {
+                position++;
+                classDescs.clear();
+                nextHandle = BASE_WIRE_HANDLE;
+                lastRecordWasReset = true;
+            } else {
+                readContent();
+            }
+            return position - buf.position();
+        } catch (RuntimeException e) {
+            if (e != INCOMPLETE) {
+                throw e;
+            }
+            rollback(handleMark);
+            return -1;
+        } finally {
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * Checks whether the record found by the last call was a stream reset. A
+     * reset carries no message and is read together with the record after it.
+     *
+     * @return true if the last record was TC_RESET.
+     */
+    boolean lastRecordWasReset() {
+        return lastRecordWasReset;
+    }
+
+    private void rollback(int handleMark) {
+        Iterator<Integer> handles = classDescs.keySet().iterator();
+        while (handles.hasNext()) {
+            if (handles.next() >= handleMark) {
+                handles.remove();
+            }
+        }
+        nextHandle = handleMark;
+    }
+
+    private void readContent() throws StreamCorruptedException {
+        byte tc = readByte();
+        switch (tc) {
+            case TC_NULL:
+                break;
+            case TC_REFERENCE:
+                skip(4);
+                break;
+            case TC_STRING:
+                skip(readShort() & 0xffff);
+                nextHandle++;
+                break;
+            case TC_LONGSTRING:
+                long length = readLong();
+                if (length < 0 || length > Integer.MAX_VALUE) {
+                    throw new StreamCorruptedException("Invalid string length " + length);
+                }
+                skip((int) length);
+                nextHandle++;
+                break;
+            case TC_OBJECT:
+                ClassDesc desc = readClassDesc();
+                if (desc == null) {
+                    throw new StreamCorruptedException("Object without class descriptor");
+                }
+                nextHandle++;
+                readFieldValues(desc);
+                break;
+            default:
+                throw new StreamCorruptedException(String.format("Unsupported type code: %02X", tc));
+        }
+    }
+
+    private void readFieldValues(ClassDesc desc) throws StreamCorruptedException {
+        if (desc.superDesc != null) {
+            readFieldValues(desc.superDesc);
+        }
+        for (char typeCode : desc.fieldTypes) {
+            switch (typeCode) {
+                case 'B':
+                case 'Z':
+                    skip(1);
+                    break;
+                case 'C':
+                case 'S':
+                    skip(2);
+                    break;
+                case 'I':
+                case 'F':
+                    skip(4);
+                    break;
+                case 'J':
+                case 'D':
+                    skip(8);
+                    break;
+                default:
+                    readContent();
+                    break;
+            }
+        }
+    }
+
+    private ClassDesc readClassDesc() throws StreamCorruptedException {
+        byte tc = readByte();
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                ClassDesc desc = classDescs.get(readInt());
+                if (desc == null) {
+                    throw new StreamCorruptedException("Unknown class descriptor reference");
+                }
+                return desc;
+            case TC_CLASSDESC:
+                return readNewClassDesc();
+            default:
+                throw new StreamCorruptedException(String.format("Unsupported class descriptor: %02X", tc));
+        }
+    }
+
+    private ClassDesc readNewClassDesc() throws StreamCorruptedException {
+        skip(readShort() & 0xffff); // class name
+        skip(8); // serialVersionUID
+        int handle = nextHandle++;
+        byte flags = readByte();
+        if ((flags & SC_WRITE_METHOD) != 0 || (flags & SC_SERIALIZABLE) == 0) {
+            throw new StreamCorruptedException("Only plain serializable classes are supported");
+        }
+        int fieldCount = readShort() & 0xffff;
+        char[] fieldTypes = new char[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            fieldTypes[i] = (char) readByte();
+            skip(readShort() & 0xffff); // field name
+            if (fieldTypes[i] == 'L' || fieldTypes[i] == '[') {
+                readContent(); // field type signature
+            }
+        }
+        while (peekByte() != TC_ENDBLOCKDATA) {
+            readContent(); // class annotation
+        }
+        position++;
+        ClassDesc desc = new ClassDesc(fieldTypes, readClassDesc());
+        classDescs.put(handle, desc);
+        return desc;
+    }
+
+    private byte peekByte() {
+        require(1);
+        return buffer.get(position);
+    }
+
+    private byte readByte() {
+        require(1);
+        return buffer.get(position++);
+    }
+
+    private short readShort() {
+        require(2);
+        short value = buffer.getShort(position);
+        position += 2;
+        return value;
+    }
+
+    private int readInt() {
+        require(4);
+        int value = buffer.getInt(position);
+        position += 4;
+        return value;
+    }
+
+    private long readLong() {
+        require(8);
+        long value = buffer.getLong(position);
+        position += 8;
+        return value;
+    }
+
+    private void skip(int count) {
+        require(count);
+        position += count;
+    }
+
+    private void require(int count) {
+        if (limit - position < count) {
+            throw INCOMPLETE;
+        }
+    }
+
+    /**
+     * The parts of a class descriptor needed to skip over an object's fields.
+     */
+    private static class ClassDesc {
+        final char[] fieldTypes;
+        final ClassDesc superDesc;
+
+        ClassDesc(char[] fieldTypes, ClassDesc superDesc) {
+            this.fieldTypes = fieldTypes;
+            this.superDesc = superDesc;
+        }
+    }
+}
@@ -0,0 +1,627 @@
+package org.example.demo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The PeerClient class is one peer of the file sharing network, without a
+ * user interface: it logs in to the server, publishes the files of its shared
+ * folder, answers the server's questions about them, searches, and downloads
+ * files from the peers the server points it to. Its {@link FileTransferManager}
+ * serves the shared files to other peers.
+ * The JavaFX {@link Client} is a thin adapter over a PeerClient; tests, load
+ * generators and batch jobs use it directly, as many peers in one JVM as
+ * needed, each with its own folders.
+ */
+public class PeerClient implements AutoCloseable {
+
+    /**
+     * Receives what a peer cannot return from a method call. Every method is
+     * called on the peer's reader thread and does nothing by default.
+     */
+    public interface Listener {
+        /**
+         * Called when a download could not be started with a peer the server
+         * pointed to.
+         *
+         * @param fileName The file that was to be downloaded.
+         * @param reason   Why it could not be started.
+         */
+        default void downloadFailed(String fileName, String reason) {
+        }
+
+        /**
+         * Called when the server closed the connection.
+         */
+        default void serverDown() {
+        }
+
+        /**
+         * Called when the connection to the server failed.
+         *
+         * @param reason What went wrong.
+         */
+        default void connectionLost(String reason) {
+        }
+    }
+
+    /**
+     * Thrown by {@link #connect(String, int)} when another peer is logged in
+     * with the same username.
+     */
+    public static class UsernameTakenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UsernameTakenException(String username) {
+            super("The username '" + username + "' is already taken.");
+        }
+    }
+
+    private static final String ENCRYPTION_KEY = "mySecretKey";
+    private static final String USERNAME_TAKEN = "Username is already taken.";
+    private static final int CATALOG_CHUNK_CHARS = 24 * 1024; // Keeps each catalog message small
+    private static final long LOGIN_TIMEOUT_SECONDS = 10;
+    private static final Metrics.Counter[] MESSAGES_IN = Metrics.countersByType("peer.messagesIn");
+    private static final Metrics.Counter[] MESSAGES_OUT = Metrics.countersByType("peer.messagesOut");
+    // From sending a search to its results, as the user sees it
+    private static final Metrics.Histogram SEARCH_LATENCY = Metrics.histogram("peer.search.latencyMicros",
+            Metrics.LATENCY_MICROS);
+
+    private final String username;
+    private final String downloadPath;
+    private final FileTransferManager fileTransferManager;
+    private final Listener listener;
+    private Socket socket;
+    private ObjectInputStream objectInputStream;
+    private ObjectOutputStream objectOutputStream;
+    private String serverAddress;
+    private int serverPort;
+    private final MessageCodec codec = new MessageCodec();
+    private DataInputStream frameInputStream; // Set once the server sends binary frames
+    private OutputStream frameOutputStream; // Set once we send binary frames
+    private int messagesSinceReset;
+    private final CompletableFuture<Void> login = new CompletableFuture<>();
+    private volatile boolean closed;
+    // Searches waiting for results; the server answers a client's requests in order
+    private final Queue<CompletableFuture<List<String>>> pendingSearches = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, List<Consumer<TransferProgress>>> progressListeners = new ConcurrentHashMap<>();
+    private FolderWatcher sharedFolderWatcher;
+    // Publish a Bloom filter summary instead of the full list of shared files
+    private final boolean publishSummary = "bloom".equalsIgnoreCase(System.getProperty("client.catalog", "full"));
+    private CountingBloomFilter sharedSummary;
+    private final Set<String> summarizedNames = new HashSet<>();
+
+    /**
+     * Constructs a PeerClient that shares the user.dir/files folder and
+     * downloads to user.dir/downloads.
+     *
+     * @param username The username to log in with.
+     */
+    public PeerClient(String username) {
+        this(username, System.getProperty("user.dir") + "/files", System.getProperty("user.dir") + "/downloads",
+                new Listener() {
+                });
+    }
+
+    /**
+     * Constructs a PeerClient. Its upload server starts right away; the
+     * server connection is made by {@link #connect(String, int)}.
+     *
+     * @param username     The username to log in with.
+     * @param sharePath    The folder whose files are shared with other peers.
+     * @param downloadPath The folder downloads are saved to.
+     * @param listener     The listener for connection and download problems.
+     */
+    public PeerClient(String username, String sharePath, String downloadPath, Listener listener) {
+        this.username = username;
+        this.downloadPath = downloadPath;
+        this.listener = listener;
+        this.fileTransferManager = new FileTransferManager(sharePath);
+        fileTransferManager.addProgressListener(this::dispatchProgress);
+    }
+
+    /**
+     * Connects to the server and logs in, then publishes the shared files and
+     * adopts the downloads a previous run left incomplete.
+     *
+     * @param serverAddress The server's host name or address.
+     * @param serverPort    The server's port.
+     * @throws UsernameTakenException If the username is already taken.
+     * @throws IOException            If the server cannot be reached or closes
+     *                                the connection during the login.
+     */
+    public void connect(String serverAddress, int serverPort) throws IOException {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        try {
+            socket = new Socket(serverAddress, serverPort);
+            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            objectOutputStream.flush();
+            objectInputStream = new ObjectInputStream(socket.getInputStream());
+
+            // Send the username as a Message object to the server, offering the binary
+            // protocol; servers that do not know it simply ignore the content
+            sendMessage(new Message("login", username, null, MessageCodec.BINARY));
+            if (closed) {
+                throw new IOException("Could not send the login");
+            }
+            Thread reader = new Thread(this::listenForMessages, "peer-" + username);
+            reader.setDaemon(true);
+            reader.start();
+            login.get(LOGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            disconnect();
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            // Servers that predate the binary protocol only answer a refused login,
+            // so silence means we are logged in on Object streams
+            if (closed) {
+                throw new IOException("The connection closed during the login");
+            }
+            login.complete(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            disconnect();
+            throw new IOException("Interrupted while logging in");
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+        publishSharedFiles();
+        resumeIncompleteDownloads();
+    }
+
+    /**
+     * Searches the server's shared folder.
+     *
+     * @param query The text to search for.
+     * @return The names of the matching files, once the server answered. The
+     *         future fails if the connection is lost first.
+     */
+    public CompletableFuture<List<String>> search(String query) {
+        CompletableFuture<List<String>> results = new CompletableFuture<>();
+        long searchStart = System.nanoTime();
+        results.thenRun(() -> SEARCH_LATENCY.record((System.nanoTime() - searchStart) / 1000));
+        synchronized (this) { // Queued and sent in one step, so the requests go out in queue order
+            if (!isConnected()) {
+                results.completeExceptionally(new IOException("Not connected"));
+                return results;
+            }
+            pendingSearches.add(results);
+            sendMessage(new Message("search", username, null, query));
+        }
+        if (closed) {
+            failPendingSearches(); // Disconnected while sending
+        }
+        return results;
+    }
+
+    /**
+     * Downloads a file from the peers that hold it. The download starts as
+     * soon as the server has found a holder, and is saved to the download
+     * folder under the same name.
+     *
+     * @param fileName The name of the file.
+     * @return The download, which completes through
+     *         {@link DownloadSession#getCompletion()}.
+     */
+    public DownloadSession download(String fileName) {
+        return download(fileName, null);
+    }
+
+    /**
+     * Downloads a file from the peers that hold it, reporting its progress.
+     *
+     * @param fileName The name of the file.
+     * @param progress Called with the download's progress up to
+     *                 transfer.progressHz times a second, on the sampling
+     *                 thread; may be null.
+     * @return The download, which completes through
+     *         {@link DownloadSession#getCompletion()}.
+     */
+    public DownloadSession download(String fileName, Consumer<TransferProgress> progress) {
+        DownloadSession session = fileTransferManager.requestDownload(fileName, savePathOf(fileName));
+        if (progress != null) {
+            progressListeners.computeIfAbsent(session.getId(), id -> new CopyOnWriteArrayList<>()).add(progress);
+        }
+        findSources(session);
+        return session;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getServerAddress() {
+        return serverAddress;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public FileTransferManager getFileTransferManager() {
+        return fileTransferManager;
+    }
+
+    /**
+     * Checks whether the peer is logged in and the connection is open.
+     *
+     * @return true if connected.
+     */
+    public boolean isConnected() {
+        return !closed && login.isDone() && !login.isCompletedExceptionally();
+    }
+
+    /**
+     * Sends a message to the server.
+     *
+     * @param message The message to be sent.
+     */
+    public synchronized void sendMessage(Message message) {
+        if (closed || objectOutputStream == null) {
+            return; // Not connected
+        }
+        try {
+            String encryptedContent = Encryption.encrypt(message.getContent(), ENCRYPTION_KEY);
+            Message encryptedMessage = new Message(message.getType(), message.getSender(), message.getRecipient(),
+                    encryptedContent);
+            Metrics.countMessage(MESSAGES_OUT, message.getType());
+            if (frameOutputStream != null) {
+                codec.write(encryptedMessage, frameOutputStream);
+                frameOutputStream.flush();
+                return;
+            }
+            objectOutputStream.writeObject(encryptedMessage);
+            if (++messagesSinceReset >= MessageCodec.OBJECT_STREAM_RESET_INTERVAL) {
+                // Keep the stream's back-reference table from growing for the whole connection
+                objectOutputStream.reset();
+                messagesSinceReset = 0;
+            }
+            objectOutputStream.flush();
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    private void listenForMessages() {
+        while (!closed) {
+            try {
+                Message messageFromServer = frameInputStream != null
+                        ? codec.read(frameInputStream)
+                        : (Message) objectInputStream.readObject();
+                if (messageFromServer == null) {
+                    disconnect();
+                    listener.serverDown();
+                    return;
+                }
+                // Decrypt the content
+                String decryptedContent = Encryption.decrypt(messageFromServer.getContent(), ENCRYPTION_KEY);
+                Message decryptedMessage = new Message(messageFromServer.getType(), messageFromServer.getSender(),
+                        messageFromServer.getRecipient(), decryptedContent);
+                handleMessage(decryptedMessage);
+            } catch (Exception e) {
+                if (!closed) {
+                    disconnect();
+                    login.completeExceptionally(new IOException(e.getMessage(), e));
+                    listener.connectionLost(e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    private void handleMessage(Message message) throws IOException {
+        Metrics.countMessage(MESSAGES_IN, message.getType());
+        if (message.getType().equals("login")) {
+            if (USERNAME_TAKEN.equals(message.getContent())) {
+                boolean waiting = login.completeExceptionally(new UsernameTakenException(username));
+                disconnect();
+                if (!waiting) { // Refused after connect() gave up waiting and went ahead
+                    listener.connectionLost(USERNAME_TAKEN);
+                }
+            } else if (MessageCodec.BINARY.equals(message.getContent())) {
+                switchToBinaryFrames();
+                login.complete(null);
+            }
+            return;
+        }
+        login.complete(null); // Servers without the binary protocol do not confirm the login
+        switch (message.getType()) {
+            case "searchResults":
+                handleSearchResults(message.getContent());
+                break;
+            case "initiateDownloadFrom":
+                handleInitiateDownloadFrom(message);
+                break;
+            case "checkFile":
+                handleCheckFileRequest(message);
+                break;
+            default:
+                System.out.println("Unhandled message type: " + message.getType());
+                break;
+        }
+    }
+
+    /**
+     * Switches both directions of the server connection to binary frames after
+     * the server accepted them. The server sends frames right after its
+     * acceptance; we confirm with a last Object stream message before our own
+     * frames start.
+     *
+     * @throws IOException If the socket streams cannot be opened.
+     */
+    private void switchToBinaryFrames() throws IOException {
+        frameInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        synchronized (this) {
+            sendMessage(new Message("codec", username, null, MessageCodec.BINARY));
+            frameOutputStream = new BufferedOutputStream(socket.getOutputStream());
+        }
+    }
+
+    private void handleSearchResults(String results) {
+        CompletableFuture<List<String>> search = pendingSearches.poll();
+        if (search == null) {
+            System.out.println("Unrequested search results: " + results);
+            return;
+        }
+        search.complete(results == null || results.isEmpty() ? Collections.emptyList()
+                : Arrays.asList(results.split(", ")));
+    }
+
+    private void handleInitiateDownloadFrom(Message message) {
+        String[] contentParts = message.getContent().split(":"); // The format is "filename:port"
+        if (contentParts.length < 2) {
+            System.out.println("Invalid download initiation message format.");
+            return;
+        }
+        String filename = contentParts[0];
+        try {
+            int port = Integer.parseInt(contentParts[1]);
+            fileTransferManager.downloadFromSource(serverAddress, port, filename, savePathOf(filename));
+        } catch (RuntimeException e) {
+            listener.downloadFailed(filename, e.getMessage());
+        }
+    }
+
+    private void handleCheckFileRequest(Message message) {
+        String filename = message.getContent();
+        if (fileTransferManager.hasFile(filename)) {
+            sendMessage(new Message("fileAvailable", username, message.getRecipient(),
+                    filename + ":" + fileTransferManager.getPort()));
+        }
+    }
+
+    private void dispatchProgress(List<TransferProgress> changed) {
+        for (TransferProgress progress : changed) {
+            List<Consumer<TransferProgress>> listeners = progressListeners.get(progress.getSession().getId());
+            if (listeners != null) {
+                for (Consumer<TransferProgress> progressListener : listeners) {
+                    progressListener.accept(progress);
+                }
+            }
+        }
+    }
+
+    private String savePathOf(String fileName) {
+        return new File(downloadPath, fileName).getPath();
+    }
+
+    private void findSources(DownloadSession session) {
+        if (isConnected()) {
+            sendMessage(new Message("downloadRequest", username, username, session.getFileName()));
+        }
+    }
+
+    /**
+     * Adopts the downloads a previous run left incomplete and keeps asking the
+     * server for holders of them, and of downloads whose sources all failed,
+     * so they resume as soon as a holder is online.
+     */
+    private void resumeIncompleteDownloads() {
+        fileTransferManager.adoptIncompleteDownloads(downloadPath);
+        fileTransferManager.setSourceFinder(this::findSources);
+    }
+
+    /**
+     * Tells the server which files this client shares and keeps it informed as
+     * the shared folder changes, so download requests can be routed without
+     * asking every client.
+     */
+    private void publishSharedFiles() {
+        sharedFolderWatcher = new FolderWatcher(Paths.get(fileTransferManager.getSharePath()),
+                new FolderWatcher.Listener() {
+                    @Override
+                    public void fileAdded(String name) {
+                        if (publishSummary) {
+                            summaryChanged(name, true);
+                        } else {
+                            sendMessage(new Message("catalogAdd", username, null, name));
+                        }
+                    }
+
+                    @Override
+                    public void fileRemoved(String name) {
+                        if (publishSummary) {
+                            summaryChanged(name, false);
+                        } else {
+                            sendMessage(new Message("catalogRemove", username, null, name));
+                        }
+                    }
+
+                    @Override
+                    public void rescan() {
+                        if (publishSummary) {
+                            sendSummary();
+                        } else {
+                            sendCatalog();
+                        }
+                    }
+                });
+        try {
+            sharedFolderWatcher.start("shared-folder-watcher-" + username);
+        } catch (IOException e) {
+            System.out.println("Shared folder is not watched: " + e.getMessage());
+        }
+        // Sent after the watcher started, so nothing changed in between is lost
+        if (publishSummary) {
+            sendSummary();
+        } else {
+            sendCatalog();
+        }
+    }
+
+    /**
+     * Sends a Bloom filter summary of the shared files, replacing anything
+     * published before. The filter is sized from the client.bloomExpectedFiles
+     * and client.bloomFalsePositiveRate system properties, and at least twice
+     * the current number of files so there is room to grow.
+     */
+    private synchronized void sendSummary() {
+        File[] files = new File(fileTransferManager.getSharePath()).listFiles(File::isFile);
+        summarizedNames.clear();
+        if (files != null) {
+            for (File file : files) {
+                summarizedNames.add(file.getName());
+            }
+        }
+        int expectedFiles = Math.max(Integer.getInteger("client.bloomExpectedFiles", 1024), summarizedNames.size() * 2);
+        double falsePositiveRate = Double.parseDouble(System.getProperty("client.bloomFalsePositiveRate", "0.01"));
+        sharedSummary = new CountingBloomFilter(expectedFiles, falsePositiveRate);
+        for (String name : summarizedNames) {
+            sharedSummary.add(name);
+        }
+        sendMessage(new Message("summary", username, null,
+                fileTransferManager.getPort() + "\n" + sharedSummary.toBloomFilter().encode()));
+    }
+
+    /**
+     * Applies a change of the shared folder to the summary and sends the bits
+     * that changed. Once the folder outgrows the filter, a larger one is sent.
+     *
+     * @param name  The file name.
+     * @param added true if the file was added, false if it was removed.
+     */
+    private synchronized void summaryChanged(String name, boolean added) {
+        if (sharedSummary == null) {
+            return;
+        }
+        List<Integer> changed;
+        if (added) {
+            if (!summarizedNames.add(name)) {
+                return;
+            }
+            if (summarizedNames.size() > sharedSummary.getExpectedNames()) {
+                sendSummary();
+                return;
+            }
+            changed = sharedSummary.add(name);
+        } else {
+            if (!summarizedNames.remove(name)) {
+                return;
+            }
+            changed = sharedSummary.remove(name);
+        }
+        if (!changed.isEmpty()) {
+            String prefix = added ? "+" : "-";
+            sendMessage(new Message("summaryUpdate", username, null,
+                    changed.stream().map(position -> prefix + position).collect(Collectors.joining(","))));
+        }
+    }
+
+    /**
+     * Sends the complete list of shared files. The first message carries the
+     * upload port and replaces anything published before; the remaining names
+     * follow in chunks.
+     */
+    private synchronized void sendCatalog() {
+        File[] files = new File(fileTransferManager.getSharePath()).listFiles(File::isFile);
+        StringBuilder chunk = new StringBuilder().append(fileTransferManager.getPort());
+        String type = "catalog";
+        if (files != null) {
+            for (File file : files) {
+                if (chunk.length() + file.getName().length() >= CATALOG_CHUNK_CHARS) {
+                    sendMessage(new Message(type, username, null, chunk.toString()));
+                    chunk.setLength(0);
+                    type = "catalogAdd";
+                }
+                if (chunk.length() > 0) {
+                    chunk.append('\n');
+                }
+                chunk.append(file.getName());
+            }
+        }
+        if (chunk.length() > 0) {
+            sendMessage(new Message(type, username, null, chunk.toString()));
+        }
+    }
+
+    private void failPendingSearches() {
+        CompletableFuture<List<String>> search;
+        while ((search = pendingSearches.poll()) != null) {
+            search.completeExceptionally(new IOException("Disconnected from the server"));
+        }
+    }
+
+    /**
+     * Disconnects from the server. Searches still waiting fail; downloads and
+     * uploads keep running until {@link #close()}.
+     */
+    public void disconnect() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        failPendingSearches();
+        if (sharedFolderWatcher != null) {
+            sharedFolderWatcher.stop();
+        }
+        try {
+            if (objectOutputStream != null) {
+                objectOutputStream.close();
+            }
+            if (objectInputStream != null) {
+                objectInputStream.close();
+            }
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Disconnects from the server and stops every transfer, saving the
+     * downloads' journals so a later run can resume them.
+     */
+    @Override
+    public void close() {
+        disconnect();
+        fileTransferManager.close();
+    }
+}
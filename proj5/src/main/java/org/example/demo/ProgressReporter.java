@@ -0,0 +1,184 @@
+package org.example.demo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The ProgressReporter class samples the byte counters of every download at a
+ * fixed frame rate and hands the listeners one batch of
+ * {@link TransferProgress} snapshots per frame. However fast the transfers
+ * go, a user interface gets at most one update per download per frame.
+ * Downloads that did not change since the last frame, including stalled
+ * ones once their recent rate has settled, are left out of the batch, and no
+ * batch is sent if nothing changed.
+ * The recent rate is an exponentially weighted average with a time constant
+ * of about a second; the average rate counts only the time a download was
+ * running. Sampling starts when the first listener is added.
+ * A COMPLETED download is reported once more and then no longer sampled;
+ * its owner can drop it from the supplied sessions and pass it to
+ * {@link #finished} instead, so the last frame still shows it done.
+ */
+public class ProgressReporter {
+    private static final double RATE_TIME_CONSTANT_SECONDS = 1.0;
+    private static final double RATE_CHANGE_REPORTED = 0.01; // Smaller relative changes are not worth a frame
+
+    private final Supplier<Collection<DownloadSession>> sessions;
+    private final long frameNanos;
+    private final List<Consumer<List<TransferProgress>>> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Integer, Tracker> trackers = new HashMap<>(); // Only touched by the sampling thread
+    private final Queue<DownloadSession> finished = new ConcurrentLinkedQueue<>(); // To report one last time
+    private ScheduledExecutorService sampler; // Guarded by this
+
+    /**
+     * Constructs a ProgressReporter.
+     *
+     * @param sessions        Supplies the downloads to sample.
+     * @param framesPerSecond How often to sample and report.
+     */
+    public ProgressReporter(Supplier<Collection<DownloadSession>> sessions, double framesPerSecond) {
+        this.sessions = sessions;
+        this.frameNanos = (long) (1e9 / Math.max(1, framesPerSecond));
+    }
+
+    /**
+     * Registers a listener for the snapshots of every frame. It is called on
+     * the sampling thread, so it should only hand the batch over, for
+     * example with one Platform.runLater per batch.
+     *
+     * @param listener The listener.
+     */
+    public synchronized void addListener(Consumer<List<TransferProgress>> listener) {
+        listeners.add(listener);
+        if (sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(NioServer.namedThreads("transfer-progress"));
+            sampler.scheduleAtFixedRate(this::sample, 0, frameNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Reports a download that is no longer supplied one last time, in the
+     * next frame, and then forgets it.
+     *
+     * @param session The finished download.
+     */
+    public synchronized void finished(DownloadSession session) {
+        if (sampler != null && !sampler.isShutdown()) {
+            finished.add(session);
+        }
+    }
+
+    /**
+     * Stops sampling. No listener is called afterwards.
+     */
+    public synchronized void stop() {
+        listeners.clear();
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+    }
+
+    private void sample() {
+        try {
+            long now = System.nanoTime();
+            List<TransferProgress> changed = new ArrayList<>();
+            Set<Integer> sampled = new HashSet<>();
+            for (DownloadSession session : sessions.get()) {
+                sampled.add(session.getId());
+                Tracker tracker = trackers.computeIfAbsent(session.getId(), id -> new Tracker());
+                if (tracker.isFinished()) {
+                    continue; // Already reported as COMPLETED, which is final
+                }
+                TransferProgress progress = tracker.sample(session, now);
+                if (progress != null) {
+                    changed.add(progress);
+                }
+            }
+            DownloadSession done;
+            while ((done = finished.poll()) != null) {
+                Tracker tracker = trackers.remove(done.getId());
+                sampled.remove(done.getId());
+                TransferProgress progress = (tracker != null ? tracker : new Tracker()).sample(done, now);
+                if (progress != null) {
+                    changed.add(progress);
+                }
+            }
+            trackers.keySet().retainAll(sampled); // Forget downloads that are gone
+            if (!changed.isEmpty()) {
+                for (Consumer<List<TransferProgress>> listener : listeners) {
+                    listener.accept(changed);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep sampling; an exception would cancel the schedule
+            System.out.println("Progress report failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The sampling state of one download.
+     */
+    private static class Tracker {
+        private long lastNanos = -1;
+        private long lastReceived;
+        private double rate;
+        private long runningNanos;
+        private long runningBytes;
+        private TransferProgress reported;
+
+        boolean isFinished() {
+            return reported != null && reported.getState() == DownloadSession.State.COMPLETED;
+        }
+
+        /**
+         * Samples a download.
+         *
+         * @return The new snapshot, or null if it would show the same as the
+         *         last one reported.
+         */
+        TransferProgress sample(DownloadSession session, long now) {
+            DownloadSession.State state = session.getState();
+            long received = session.getReceivedBytes();
+            if (lastNanos >= 0) {
+                long elapsed = now - lastNanos;
+                long bytes = Math.max(0, received - lastReceived);
+                double seconds = elapsed / 1e9;
+                if (state == DownloadSession.State.RUNNING) {
+                    double weight = 1 - Math.exp(-seconds / RATE_TIME_CONSTANT_SECONDS);
+                    rate += weight * (bytes / Math.max(seconds, 1e-9) - rate);
+                    runningNanos += elapsed;
+                    runningBytes += bytes;
+                } else {
+                    rate = 0;
+                }
+            }
+            lastNanos = now;
+            lastReceived = received;
+
+            double average = runningNanos > 0 ? runningBytes / (runningNanos / 1e9) : 0;
+            TransferProgress progress = new TransferProgress(session, state, session.getCompletedBytes(),
+                    session.getFileSize(), rate, average);
+            if (reported != null && reported.getState() == state
+                    && reported.getCompletedBytes() == progress.getCompletedBytes()
+                    && reported.getFileSize() == progress.getFileSize()
+                    && Math.abs(rate - reported.getCurrentRate())
+                            < Math.max(1, reported.getCurrentRate() * RATE_CHANGE_REPORTED)) {
+                return null; // Nothing a listener would show has changed
+            }
+            reported = progress;
+            return progress;
+        }
+    }
+}
@@ -1,12 +1,24 @@
 package org.example.demo;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class SearchManager {
+    /** Smallest number of pending changes that triggers an index rebuild. */
+    private static final int MIN_COMPACT_THRESHOLD = 256;
+
     private String folderPath;
-    private File[] fileList;
+    private volatile Snapshot snapshot; // Replaced as a whole on every change, never mutated
+    private final Set<String> liveNames = new LinkedHashSet<>(); // Only touched while holding this
+    private FolderWatcher watcher;
 
     public SearchManager(String folderPath) {
         System.out.println("Directory path: " + folderPath); // Log the path to check it
@@ -14,39 +26,172 @@ public class SearchManager {
         updateFileList(); // Initialize file list at startup
     }
 
-    public void updateFileList() {
+    /**
+     * Relists the whole folder and rebuilds the index. Used at startup and when
+     * the watcher has lost track of individual changes.
+     */
+    public synchronized void updateFileList() {
         File folder = new File(folderPath);
-        fileList = folder.listFiles();
+        File[] fileList = folder.listFiles();
+        liveNames.clear();
         if (fileList == null) {
             System.out.println("No files found or not a directory");
+            snapshot = null;
         } else {
             System.out.println("Number of files found: " + fileList.length);
 
+            for (File file : fileList) {
+                liveNames.add(file.getName());
+            }
+            snapshot = new Snapshot(new TrigramIndex(liveNames.toArray(new String[0])));
+        }
+    }
+
+    /**
+     * Starts a background thread that applies files created, deleted or renamed
+     * in the folder to the catalog as they happen, without relisting the folder.
+     *
+     * @throws IOException If the folder cannot be watched.
+     */
+    public void startWatching() throws IOException {
+        watcher = new FolderWatcher(Paths.get(folderPath), new FolderWatcher.Listener() {
+            @Override
+            public void fileAdded(String name) {
+                SearchManager.this.fileAdded(name);
+            }
 
+            @Override
+            public void fileRemoved(String name) {
+                SearchManager.this.fileRemoved(name);
+            }
+
+            @Override
+            public void rescan() {
+                updateFileList();
+            }
+        });
+        watcher.start("catalog-watcher");
+        // Catch anything that changed before the registration took effect
+        updateFileList();
+    }
+
+    /**
+     * Stops the background watcher, if it is running.
+     */
+    public void stopWatching() {
+        if (watcher != null) {
+            watcher.stop();
         }
     }
 
+    /**
+     * Adds a single file name to the catalog.
+     *
+     * @param name The name of the new file.
+     */
+    synchronized void fileAdded(String name) {
+        if (snapshot == null || !liveNames.add(name)) {
+            return;
+        }
+        Snapshot current = snapshot;
+        if (current.removed.contains(name)) {
+            // Re-created under a name the base index still holds
+            Set<String> removed = new HashSet<>(current.removed);
+            removed.remove(name);
+            publish(new Snapshot(current.base, current.added, removed));
+        } else {
+            String[] added = Arrays.copyOf(current.added, current.added.length + 1);
+            added[added.length - 1] = name;
+            publish(new Snapshot(current.base, added, current.removed));
+        }
+    }
+
+    /**
+     * Removes a single file name from the catalog.
+     *
+     * @param name The name of the deleted file.
+     */
+    synchronized void fileRemoved(String name) {
+        if (snapshot == null || !liveNames.remove(name)) {
+            return;
+        }
+        Snapshot current = snapshot;
+        List<String> added = new ArrayList<>(Arrays.asList(current.added));
+        if (added.remove(name)) {
+            publish(new Snapshot(current.base, added.toArray(new String[0]), current.removed));
+        } else {
+            Set<String> removed = new HashSet<>(current.removed);
+            removed.add(name);
+            publish(new Snapshot(current.base, current.added, removed));
+        }
+    }
+
+    /**
+     * Makes a new snapshot visible to searches, first folding the pending
+     * changes into a fresh index once they are too many to scan cheaply.
+     */
+    private void publish(Snapshot next) {
+        int pending = next.added.length + next.removed.size();
+        if (pending > Math.max(MIN_COMPACT_THRESHOLD, next.base.size() / 16)) {
+            next = new Snapshot(new TrigramIndex(liveNames.toArray(new String[0])));
+        }
+        snapshot = next;
+    }
+
     /**
      * Searches for files that contain the specified query in their name.
-     * 
+     * Candidates come from the trigram index, so the cost depends on how many
+     * names share the query's trigrams rather than on the size of the folder.
+     * Searches never wait for the watcher: they read whichever snapshot was
+     * current when they started.
+     *
      * @param query The substring to search for within file names.
      * @return List of matching file names.
      */
     public List<String> searchFiles(String query) {
-        List<String> results = new ArrayList<>();
-        if (fileList == null) {
+        Snapshot current = snapshot;
+        if (current == null) {
             System.out.println("File list not initialized or directory is empty.");
-            return results;
-        }
-        for (File file : fileList) {
-            if (file.getName().contains(query)) {
-                results.add(file.getName());
-            }
+            return new ArrayList<>();
         }
+        List<String> results = current.search(query);
         System.out.println("Search results count: " + results.size());
 
-        Server.updateClientActivity("Client searched for: " + query + " with " + results.size() + " results found");
+        ServerCore.updateClientActivity("Client searched for: " + query + " with " + results.size() + " results found");
         return results;
     }
 
+    /**
+     * An immutable view of the catalog: an index built at some point, plus the
+     * names added and removed since then.
+     */
+    private static class Snapshot {
+        final TrigramIndex base;
+        final String[] added;
+        final Set<String> removed;
+
+        Snapshot(TrigramIndex base) {
+            this(base, new String[0], Collections.emptySet());
+        }
+
+        Snapshot(TrigramIndex base, String[] added, Set<String> removed) {
+            this.base = base;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        List<String> search(String query) {
+            List<String> results = base.search(query);
+            if (!removed.isEmpty()) {
+                results.removeIf(removed::contains);
+            }
+            for (String name : added) {
+                if (name.contains(query)) {
+                    results.add(name);
+                }
+            }
+            return results;
+        }
+    }
+
 }
@@ -1,27 +1,20 @@
 package org.example.demo;
 
 import javafx.application.Application;
-import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * The Server class is responsible for handling the server-side operations
- * of the chat application. It listens for incoming client connections and
- * creates a new thread for each connected client.
+ * The Server class is the JavaFX window of the chat server. It starts a
+ * {@link ServerCore}, which does all the server-side work, and shows the
+ * core's activity log. {@link ServerCore#main(String[])} runs the same server
+ * without a window.
  */
 public class Server extends Application {
 
-    private ServerSocket serverSocket;
-    public static Set<String> activeUsernames = ConcurrentHashMap.newKeySet();
     private static ServerController controller;
-    public static SearchManager searchManager;
+    private ServerCore core;
 
     @Override
     public void start(Stage primaryStage) {
@@ -33,28 +26,9 @@ public class Server extends Application {
             primaryStage.setScene(scene);
             primaryStage.show();
 
-            // controller = fxmlLoader.getController();
+            core = new ServerCore(ServerConfig.fromArgs(getParameters().getRaw().toArray(new String[0])));
             setController(fxmlLoader.getController());
-            // System.out.println("Controller set in start method: " + (controller !=
-            // null));
-
-            String currentDir = System.getProperty("user.dir");
-            String relativePath = currentDir + "/files";
-
-            searchManager = new SearchManager(relativePath);
-
-            // I will probably need to make a FileTransferManager object - similar to thhe
-
-            Thread serverThread = new Thread(() -> {
-                try {
-                    serverSocket = new ServerSocket(4044);
-                    startServer();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
-            serverThread.setDaemon(true);
-            serverThread.start();
+            core.start();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -62,64 +36,27 @@ public class Server extends Application {
     }
 
     /**
-     * Starts the server and listens for incoming client connections.
-     * When a new client connects, it starts a new ClientHandler thread to handle
-     * the client.
-     */
-    public void startServer() {
-        try {
-            while (!serverSocket.isClosed()) {
-                Socket socket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(socket);
-                Thread thread = new Thread(clientHandler);
-                thread.start();
-            }
-        } catch (IOException e) {
-            closeServerSocket();
-        }
-    }
-
-    /**
-     * Closes the server socket and releases any system resources associated with
-     * it.
+     * Stops the server when the window is closed.
      */
-    public void closeServerSocket() {
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    @Override
+    public void stop() {
+        if (core != null) {
+            core.close();
         }
     }
 
-    /**
-     * Appends a log of client activity to the server GUI to assist in monitoring.
-     *
-     * @param activity Description of the client activity
-     */
-    public static synchronized void updateClientActivity(String activity) {
-        // To avoid threading issues
-        Platform.runLater(() -> {
-            if (controller != null) {
-                controller.appendClientActivity(activity);
-            } else {
-                // System.out.println("Controller is not initialized.");
-            }
-        });
-    }
-
     public static synchronized void setController(ServerController newController) {
-        // System.out.println("Setting the server controller.");
         controller = newController;
-        // System.out.println("Controller set: " + (controller != null));
+        if (controller != null) {
+            ServerCore.getActivityLog().addListener(controller::showActivity);
+        }
     }
 
     /**
      * The main entry point for the server application.
      *
-     * @param args Command-line arguments (not used).
-     * @throws IOException If an I/O error occurs when opening the socket.
+     * @param args Settings of the form --name=value, see
+     *             {@link ServerConfig#fromArgs(String[])}.
      */
     public static void main(String[] args) {
         launch(args);
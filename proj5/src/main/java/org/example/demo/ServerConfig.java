@@ -0,0 +1,314 @@
+package org.example.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * The ServerConfig class holds the tunable settings of the coordination server.
+ * Values are read from properties (normally the system properties, for example
+ * {@code -Dserver.engine=nio}) and fall back to the defaults below. They can
+ * also be given on the command line, see {@link #fromArgs(String[])}.
+ */
+public class ServerConfig {
+    public static final String ENGINE_THREADED = "threaded";
+    public static final String ENGINE_NIO = "nio";
+
+    /**
+     * What to do when a client does not read its messages fast enough and its
+     * outbound queue is full.
+     */
+    public enum SlowConsumerPolicy {
+        /** Discard the new message. */
+        DROP,
+        /** Disconnect the slow client. */
+        DISCONNECT,
+        /**
+         * Make the sender wait, and disconnect the client if that times out.
+         * The wait holds up everything else the sender handles, and with the
+         * NIO engine it holds a worker thread.
+         */
+        BLOCK
+    }
+
+    private final int port;
+    private final String sharePath;
+    private final String engine;
+    private final int ioThreads;
+    private final int workerThreads;
+    private final int outboundQueueCapacity;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final long outboundBlockMillis;
+    private final int acceptBacklog;
+    private final int maxPendingHandshakes;
+    private final int handshakeTimeoutMillis;
+    private final int activityLogCapacity;
+    private final int activityLogWindow;
+    private final String activityLogFile;
+    private final long activityLogFileBytes;
+    private final int activityLogFiles;
+    private final int metricsDumpSeconds;
+
+    /**
+     * Constructs a ServerConfig from a set of properties. Missing keys take
+     * their default values.
+     *
+     * @param properties The properties to read, using the keys documented on the
+     *                   getters.
+     */
+    public ServerConfig(Properties properties) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.port = intProperty(properties, "server.port", 4044);
+        this.sharePath = properties.getProperty("server.sharePath", System.getProperty("user.dir") + "/files");
+        this.engine = properties.getProperty("server.engine", ENGINE_THREADED);
+        this.ioThreads = Math.max(1, intProperty(properties, "server.ioThreads", Math.max(1, cores / 2)));
+        this.workerThreads = Math.max(1, intProperty(properties, "server.workerThreads", cores));
+        this.outboundQueueCapacity = Math.max(1, intProperty(properties, "server.outboundQueue", 1024));
+        this.slowConsumerPolicy = SlowConsumerPolicy
+                .valueOf(properties.getProperty("server.slowConsumerPolicy", "disconnect").trim().toUpperCase());
+        this.outboundBlockMillis = intProperty(properties, "server.outboundBlockMillis", 5000);
+        this.acceptBacklog = Math.max(1, intProperty(properties, "server.acceptBacklog", 1024));
+        this.maxPendingHandshakes = Math.max(1, intProperty(properties, "server.maxPendingHandshakes", 256));
+        this.handshakeTimeoutMillis = Math.max(1, intProperty(properties, "server.handshakeTimeoutMillis", 5000));
+        this.activityLogCapacity = Math.max(2, intProperty(properties, "server.activityLogCapacity", 65536));
+        this.activityLogWindow = Math.max(1, intProperty(properties, "server.activityLogWindow", 1000));
+        this.activityLogFile = properties.getProperty("server.activityLogFile");
+        this.activityLogFileBytes = Math.max(1024,
+                Long.parseLong(properties.getProperty("server.activityLogFileBytes", "10485760").trim()));
+        this.activityLogFiles = Math.max(1, intProperty(properties, "server.activityLogFiles", 5));
+        this.metricsDumpSeconds = Math.max(0, intProperty(properties, "server.metricsDumpSeconds", 60));
+    }
+
+    /**
+     * Builds a configuration from the JVM system properties.
+     *
+     * @return The configuration to start the server with.
+     */
+    public static ServerConfig fromSystemProperties() {
+        return new ServerConfig(System.getProperties());
+    }
+
+    /**
+     * Builds a configuration from command-line arguments on top of the JVM
+     * system properties. Each argument is --name=value for the property
+     * server.name (for example --port=4044, --sharePath=/srv/files or
+     * --engine=nio), or --key=value for a key that contains a dot. The
+     * argument --config=file loads a properties file. Later arguments override
+     * earlier ones, and every argument overrides the system properties.
+     *
+     * @param args The command-line arguments.
+     * @return The configuration to start the server with.
+     * @throws IOException              If a properties file cannot be read.
+     * @throws IllegalArgumentException If an argument is not of the form --name=value.
+     */
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 3) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            if (name.equals("config")) {
+                try (InputStream in = Files.newInputStream(Paths.get(value))) {
+                    properties.load(in);
+                }
+            } else {
+                properties.setProperty(name.contains(".") ? name : "server." + name, value);
+            }
+        }
+        return new ServerConfig(properties);
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Gets the port the server listens on ({@code server.port}).
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the folder whose files the server indexes for searches
+     * ({@code server.sharePath}).
+     *
+     * @return The path of the shared folder.
+     */
+    public String getSharePath() {
+        return sharePath;
+    }
+
+    /**
+     * Gets the connection engine, "threaded" or "nio" ({@code server.engine}).
+     *
+     * @return The engine name.
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Gets the number of selector threads used by the NIO engine
+     * ({@code server.ioThreads}).
+     *
+     * @return The number of I/O threads.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Gets the number of worker threads the NIO engine dispatches client
+     * messages on ({@code server.workerThreads}).
+     *
+     * @return The number of worker threads.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Gets how many messages may wait to be written to one client
+     * ({@code server.outboundQueue}).
+     *
+     * @return The outbound queue capacity per client.
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * Gets what happens when a client's outbound queue is full
+     * ({@code server.slowConsumerPolicy}: drop, disconnect or block; disconnect
+     * by default).
+     *
+     * @return The slow consumer policy.
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Gets how long a sender waits for queue space under the block policy
+     * before the slow client is disconnected ({@code server.outboundBlockMillis}).
+     * A message sent to many clients waits this long in total, not per client.
+     *
+     * @return The wait in milliseconds.
+     */
+    public long getOutboundBlockMillis() {
+        return outboundBlockMillis;
+    }
+
+    /**
+     * Gets the length of the operating system's queue of connections not yet
+     * accepted ({@code server.acceptBacklog}).
+     *
+     * @return The accept backlog.
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * Gets how many accepted clients may be in the middle of logging in at once
+     * ({@code server.maxPendingHandshakes}). Further connections wait in the
+     * accept backlog.
+     *
+     * @return The maximum number of pending handshakes.
+     */
+    public int getMaxPendingHandshakes() {
+        return maxPendingHandshakes;
+    }
+
+    /**
+     * Gets how long a client has to send its login message before it is
+     * disconnected ({@code server.handshakeTimeoutMillis}).
+     *
+     * @return The handshake timeout in milliseconds.
+     */
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    /**
+     * Gets how many activity log entries are buffered between two drains
+     * ({@code server.activityLogCapacity}). Older entries are dropped when
+     * the buffer laps them. Rounded up to a power of two.
+     *
+     * @return The activity log buffer capacity.
+     */
+    public int getActivityLogCapacity() {
+        return activityLogCapacity;
+    }
+
+    /**
+     * Gets how many of the latest activity log entries the server window
+     * shows ({@code server.activityLogWindow}).
+     *
+     * @return The number of entries shown.
+     */
+    public int getActivityLogWindow() {
+        return activityLogWindow;
+    }
+
+    /**
+     * Gets the file the activity log is also written to
+     * ({@code server.activityLogFile}).
+     *
+     * @return The file path, or null to keep the log in memory only.
+     */
+    public String getActivityLogFile() {
+        return activityLogFile;
+    }
+
+    /**
+     * Gets the size at which the activity log file is rolled over
+     * ({@code server.activityLogFileBytes}).
+     *
+     * @return The maximum file size in bytes.
+     */
+    public long getActivityLogFileBytes() {
+        return activityLogFileBytes;
+    }
+
+    /**
+     * Gets how many activity log files are kept, the current one included
+     * ({@code server.activityLogFiles}).
+     *
+     * @return The number of files.
+     */
+    public int getActivityLogFiles() {
+        return activityLogFiles;
+    }
+
+    /**
+     * Gets how often the {@link Metrics} are printed to standard output
+     * ({@code server.metricsDumpSeconds}). They are always available over
+     * JMX.
+     *
+     * @return The period in seconds, or 0 to not print them.
+     */
+    public int getMetricsDumpSeconds() {
+        return metricsDumpSeconds;
+    }
+
+    /**
+     * Checks whether the non-blocking selector engine has been selected.
+     *
+     * @return true if the NIO engine should be used, false for one thread per
+     *         client.
+     */
+    public boolean isNioEngine() {
+        return ENGINE_NIO.equalsIgnoreCase(engine);
+    }
+}
@@ -1,8 +1,10 @@
 package org.example.demo;
 
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
-import javafx.scene.control.TextArea;
-import java.io.File;
+import javafx.scene.control.ListView;
+import java.util.List;
 
 /**
  * ServerController handles the user interface updates on the server side for a
@@ -13,7 +15,7 @@ import java.io.File;
 public class ServerController {
 
     @FXML
-    private TextArea ClientActivityTA; // Text area to display client activity logs
+    private ListView<String> ClientActivityList; // Shows the latest client activity; only visible rows are drawn
 
     /**
      * Appends a new activity string to the client activity log.
@@ -21,7 +23,37 @@ public class ServerController {
      * @param activity A string describing the client's activity.
      */
     public void appendClientActivity(String activity) {
-        ClientActivityTA.appendText(activity + "\n");
+        showActivity(List.of(activity));
+    }
+
+    /**
+     * Appends a batch of activity lines to the client activity log, keeping
+     * only the latest server.activityLogWindow lines. May be called from any
+     * thread.
+     *
+     * @param lines The lines to append.
+     */
+    public void showActivity(List<String> lines) {
+        Platform.runLater(() -> {
+            ObservableList<String> items = ClientActivityList.getItems();
+            boolean following = items.isEmpty() || isLastRowVisible();
+            int window = ServerCore.getConfig().getActivityLogWindow();
+            List<String> shown = lines.size() > window ? lines.subList(lines.size() - window, lines.size()) : lines;
+            int overflow = items.size() + shown.size() - window;
+            if (overflow > 0) {
+                items.remove(0, Math.min(overflow, items.size()));
+            }
+            items.addAll(shown);
+            if (following) {
+                ClientActivityList.scrollTo(items.size() - 1);
+            }
+        });
+    }
+
+    private boolean isLastRowVisible() {
+        // Keep scrolling with the log unless a row other than the last is selected
+        int selected = ClientActivityList.getSelectionModel().getSelectedIndex();
+        return selected < 0 || selected == ClientActivityList.getItems().size() - 1;
     }
 
 }
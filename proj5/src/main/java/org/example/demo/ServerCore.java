@@ -0,0 +1,274 @@
+package org.example.demo;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ServerCore class is the coordination server without a user interface:
+ * it indexes the shared folder for searches and accepts clients, with one
+ * thread per client or with the {@link NioServer} engine. It runs headless
+ * from {@link #main(String[])}, can be embedded in tests, and is what the
+ * JavaFX {@link Server} window starts; the window only observes the
+ * {@link ActivityLog}.
+ * The registry of clients, the file directory and the search index are
+ * shared by every client handler, so there is one running ServerCore per JVM.
+ * Its {@link Metrics} are under "server." and printed every
+ * server.metricsDumpSeconds.
+ */
+public class ServerCore implements AutoCloseable {
+    private static volatile ServerConfig config = ServerConfig.fromSystemProperties();
+    private static volatile ActivityLog activityLog = ActivityLog.fromConfig(config);
+    // Live view of the usernames registered in ClientHandler.clientHandlers
+    public static final Set<String> activeUsernames = ClientHandler.clientHandlers.keySet();
+    public static volatile SearchManager searchManager;
+    public static final FileDirectory fileDirectory = new FileDirectory();
+    // Clients disconnected for not logging in within server.handshakeTimeoutMillis, on either engine
+    private static final Metrics.Counter HANDSHAKES_TIMED_OUT = Metrics.counter("server.handshakesTimedOut");
+
+    static {
+        Metrics.gauge("server.checkFile.sent").add(fileDirectory::getCheckFilesSent);
+        Metrics.gauge("server.checkFile.avoided").add(fileDirectory::getCheckFilesAvoided);
+        Metrics.gauge("server.activityLog.entries").add(() -> activityLog.getEntryCount());
+    }
+
+    private final ServerConfig serverConfig;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ScheduledExecutorService handshakeTimer; // Thread per client engine only
+    private ScheduledFuture<?> metricsDump;
+    private int port = -1;
+
+    /**
+     * Constructs a ServerCore and makes its configuration the one every
+     * client handler reads. Nothing is bound until {@link #start()}.
+     *
+     * @param serverConfig The server configuration.
+     */
+    public ServerCore(ServerConfig serverConfig) {
+        this.serverConfig = serverConfig;
+        config = serverConfig;
+        activityLog = ActivityLog.fromConfig(serverConfig);
+    }
+
+    /**
+     * Indexes the shared folder, binds the server port and starts accepting
+     * clients on a background thread.
+     *
+     * @return The bound port, which differs from the configured one if that
+     *         was 0.
+     * @throws IOException If the port cannot be bound.
+     */
+    public synchronized int start() throws IOException {
+        if (port >= 0) {
+            return port;
+        }
+        searchManager = new SearchManager(serverConfig.getSharePath());
+        try {
+            searchManager.startWatching();
+        } catch (IOException e) {
+            System.out.println("Could not watch shared folder, new files need a restart: " + e.getMessage());
+        }
+
+        Thread acceptThread;
+        if (serverConfig.isNioEngine()) {
+            nioServer = new NioServer(serverConfig);
+            port = nioServer.bind();
+            acceptThread = new Thread(() -> {
+                try {
+                    nioServer.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "nio-accept");
+        } else {
+            serverSocket = new ServerSocket(serverConfig.getPort(), serverConfig.getAcceptBacklog());
+            port = serverSocket.getLocalPort();
+            handshakeTimer = Executors.newSingleThreadScheduledExecutor(NioServer.namedThreads("handshake-timer"));
+            acceptThread = new Thread(this::acceptClients, "accept");
+        }
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        if (serverConfig.getMetricsDumpSeconds() > 0) {
+            metricsDump = Metrics.startDump(serverConfig.getMetricsDumpSeconds(),
+                    lines -> lines.forEach(line -> System.out.println("metrics " + line)));
+        }
+        System.out.println("Server listening on port " + port + " (" + serverConfig.getEngine() + " engine), sharing "
+                + serverConfig.getSharePath());
+        return port;
+    }
+
+    /**
+     * Listens for incoming client connections.
+     * When a new client connects, its login handshake runs on a separate
+     * virtual thread so a client that never logs in cannot hold up the accept
+     * loop. Once logged in, a new ClientHandler thread handles the client. At
+     * most the configured number of handshakes run at once; further
+     * connections wait in the accept backlog. A client that has not logged in
+     * when the handshake timeout expires is disconnected, however slowly it
+     * keeps sending.
+     */
+    private void acceptClients() {
+        Semaphore pendingHandshakes = new Semaphore(serverConfig.getMaxPendingHandshakes());
+        try {
+            while (!serverSocket.isClosed()) {
+                pendingHandshakes.acquire();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    pendingHandshakes.release();
+                    throw e;
+                }
+                ScheduledFuture<?> deadline = handshakeTimer.schedule(() -> expireHandshake(socket),
+                        serverConfig.getHandshakeTimeoutMillis(), TimeUnit.MILLISECONDS);
+                Thread.ofVirtual().name("handshake-" + socket.getRemoteSocketAddress()).start(() -> {
+                    ClientHandler clientHandler;
+                    try {
+                        clientHandler = new ClientHandler(socket);
+                    } finally {
+                        deadline.cancel(false);
+                        pendingHandshakes.release();
+                    }
+                    if (clientHandler.isLoggedIn()) {
+                        Thread thread = new Thread(clientHandler);
+                        thread.start();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        }
+    }
+
+    /**
+     * Disconnects a client whose login did not complete in time. Scheduled for
+     * when the handshake timeout expires.
+     *
+     * @param socket The client's socket.
+     */
+    private static void expireHandshake(Socket socket) {
+        handshakeTimedOut(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            updateClientActivity("Error closing " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a client that did not log in in time.
+     *
+     * @param socket The client's socket.
+     */
+    static void handshakeTimedOut(Socket socket) {
+        HANDSHAKES_TIMED_OUT.increment();
+        updateClientActivity("Login timed out for " + socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Gets the port the server accepts clients on.
+     *
+     * @return The bound port, or -1 before {@link #start()}.
+     */
+    public synchronized int getPort() {
+        return port;
+    }
+
+    /**
+     * Stops accepting clients and watching the shared folder. With one thread
+     * per client, clients already connected stay connected until they leave;
+     * the NIO engine disconnects every client, since its selector and worker
+     * threads are what serve them.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (metricsDump != null) {
+                metricsDump.cancel(false);
+            }
+        }
+        if (nioServer != null) {
+            nioServer.close();
+        }
+        if (handshakeTimer != null) {
+            handshakeTimer.shutdownNow();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        SearchManager search = searchManager;
+        if (search != null) {
+            search.stopWatching();
+        }
+        closed.countDown();
+    }
+
+    /**
+     * Waits until the server is closed.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    /**
+     * Appends a client activity to the activity log. Never blocks.
+     *
+     * @param activity Description of the client activity
+     */
+    public static void updateClientActivity(String activity) {
+        activityLog.append(activity);
+    }
+
+    /**
+     * Gets the activity log, to observe it or to have it written to a file.
+     *
+     * @return The activity log of the running server.
+     */
+    public static ActivityLog getActivityLog() {
+        return activityLog;
+    }
+
+    /**
+     * Gets the configuration the server runs with.
+     *
+     * @return The server configuration.
+     */
+    public static ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Runs the server without a user interface until the JVM is stopped,
+     * printing the activity log to standard output.
+     *
+     * @param args Settings of the form --name=value, see
+     *             {@link ServerConfig#fromArgs(String[])}.
+     * @throws IOException          If the configuration cannot be read or the port cannot be bound.
+     * @throws InterruptedException If the main thread is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ServerCore core = new ServerCore(ServerConfig.fromArgs(args));
+        getActivityLog().addListener(lines -> lines.forEach(System.out::println));
+        core.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(core::close, "shutdown"));
+        core.awaitClose();
+    }
+}
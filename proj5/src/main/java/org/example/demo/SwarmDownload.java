@@ -0,0 +1,604 @@
+package org.example.demo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The SwarmDownload class downloads one file from every peer that holds it at
+ * the same time. The file is split into pieces; each source fetches the next
+ * piece nobody has claimed yet with a ranged request, so fast sources end up
+ * fetching more pieces than slow ones. Once no piece is left unclaimed, idle
+ * sources fetch a copy of a piece still in flight elsewhere, and whichever
+ * copy completes first wins. Each source collects its piece in memory and
+ * only the winning copy is written in place, with positional writes, once
+ * its hash matches; pieces may complete in any order.
+ * Pieces are the chunks of the file's {@link FileManifest}, fetched from the
+ * first source before anything else. Every piece is hashed as it arrives and
+ * fetched again if it does not match, and pieces of an earlier partial
+ * download that already match are kept. Pieces are also aligned to
+ * {@link ChunkCipher} chunks, so each one can be fetched as an encrypted range.
+ * Which pieces are done is recorded in a {@link DownloadJournal} whenever
+ * {@link #saveJournal()} is called, so a restarted client can pick the
+ * download up without hashing the partial file again.
+ */
+public class SwarmDownload {
+
+    /**
+     * Receives the state of a SwarmDownload. Calls come from the download's
+     * worker threads and are never made while the download holds its lock.
+     */
+    public interface Listener {
+        /**
+         * Tells the workers whether to stop after their current chunk.
+         *
+         * @return true while the download is paused.
+         */
+        boolean isPaused();
+
+        /**
+         * More of the file has been written and verified.
+         *
+         * @param completedBytes The number of verified bytes.
+         * @param fileSize       The size of the file.
+         */
+        void progress(long completedBytes, long fileSize);
+
+        /**
+         * Every piece has been written and verified.
+         */
+        void finished();
+
+        /**
+         * Every source gave up before the file was complete.
+         */
+        void failed();
+    }
+
+    /** Bytes per piece; a multiple of the encrypted chunk size. */
+    public static final int PIECE_SIZE = FileManifest.CHUNK_SIZE;
+    /** Consecutive failures after which a source is given up. */
+    private static final int MAX_SOURCE_FAILURES = 3;
+    /** The longest a busy source is waited for before asking it again. */
+    private static final long MAX_BUSY_WAIT_MILLIS = 30_000;
+
+    private static final int PENDING = 0;
+    private static final int IN_FLIGHT = 1;
+    private static final int WRITING = 2; // Verified, being written by the source that won it
+    private static final int DONE = 3;
+
+    private final String fileName;
+    private final String remotePath;
+    private final String savePath;
+    private final String transferKey;
+    private final boolean encrypted;
+    private final ExecutorService executor;
+    private final int maxSources;
+    private final BandwidthLimiter limiter;
+    private final Listener listener;
+    private final List<Source> sources = new CopyOnWriteArrayList<>();
+    private final AtomicLong completedBytes = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong(); // Every byte read from a source, for throughput
+    private static final Metrics.Counter BYTES_DOWNLOADED = Metrics.counter("transfer.bytesDownloaded");
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private volatile FileManifest manifest; // Unknown until the first source sends it
+    private byte[] manifestDigest; // Guarded by this
+    private volatile long fileSize = -1;
+    private volatile AtomicIntegerArray pieceStates;
+    private volatile AtomicIntegerArray pieceFetchers;
+    private FileChannel output;
+    private volatile boolean finished;
+    private volatile boolean failed;
+    private volatile boolean journalDirty;
+
+    /**
+     * Constructs a SwarmDownload. Nothing is fetched until a source is added.
+     *
+     * @param fileName         The name of the file as its holders share it.
+     * @param remotePath       The path of the file as the sources know it.
+     * @param savePath         The local path to save the file to.
+     * @param transferKey      The shared secret for encrypted ranges.
+     * @param encrypted        true to fetch encrypted ranges, false for plaintext.
+     * @param executor         The executor the per-source workers run on.
+     * @param maxSources       The most sources to fetch from; further ones are ignored.
+     * @param limiter          Caps the rate the file is received at, from all sources together.
+     * @param listener         Receives the state of the download.
+     */
+    public SwarmDownload(String fileName, String remotePath, String savePath, String transferKey, boolean encrypted,
+            ExecutorService executor, int maxSources, BandwidthLimiter limiter, Listener listener) {
+        this.fileName = fileName;
+        this.remotePath = remotePath;
+        this.savePath = savePath;
+        this.transferKey = transferKey;
+        this.encrypted = encrypted;
+        this.executor = executor;
+        this.maxSources = maxSources;
+        this.limiter = limiter;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a peer that holds the file and starts fetching from it.
+     *
+     * @param host The peer's address.
+     * @param port The peer's upload port.
+     */
+    public synchronized void addSource(String host, int port) {
+        for (Source source : sources) {
+            if (source.host.equals(host) && source.port == port) {
+                return;
+            }
+        }
+        if (sources.size() >= maxSources) {
+            return;
+        }
+        Source source = new Source(host, port);
+        sources.add(source);
+        if (!finished && !listener.isPaused()) {
+            startWorker(source);
+        }
+    }
+
+    /**
+     * Starts fetching from every source, after a pause or a failure.
+     */
+    public synchronized void resume() {
+        if (finished) {
+            return;
+        }
+        for (Source source : sources) {
+            if (!source.running) {
+                source.failures = 0; // Give sources that failed before another chance
+                startWorker(source);
+            }
+        }
+    }
+
+    /**
+     * Checks whether every piece has been written.
+     *
+     * @return true if the download is complete.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Checks whether the download stopped because no source could deliver the
+     * remaining pieces.
+     *
+     * @return true if the download failed.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Gets the number of sources added so far.
+     *
+     * @return The number of sources.
+     */
+    public int getSourceCount() {
+        return sources.size();
+    }
+
+    private void startWorker(Source source) {
+        failed = false;
+        source.running = true;
+        activeWorkers.incrementAndGet();
+        executor.submit(() -> runWorker(source));
+    }
+
+    private void runWorker(Source source) {
+        try {
+            while (!finished && !listener.isPaused() && source.failures < MAX_SOURCE_FAILURES) {
+                if (manifest == null) {
+                    try {
+                        fetchManifest(source);
+                    } catch (TransferScheduler.BusyException e) {
+                        Thread.sleep(Math.min(e.getRetryAfterMillis(), MAX_BUSY_WAIT_MILLIS));
+                    } catch (IOException e) {
+                        source.failures++;
+                        System.out.println("Manifest from " + source + " failed: " + e.getMessage());
+                    }
+                    continue;
+                }
+                int piece = claimPiece();
+                if (piece < 0) {
+                    // Every remaining piece is being fetched twice; stay around in
+                    // case one of them fails and has to be fetched again
+                    Thread.sleep(50);
+                    continue;
+                }
+                long busyMillis = 0;
+                try {
+                    fetchPiece(source, piece);
+                    source.failures = 0;
+                } catch (TransferScheduler.BusyException e) {
+                    busyMillis = e.getRetryAfterMillis(); // Not a failure; the source has no slot yet
+                } catch (IOException | GeneralSecurityException e) {
+                    if (!listener.isPaused() && pieceStates.get(piece) < WRITING) {
+                        source.failures++;
+                        System.out.println("Piece " + piece + " from " + source + " failed: " + e.getMessage());
+                    }
+                } finally {
+                    releasePiece(piece);
+                }
+                if (busyMillis > 0) {
+                    Thread.sleep(Math.min(busyMillis, MAX_BUSY_WAIT_MILLIS)); // Other sources take the piece meanwhile
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            boolean gaveUp = false;
+            synchronized (this) {
+                source.running = false;
+                source.pieceBuffer = null; // Only held while the source is fetching
+                if (activeWorkers.decrementAndGet() == 0 && !finished && !listener.isPaused()) {
+                    // Every source gave up before the file was complete
+                    failed = true;
+                    gaveUp = true;
+                    System.out.println("Swarm download failed: no source left for " + savePath);
+                }
+            }
+            if (gaveUp) {
+                listener.failed();
+            }
+        }
+    }
+
+    /**
+     * Claims the next piece to fetch: an unclaimed piece if there is one,
+     * otherwise a piece only one other source is fetching.
+     *
+     * @return The piece index, or -1 if nothing is left to fetch.
+     */
+    private int claimPiece() {
+        AtomicIntegerArray states = pieceStates;
+        for (int i = 0; i < states.length(); i++) {
+            if (states.compareAndSet(i, PENDING, IN_FLIGHT)) {
+                pieceFetchers.incrementAndGet(i);
+                return i;
+            }
+        }
+        for (int i = 0; i < states.length(); i++) {
+            if (states.get(i) == IN_FLIGHT && pieceFetchers.compareAndSet(i, 1, 2)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void releasePiece(int piece) {
+        if (pieceFetchers.decrementAndGet(piece) == 0) {
+            // Nobody finished it, so it can be claimed again
+            pieceStates.compareAndSet(piece, IN_FLIGHT, PENDING);
+        }
+    }
+
+    private void fetchPiece(Source source, int piece) throws IOException, GeneralSecurityException {
+        long offset = (long) piece * PIECE_SIZE;
+        int length;
+        try (Socket socket = new Socket(source.host, source.port);
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dis = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), 2 * ChunkCipher.CHUNK_SIZE))) {
+            dos.writeUTF(remotePath); // Send the file request
+            if (encrypted) {
+                dos.writeUTF("SECURE_RANGE");
+                dos.writeLong(offset / ChunkCipher.CHUNK_SIZE);
+                dos.writeLong((offset + PIECE_SIZE) / ChunkCipher.CHUNK_SIZE);
+            } else {
+                dos.writeUTF("RANGE");
+                dos.writeLong(offset);
+                dos.writeLong(PIECE_SIZE);
+            }
+            dos.flush();
+
+            long size = TransferScheduler.readFileSize(dis);
+            if (size != fileSize) {
+                throw new IOException("Source reports a different file size: " + size);
+            }
+            long end = Math.min(size, offset + PIECE_SIZE);
+            length = (int) (end - offset);
+            if (source.pieceBuffer == null) {
+                source.pieceBuffer = new byte[PIECE_SIZE];
+            }
+            if (encrypted) {
+                receiveEncrypted(dis, piece, offset, end, size, source.pieceBuffer);
+            } else {
+                receivePlain(dis, piece, offset, end, source.pieceBuffer);
+            }
+            MessageDigest digest = FileManifest.newDigest();
+            digest.update(source.pieceBuffer, 0, length);
+            if (!manifest.matches(piece, digest.digest())) {
+                throw new IOException("Piece " + piece + " does not match the manifest");
+            }
+        }
+        completePiece(piece, offset, ByteBuffer.wrap(source.pieceBuffer, 0, length));
+    }
+
+    private void fetchManifest(Source source) throws IOException {
+        try (Socket socket = new Socket(source.host, source.port);
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            dos.writeUTF(remotePath); // Send the file request
+            dos.writeUTF("MANIFEST");
+            dos.flush();
+            boolean complete = initPieces(FileManifest.read(TransferScheduler.readFileSize(dis), dis));
+            listener.progress(completedBytes.get(), fileSize);
+            if (complete) {
+                finish();
+            }
+        }
+    }
+
+    private void receivePlain(DataInputStream dis, int piece, long offset, long end, byte[] pieceBuffer)
+            throws IOException {
+        long position = offset;
+        while (position < end) {
+            checkStillWanted(piece);
+            int length = (int) Math.min(ChunkCipher.CHUNK_SIZE, end - position);
+            limiter.acquire(length); // Reading slower makes the source send slower
+            dis.readFully(pieceBuffer, (int) (position - offset), length);
+            receivedBytes.addAndGet(length);
+            BYTES_DOWNLOADED.add(length);
+            position += length;
+        }
+    }
+
+    private void receiveEncrypted(DataInputStream dis, int piece, long offset, long end, long size,
+            byte[] pieceBuffer) throws IOException, GeneralSecurityException {
+        if (dis.readInt() != ChunkCipher.CHUNK_SIZE) {
+            throw new IOException("Peer uses a different chunk size");
+        }
+        byte[] salt = new byte[ChunkCipher.SALT_LENGTH];
+        dis.readFully(salt);
+        ChunkCipher chunkCipher = new ChunkCipher(transferKey, salt, size);
+        byte[] sealed = new byte[ChunkCipher.CHUNK_SIZE + ChunkCipher.TAG_LENGTH];
+        byte[] chunk = new byte[ChunkCipher.CHUNK_SIZE + ChunkCipher.TAG_LENGTH];
+        for (long position = offset; position < end;) {
+            checkStillWanted(piece);
+            int length = dis.readInt();
+            if (length < ChunkCipher.TAG_LENGTH || length > sealed.length) {
+                throw new IOException("Invalid chunk length: " + length);
+            }
+            limiter.acquire(length);
+            dis.readFully(sealed, 0, length);
+            int read = chunkCipher.open(position / ChunkCipher.CHUNK_SIZE, sealed, length, chunk);
+            if (read > end - position) {
+                throw new IOException("Chunk runs past the end of piece " + piece);
+            }
+            receivedBytes.addAndGet(read);
+            BYTES_DOWNLOADED.add(read);
+            System.arraycopy(chunk, 0, pieceBuffer, (int) (position - offset), read);
+            position += read;
+        }
+    }
+
+    private void checkStillWanted(int piece) throws IOException {
+        if (listener.isPaused()) {
+            throw new IOException("Download paused");
+        }
+        if (pieceStates.get(piece) >= WRITING) {
+            throw new IOException("Piece " + piece + " was completed by another source");
+        }
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += output.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * Sets up the piece table from the first manifest received, keeping the
+     * pieces of an earlier partial download that already match it. If the
+     * earlier download left a journal for the same file, the pieces it lists
+     * are kept without hashing them again.
+     *
+     * @param received The manifest sent by a source.
+     * @return true if the file on disk is already complete.
+     */
+    private synchronized boolean initPieces(FileManifest received) throws IOException {
+        if (manifest != null) {
+            return false;
+        }
+        long size = received.getFileSize();
+        int pieceCount = received.getChunkCount();
+        AtomicIntegerArray states = new AtomicIntegerArray(pieceCount);
+        Path path = Paths.get(savePath).toAbsolutePath();
+        Files.createDirectories(path.getParent()); // The download folder may not exist yet
+        output = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+        if (output.size() > size) {
+            output.truncate(size);
+        }
+        DownloadJournal journal = null;
+        try {
+            journal = DownloadJournal.read(savePath);
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable journal of " + savePath + ": " + e.getMessage());
+        }
+        boolean[] valid;
+        if (journal != null && journal.matches(received)) {
+            valid = new boolean[pieceCount];
+            long available = output.size();
+            for (int i = 0; i < pieceCount; i++) {
+                valid[i] = journal.isComplete(i) && Math.min(size, (long) (i + 1) * PIECE_SIZE) <= available;
+            }
+        } else {
+            valid = received.verify(output);
+        }
+        long kept = 0;
+        for (int i = 0; i < pieceCount; i++) {
+            if (valid[i]) {
+                states.set(i, DONE);
+                kept += Math.min(PIECE_SIZE, size - (long) i * PIECE_SIZE);
+            }
+        }
+        if (kept > 0) {
+            System.out.println("Keeping " + kept + " verified bytes of " + savePath);
+        }
+        pieceFetchers = new AtomicIntegerArray(pieceCount);
+        pieceStates = states;
+        fileSize = size;
+        manifest = received;
+        manifestDigest = received.getDigest();
+        completedBytes.set(kept);
+        journalDirty = true; // Record the file's identity even before the first piece
+        return kept >= size;
+    }
+
+    /**
+     * Writes a verified piece to the file, unless another source's copy won.
+     * The piece is IN_FLIGHT while any source fetches it, so the first source
+     * to move it on is the only one that writes; it is only DONE, and so only
+     * journaled, once it is on disk.
+     *
+     * @param piece  The piece index.
+     * @param offset The piece's offset in the file.
+     * @param data   The verified content of the piece.
+     * @throws IOException If the piece cannot be written.
+     */
+    private void completePiece(int piece, long offset, ByteBuffer data) throws IOException {
+        if (!pieceStates.compareAndSet(piece, IN_FLIGHT, WRITING)) {
+            return; // Another source finished it first
+        }
+        try {
+            writeFully(data, offset);
+        } catch (IOException e) {
+            pieceStates.set(piece, IN_FLIGHT); // Released, and fetched again, like a failed fetch
+            throw e;
+        }
+        pieceStates.set(piece, DONE);
+        journalDirty = true;
+        long done = completedBytes.addAndGet(Math.min(PIECE_SIZE, fileSize - offset));
+        listener.progress(done, fileSize);
+        if (done >= fileSize) {
+            finish();
+        }
+    }
+
+    private void finish() throws IOException {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            output.close();
+            DownloadJournal.delete(savePath);
+            System.out.println("Swarm download complete from " + sources.size() + " sources: " + savePath);
+        }
+        listener.finished();
+    }
+
+    /**
+     * Records the pieces done so far in the download's journal, if any piece
+     * was completed since the last call. The pieces are synced to disk first,
+     * so the journal never lists a piece a crash could still lose. Meant to be
+     * called periodically, off the threads doing the transfer.
+     *
+     * @throws IOException If the file cannot be synced or the journal written.
+     */
+    public void saveJournal() throws IOException {
+        if (!journalDirty) {
+            return;
+        }
+        synchronized (this) {
+            if (finished || manifest == null) {
+                return;
+            }
+            journalDirty = false;
+            AtomicIntegerArray states = pieceStates;
+            BitSet done = new BitSet(states.length());
+            for (int i = 0; i < states.length(); i++) {
+                if (states.get(i) == DONE) {
+                    done.set(i);
+                }
+            }
+            try {
+                output.force(false); // After taking the snapshot, so every piece in it is synced
+                new DownloadJournal(fileName, savePath, fileSize, manifestDigest, done).write();
+            } catch (IOException e) {
+                journalDirty = true;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes written and verified so far.
+     *
+     * @return The number of completed bytes.
+     */
+    public long getCompletedBytes() {
+        return completedBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes received from all sources so far. Unlike the
+     * completed bytes it grows with every chunk, and it also counts pieces
+     * received twice or rejected.
+     *
+     * @return The number of received bytes.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return The file size, or -1 until the first source has answered.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * A peer the file is fetched from.
+     */
+    private static class Source {
+        final String host;
+        final int port;
+        volatile int failures;
+        volatile boolean running;
+        byte[] pieceBuffer; // Only touched by the source's worker, while it runs
+
+        Source(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
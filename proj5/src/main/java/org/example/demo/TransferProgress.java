@@ -0,0 +1,123 @@
+package org.example.demo;
+
+/**
+ * The TransferProgress class is a snapshot of one download, taken by a
+ * {@link ProgressReporter}: how far it is, how fast it is going and how long
+ * it still needs.
+ */
+public class TransferProgress {
+    private final DownloadSession session;
+    private final DownloadSession.State state;
+    private final long completedBytes;
+    private final long fileSize;
+    private final double currentRate;
+    private final double averageRate;
+
+    /**
+     * Constructs a TransferProgress.
+     *
+     * @param session        The download.
+     * @param state          The download's state when sampled.
+     * @param completedBytes The number of verified bytes.
+     * @param fileSize       The size of the file, or -1 if not known yet.
+     * @param currentRate    The recent rate in bytes per second.
+     * @param averageRate    The rate in bytes per second over the time the
+     *                       download has been running.
+     */
+    public TransferProgress(DownloadSession session, DownloadSession.State state, long completedBytes,
+            long fileSize, double currentRate, double averageRate) {
+        this.session = session;
+        this.state = state;
+        this.completedBytes = completedBytes;
+        this.fileSize = fileSize;
+        this.currentRate = currentRate;
+        this.averageRate = averageRate;
+    }
+
+    public DownloadSession getSession() {
+        return session;
+    }
+
+    public DownloadSession.State getState() {
+        return state;
+    }
+
+    public long getCompletedBytes() {
+        return completedBytes;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public double getCurrentRate() {
+        return currentRate;
+    }
+
+    public double getAverageRate() {
+        return averageRate;
+    }
+
+    /**
+     * Gets the progress of the download.
+     *
+     * @return The progress, from 0 to 1.
+     */
+    public double getProgress() {
+        if (state == DownloadSession.State.COMPLETED) {
+            return 1.0;
+        }
+        return fileSize <= 0 ? 0.0 : Math.min(1.0, completedBytes / (double) fileSize);
+    }
+
+    /**
+     * Estimates how long the download still needs at its recent rate, or at
+     * its average rate while the recent one is zero.
+     *
+     * @return The estimate in seconds, or -1 if the download is not running
+     *         or the rate is not known yet.
+     */
+    public long getEtaSeconds() {
+        double rate = currentRate > 0 ? currentRate : averageRate;
+        if (state != DownloadSession.State.RUNNING || fileSize < 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, fileSize - completedBytes) / rate);
+    }
+
+    /**
+     * Formats the snapshot for display, for example
+     * "movie.mp4 - RUNNING 42% 12.5 MB/s (avg 10.1 MB/s) ETA 1:05".
+     *
+     * @return The display text.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder()
+                .append(session.getFileName()).append(" - ").append(state)
+                .append(' ').append(Math.round(getProgress() * 100)).append('%');
+        if (state == DownloadSession.State.RUNNING) {
+            text.append(' ').append(formatRate(currentRate))
+                    .append(" (avg ").append(formatRate(averageRate)).append(')');
+            long eta = getEtaSeconds();
+            if (eta >= 0) {
+                text.append(" ETA ").append(formatDuration(eta));
+            }
+        }
+        return text.toString();
+    }
+
+    private static String formatRate(double bytesPerSecond) {
+        if (bytesPerSecond >= 1e6) {
+            return String.format("%.1f MB/s", bytesPerSecond / 1e6);
+        }
+        return String.format("%.0f kB/s", bytesPerSecond / 1e3);
+    }
+
+    private static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+}
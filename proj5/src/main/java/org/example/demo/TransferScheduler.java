@@ -0,0 +1,222 @@
+package org.example.demo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The TransferScheduler class runs uploads in a fixed number of slots. An
+ * upload that finds every slot taken waits in a bounded queue; once the queue
+ * is full too, the requester is told the peer is busy and when to try again,
+ * instead of the peer starting another thread.
+ * Uploads run on platform threads by default, where each queued upload holds
+ * a parked thread. With virtual threads (-Dtransfer.virtualThreads=true)
+ * waiting costs next to nothing, so a large queue of slow or idle
+ * connections is cheap.
+ * Every response to a file request starts with the file size; a busy peer
+ * sends {@link #BUSY} in its place, followed by the delay to retry after.
+ * Peers from before the scheduler read any number there as the file size,
+ * and would save the delay as the file's content. They only ever send NORMAL
+ * and RESUME requests, so a busy peer answers only the request types of
+ * {@link #understandsBusy} that way and closes the others without a reply,
+ * which an old peer reports as a failed download.
+ */
+public class TransferScheduler {
+    /** Sent instead of the file size when the peer has no slot for the request. */
+    public static final long BUSY = -2;
+
+    private final int slotCount;
+    private final int queueCapacity;
+    private final long retryMillis;
+    private final Semaphore slots;
+    private final ExecutorService threads;
+    private final AtomicInteger admitted = new AtomicInteger(); // Running and queued
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    /**
+     * Constructs a TransferScheduler.
+     *
+     * @param slotCount      The number of uploads that may run at once.
+     * @param queueCapacity  The number of uploads that may wait for a slot.
+     * @param retryMillis    The delay a rejected requester is asked to wait
+     *                       when the queue is just full; it grows with the
+     *                       number of uploads per slot.
+     * @param virtualThreads true to run every upload on its own virtual thread.
+     */
+    public TransferScheduler(int slotCount, int queueCapacity, long retryMillis, boolean virtualThreads) {
+        this.slotCount = Math.max(1, slotCount);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.retryMillis = Math.max(1, retryMillis);
+        this.slots = new Semaphore(this.slotCount, true); // Fair, so the queue is first come, first served
+        this.threads = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("upload-", 0).factory())
+                : Executors.newCachedThreadPool(NioServer.namedThreads("upload"));
+    }
+
+    /**
+     * Runs an upload in a free slot, or queues it until one frees up.
+     *
+     * @param upload The upload.
+     * @return true if the upload was accepted, false if the queue is full and
+     *         the requester should be told to retry.
+     */
+    public boolean submit(Runnable upload) {
+        if (admitted.incrementAndGet() > slotCount + queueCapacity) {
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            threads.execute(() -> {
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    admitted.decrementAndGet();
+                    return;
+                }
+                running.incrementAndGet();
+                try {
+                    upload.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Upload failed: " + e);
+                } finally {
+                    running.decrementAndGet();
+                    slots.release();
+                    admitted.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admitted.decrementAndGet(); // Shut down
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the running and queued uploads. Nothing is accepted afterwards.
+     */
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    /**
+     * Checks whether the peer that sent a request can be told to retry. Only
+     * peers that send these request types know the {@link #BUSY} marker.
+     *
+     * @param requestType The type of the request.
+     * @return true for RANGE, SECURE_RANGE and MANIFEST requests.
+     */
+    public static boolean understandsBusy(String requestType) {
+        return requestType.equals("RANGE") || requestType.equals("SECURE_RANGE") || requestType.equals("MANIFEST");
+    }
+
+    /**
+     * Gets how long a rejected requester should wait before asking again:
+     * the base delay for every round of uploads ahead of it.
+     *
+     * @return The delay in milliseconds.
+     */
+    public long getRetryAfterMillis() {
+        return retryMillis * (1 + admitted.get() / slotCount);
+    }
+
+    /**
+     * Tells a requester that the peer is busy.
+     *
+     * @param dos         The stream to the requester.
+     * @param retryMillis The delay to retry after.
+     * @throws IOException If the requester disconnected.
+     */
+    public static void writeBusy(DataOutputStream dos, long retryMillis) throws IOException {
+        dos.writeLong(BUSY);
+        dos.writeLong(retryMillis);
+        dos.flush();
+    }
+
+    /**
+     * Reads the file size that starts every response to a file request.
+     *
+     * @param dis The stream from the peer.
+     * @return The file size.
+     * @throws BusyException If the peer is busy.
+     * @throws IOException   If the peer disconnected or sent a negative size.
+     */
+    public static long readFileSize(DataInputStream dis) throws IOException {
+        long size = dis.readLong();
+        if (size == BUSY) {
+            throw new BusyException(dis.readLong());
+        }
+        if (size < 0) {
+            throw new IOException("Invalid file size: " + size);
+        }
+        return size;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Gets the number of uploads waiting for a slot.
+     *
+     * @return The queue length.
+     */
+    public int getQueueLength() {
+        return Math.max(0, admitted.get() - running.get());
+    }
+
+    /**
+     * Gets the number of slots in use.
+     *
+     * @return The number of running uploads.
+     */
+    public int getActiveSlots() {
+        return running.get();
+    }
+
+    /**
+     * Gets the share of slots in use.
+     *
+     * @return The utilization, from 0 to 1.
+     */
+    public double getUtilization() {
+        return running.get() / (double) slotCount;
+    }
+
+    /**
+     * Gets the number of requesters told to retry so far.
+     *
+     * @return The number of rejected requests.
+     */
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Thrown when a peer has no slot for a request.
+     */
+    public static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMillis;
+
+        public BusyException(long retryAfterMillis) {
+            super("Peer is busy, retry after " + retryAfterMillis + " ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.example.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The TrigramIndex class answers substring queries over a fixed list of file
+ * names without scanning every name. Each name is split into its three
+ * character substrings (trigrams), and every trigram maps to the ascending list
+ * of names that contain it. A query intersects the lists of its own trigrams
+ * and then checks the few remaining candidates with {@link String#contains}, so
+ * results are exactly those of a linear scan, in the same order.
+ */
+public class TrigramIndex {
+    private static final int GRAM = 3;
+    private static final int[] NO_POSTINGS = new int[0];
+
+    private final String[] names;
+    private final Map<Long, int[]> postings;
+
+    /**
+     * Builds the index over the given names. Result order follows the order of
+     * this array.
+     *
+     * @param names The file names to index.
+     */
+    public TrigramIndex(String[] names) {
+        this.names = names;
+        this.postings = buildPostings(names);
+    }
+
+    /**
+     * Gets the number of indexed names.
+     *
+     * @return The number of names.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Gets the indexed names in index order.
+     *
+     * @return The names array. It must not be modified.
+     */
+    String[] names() {
+        return names;
+    }
+
+    /**
+     * Finds all names that contain the query, with the same results and order as
+     * checking {@code name.contains(query)} on every name.
+     *
+     * @param query The substring to search for.
+     * @return List of matching names.
+     */
+    public List<String> search(String query) {
+        List<String> results = new ArrayList<>();
+        if (query.length() < GRAM) {
+            // Too short to have a trigram, every name is a candidate
+            for (String name : names) {
+                if (name.contains(query)) {
+                    results.add(name);
+                }
+            }
+            return results;
+        }
+
+        int[] candidates = candidates(query);
+        for (int candidate : candidates) {
+            if (candidate < 0) {
+                break; // end of the intersection
+            }
+            if (names[candidate].contains(query)) {
+                results.add(names[candidate]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Intersects the posting lists of every distinct trigram in the query.
+     * Matches are written to the front of the returned array, followed by -1 if
+     * the array is not full.
+     */
+    private int[] candidates(String query) {
+        int gramCount = query.length() - GRAM + 1;
+        int[][] lists = new int[gramCount][];
+        for (int i = 0; i < gramCount; i++) {
+            int[] list = postings.get(key(query, i));
+            if (list == null) {
+                return NO_POSTINGS;
+            }
+            lists[i] = list;
+        }
+        // Start from the rarest trigram so the working set is as small as possible
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+
+        int[] result = lists[0].clone();
+        int count = result.length;
+        for (int i = 1; i < lists.length && count > 0; i++) {
+            if (lists[i] == lists[i - 1]) {
+                continue; // repeated trigram in the query
+            }
+            count = intersect(result, count, lists[i]);
+        }
+        if (count < result.length) {
+            result[count] = -1;
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the first count entries of result that also appear in other,
+     * probing other with galloping search since it is the longer list.
+     *
+     * @return The number of entries kept.
+     */
+    private static int intersect(int[] result, int count, int[] other) {
+        int kept = 0;
+        int low = 0;
+        for (int i = 0; i < count && low < other.length; i++) {
+            int target = result[i];
+            int step = 1;
+            int high = low;
+            while (high < other.length && other[high] < target) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(other, low, Math.min(high + 1, other.length), target);
+            if (found >= 0) {
+                result[kept++] = target;
+                low = found + 1;
+            } else {
+                low = -found - 1;
+            }
+        }
+        return kept;
+    }
+
+    private static Map<Long, int[]> buildPostings(String[] names) {
+        Map<Long, IntList> lists = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            for (int start = 0; start + GRAM <= name.length(); start++) {
+                IntList list = lists.computeIfAbsent(key(name, start), k -> new IntList());
+                // Names are added in order, so a repeated trigram only needs a look at the tail
+                if (list.size == 0 || list.values[list.size - 1] != i) {
+                    list.add(i);
+                }
+            }
+        }
+        Map<Long, int[]> postings = new HashMap<>(lists.size() * 2);
+        for (Map.Entry<Long, IntList> entry : lists.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return postings;
+    }
+
+    private static long key(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    /**
+     * A growable list of primitive ints used while building posting lists.
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
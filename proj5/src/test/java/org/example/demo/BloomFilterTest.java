@@ -0,0 +1,70 @@
+package org.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The BloomFilterTest class checks that summaries survive encoding and that
+ * the sizes a client sends are checked before a filter is allocated.
+ */
+class BloomFilterTest {
+
+    private static String[] lines(String bitCount, String hashCount, String bits) {
+        return new String[] { "4044", bitCount, hashCount, bits };
+    }
+
+    @Test
+    void decodesWhatWasEncoded() {
+        CountingBloomFilter counting = new CountingBloomFilter(100, 0.01);
+        counting.add("song.mp3");
+        counting.add("notes.txt");
+        BloomFilter filter = counting.toBloomFilter();
+
+        BloomFilter decoded = BloomFilter.decode(("4044\n" + filter.encode()).split("\n"), 1);
+
+        assertEquals(filter.getBitCount(), decoded.getBitCount());
+        assertEquals(filter.getHashCount(), decoded.getHashCount());
+        assertTrue(decoded.mightContain("song.mp3"));
+        assertTrue(decoded.mightContain("notes.txt"));
+        assertFalse(decoded.mightContain("missing.bin"));
+    }
+
+    @Test
+    void rejectsTooManyBits() {
+        String bitCount = Integer.toString(BloomFilter.MAX_BIT_COUNT + 1);
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines(bitCount, "3", "AAAA"), 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> BloomFilter.decode(lines(Long.toString(Long.MAX_VALUE), "3", "AAAA"), 1));
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines("0", "3", ""), 1));
+    }
+
+    @Test
+    void rejectsTooManyHashes() {
+        String hashCount = Integer.toString(BloomFilter.MAX_HASH_COUNT + 1);
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines("24", hashCount, "AAAA"), 1));
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines("24", "0", "AAAA"), 1));
+    }
+
+    @Test
+    void rejectsBitsThatDoNotMatchTheSize() {
+        // 24 bits are 3 bytes, which take 4 Base64 characters
+        assertEquals(24, BloomFilter.decode(lines("24", "3", "AAAA"), 1).getBitCount());
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines("24", "3", "AAAAAAAA"), 1));
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines("24", "3", "AA"), 1));
+        // Right length, but padded to 2 bytes
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines("24", "3", "AAA="), 1));
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(lines("24", "3", "AA!A"), 1));
+        assertThrows(IllegalArgumentException.class, () -> BloomFilter.decode(new String[] { "4044", "24" }, 1));
+    }
+
+    @Test
+    void sizingStaysWithinTheCaps() {
+        int bitCount = BloomFilter.optimalBitCount(Integer.MAX_VALUE, 1e-9);
+        assertTrue(bitCount <= BloomFilter.MAX_BIT_COUNT);
+        assertTrue(BloomFilter.optimalHashCount(bitCount, 1) <= BloomFilter.MAX_HASH_COUNT);
+    }
+}
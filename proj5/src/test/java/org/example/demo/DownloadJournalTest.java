@@ -0,0 +1,139 @@
+package org.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The DownloadJournalTest class checks that a journal survives a restart and
+ * that a download resumed from it only fetches the pieces it does not list,
+ * unless the journal was written for a different file.
+ */
+class DownloadJournalTest {
+    private static final int PIECE = SwarmDownload.PIECE_SIZE;
+
+    @TempDir
+    Path folder;
+
+    private Path shareFile(String name, long size) throws IOException {
+        Path share = Files.createDirectories(folder.resolve("share"));
+        byte[] content = new byte[(int) size];
+        new Random(name.hashCode()).nextBytes(content);
+        return Files.write(share.resolve(name), content);
+    }
+
+    private static BitSet pieces(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
+    /**
+     * Downloads a shared file to a path that may hold a partial download,
+     * and returns how many bytes the source sent.
+     */
+    private long download(Path source, String savePath) throws Exception {
+        Metrics.Counter uploaded = Metrics.counter("transfer.bytesUploaded");
+        FileTransferManager uploader = new FileTransferManager(source.getParent().toString());
+        FileTransferManager downloader = new FileTransferManager(folder.resolve("own").toString());
+        try {
+            long before = uploaded.get();
+            downloader.downloadFromSource("localhost", uploader.getPort(), source.getFileName().toString(), savePath)
+                    .getCompletion().get(60, TimeUnit.SECONDS);
+            return uploaded.get() - before;
+        } finally {
+            downloader.close();
+            uploader.close();
+        }
+    }
+
+    @Test
+    void survivesARestart() throws IOException {
+        Path source = shareFile("movie.bin", 2L * PIECE + 1000);
+        FileManifest manifest = FileManifest.forFile(source.toFile());
+        String savePath = folder.resolve("movie.bin").toString();
+
+        new DownloadJournal("movie.bin", savePath, manifest.getFileSize(), manifest.getDigest(), pieces(0, 2))
+                .write();
+        Files.writeString(folder.resolve("garbage.bin" + DownloadJournal.SUFFIX), "not a journal");
+
+        DownloadJournal journal = DownloadJournal.read(savePath);
+        assertEquals("movie.bin", journal.getFileName());
+        assertEquals(savePath, journal.getSavePath());
+        assertTrue(journal.matches(manifest));
+        assertTrue(journal.isComplete(0));
+        assertFalse(journal.isComplete(1));
+        assertTrue(journal.isComplete(2));
+        assertEquals(PIECE + 1000, journal.getCompletedBytes()); // The last piece is short
+
+        List<DownloadJournal> found = DownloadJournal.findAll(folder); // The unreadable one is skipped
+        assertEquals(1, found.size());
+        assertEquals(savePath, found.get(0).getSavePath());
+
+        DownloadJournal.delete(savePath);
+        assertNull(DownloadJournal.read(savePath));
+    }
+
+    @Test
+    void doesNotMatchAnotherFile() throws IOException {
+        FileManifest manifest = FileManifest.forFile(shareFile("a.bin", 1000).toFile());
+        FileManifest other = FileManifest.forFile(shareFile("b.bin", 1000).toFile());
+        String savePath = folder.resolve("a.bin").toString();
+        new DownloadJournal("a.bin", savePath, 1000, manifest.getDigest(), pieces(0)).write();
+        assertFalse(DownloadJournal.read(savePath).matches(other));
+    }
+
+    @Test
+    void resumedDownloadOnlyFetchesMissingPieces() throws Exception {
+        Path source = shareFile("resume.bin", 2L * PIECE + 1000);
+        byte[] content = Files.readAllBytes(source);
+        FileManifest manifest = FileManifest.forFile(source.toFile());
+        Path saved = folder.resolve("resume.bin");
+        // The first piece made it to disk and into the journal before the restart
+        byte[] partial = new byte[content.length];
+        System.arraycopy(content, 0, partial, 0, PIECE);
+        Files.write(saved, partial);
+        new DownloadJournal("resume.bin", saved.toString(), content.length, manifest.getDigest(), pieces(0))
+                .write();
+
+        long sent = download(source, saved.toString());
+
+        assertEquals(content.length - PIECE, sent);
+        assertArrayEquals(content, Files.readAllBytes(saved));
+        assertFalse(Files.exists(DownloadJournal.pathFor(saved.toString())));
+    }
+
+    @Test
+    void journalOfAnotherFileIsIgnored() throws Exception {
+        Path source = shareFile("changed.bin", 2L * PIECE + 1000);
+        byte[] content = Files.readAllBytes(source);
+        Path saved = folder.resolve("changed.bin");
+        // The journal claims two pieces, but of an older version of the file;
+        // only the first piece on disk is still correct
+        byte[] partial = new byte[content.length];
+        System.arraycopy(content, 0, partial, 0, PIECE);
+        Files.write(saved, partial);
+        new DownloadJournal("changed.bin", saved.toString(), content.length, new byte[FileManifest.HASH_LENGTH],
+                pieces(0, 1)).write();
+
+        long sent = download(source, saved.toString());
+
+        assertEquals(content.length - PIECE, sent); // The first piece is kept because its hash matches
+        assertArrayEquals(content, Files.readAllBytes(saved));
+    }
+}
@@ -0,0 +1,109 @@
+package org.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The MessageCodecTest class checks the binary protocol's name interning:
+ * names beyond the intern table's size still get through, and a peer cannot
+ * grow the decoder's table past it.
+ */
+class MessageCodecTest {
+
+    private static Message roundTrip(MessageCodec encoder, MessageCodec decoder, Message message)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.write(message, out);
+        return decoder.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    private static void assertSame(Message expected, Message actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getRecipient(), actual.getRecipient());
+        assertEquals(expected.getContent(), actual.getContent());
+    }
+
+    /**
+     * Builds the body of a search frame whose sender defines a new name.
+     */
+    private static ByteBuffer newNameFrame(int id, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 2 + 2 + bytes.length + 2 + 4);
+        body.put(MessageType.SEARCH.getCode());
+        body.putShort((short) -id).putShort((short) bytes.length).put(bytes); // Sender
+        body.putShort((short) 0); // No recipient
+        body.putInt(-1); // No content
+        return body.flip();
+    }
+
+    @Test
+    void namesBeyondTheInternTableStillRoundTrip() throws IOException {
+        MessageCodec encoder = new MessageCodec();
+        MessageCodec decoder = new MessageCodec();
+        int names = MessageCodec.MAX_INTERNED + 100;
+        for (int pass = 0; pass < 2; pass++) { // Defined on the first pass, referred to or literal on the second
+            for (int i = 0; i < names; i++) {
+                Message message = new Message("search", "user" + i, "server", "query " + pass);
+                assertSame(message, roundTrip(encoder, decoder, message));
+            }
+        }
+    }
+
+    @Test
+    void internedNamesAreSentAsIds() {
+        MessageCodec encoder = new MessageCodec();
+        Message message = new Message("search", "a rather long user name", null, "q");
+        int first = encoder.encode(message).remaining();
+        int second = encoder.encode(message).remaining();
+        assertEquals(2 + "a rather long user name".length(), first - second); // The name and its length
+    }
+
+    @Test
+    void unknownTypesAndNullsRoundTrip() throws IOException {
+        Message message = new Message("someFutureType", null, null, null);
+        Message decoded = roundTrip(new MessageCodec(), new MessageCodec(), message);
+        assertSame(message, decoded);
+        assertNull(decoded.getContent());
+    }
+
+    @Test
+    void rejectsANameBeyondTheInternTable() throws IOException {
+        MessageCodec decoder = new MessageCodec();
+        for (int id = 1; id <= MessageCodec.MAX_INTERNED; id++) {
+            assertEquals("user" + id, decoder.decode(newNameFrame(id, "user" + id)).getSender());
+        }
+        StreamCorruptedException e = assertThrows(StreamCorruptedException.class,
+                () -> decoder.decode(newNameFrame(MessageCodec.MAX_INTERNED + 1, "one too many")));
+        assertTrue(e.getMessage().contains("interned names"));
+    }
+
+    @Test
+    void rejectsNameIdsOutOfOrder() {
+        MessageCodec decoder = new MessageCodec();
+        assertThrows(StreamCorruptedException.class, () -> decoder.decode(newNameFrame(2, "skipped one")));
+
+        ByteBuffer unknownId = ByteBuffer.allocate(1 + 2 + 2 + 4);
+        unknownId.put(MessageType.SEARCH.getCode()).putShort((short) 1).putShort((short) 0).putInt(-1).flip();
+        assertThrows(StreamCorruptedException.class, () -> decoder.decode(unknownId));
+    }
+
+    @Test
+    void rejectsOversizedFrames() {
+        byte[] frame = ByteBuffer.allocate(4).putInt(MessageCodec.MAX_FRAME_LENGTH + 1).array();
+        assertThrows(StreamCorruptedException.class,
+                () -> new MessageCodec().read(new DataInputStream(new ByteArrayInputStream(frame))));
+    }
+}
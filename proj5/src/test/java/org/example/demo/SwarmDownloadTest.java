@@ -0,0 +1,170 @@
+package org.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The SwarmDownloadTest class checks that every piece is verified before it
+ * is written: a source sending a corrupt piece never gets it onto disk, and
+ * the piece is fetched from another source instead.
+ */
+class SwarmDownloadTest {
+    private static final int PIECE = SwarmDownload.PIECE_SIZE;
+
+    @TempDir
+    Path folder;
+
+    private ExecutorService executor;
+    private byte[] content;
+    private Path source;
+
+    @BeforeEach
+    void shareFile() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        content = new byte[2 * PIECE + 1000];
+        new Random(14).nextBytes(content);
+        source = Files.write(Files.createDirectories(folder.resolve("share")).resolve("file.bin"), content);
+    }
+
+    @AfterEach
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Serves the shared file in plaintext ranges, like a peer's upload server,
+     * optionally flipping a byte of the second piece every time it is sent.
+     */
+    private class FakeSource implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final AtomicInteger corruptPiecesSent = new AtomicInteger();
+
+        FakeSource(boolean corrupt) throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        executor.submit(() -> serve(socket, corrupt));
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private Void serve(Socket socket, boolean corrupt) throws IOException {
+            try (socket;
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                in.readUTF(); // The file's path
+                String type = in.readUTF();
+                if (type.equals("MANIFEST")) {
+                    FileManifest.forFile(source.toFile()).write(out);
+                } else if (type.equals("RANGE")) {
+                    int offset = (int) in.readLong();
+                    int end = (int) Math.min(content.length, offset + in.readLong());
+                    byte[] range = Arrays.copyOfRange(content, offset, end);
+                    if (corrupt && offset == PIECE) {
+                        range[range.length / 2] ^= 1;
+                        corruptPiecesSent.incrementAndGet();
+                    }
+                    out.writeLong(content.length);
+                    out.write(range);
+                }
+                out.flush();
+            }
+            return null;
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Downloads the shared file from the given sources.
+     *
+     * @return true if the download finished, false if it failed.
+     */
+    private boolean download(Path savePath, FakeSource... sources) throws Exception {
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        SwarmDownload swarm = new SwarmDownload("file.bin", source.toString(), savePath.toString(), "key", false,
+                executor, sources.length, new BandwidthLimiter("test", 0, null), new SwarmDownload.Listener() {
+                    @Override
+                    public boolean isPaused() {
+                        return false;
+                    }
+
+                    @Override
+                    public void progress(long completedBytes, long fileSize) {
+                    }
+
+                    @Override
+                    public void finished() {
+                        outcome.complete(true);
+                    }
+
+                    @Override
+                    public void failed() {
+                        outcome.complete(false);
+                    }
+                });
+        for (FakeSource fake : sources) {
+            swarm.addSource("localhost", fake.getPort());
+        }
+        return outcome.get(60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void corruptPieceIsNeverWritten() throws Exception {
+        Path saved = folder.resolve("corrupt.bin");
+        try (FakeSource corrupt = new FakeSource(true)) {
+            assertFalse(download(saved, corrupt));
+            assertTrue(corrupt.corruptPiecesSent.get() > 0);
+        }
+        byte[] written = Files.readAllBytes(saved);
+        for (int i = PIECE; i < Math.min(written.length, 2 * PIECE); i++) {
+            assertEquals(0, written[i], "Byte " + i + " of the corrupt piece was written");
+        }
+        assertArrayEquals(Arrays.copyOf(content, PIECE), Arrays.copyOf(written, PIECE));
+    }
+
+    @Test
+    void corruptPieceIsFetchedFromAnotherSource() throws Exception {
+        Path saved = folder.resolve("swarm.bin");
+        try (FakeSource corrupt = new FakeSource(true); FakeSource honest = new FakeSource(false)) {
+            assertTrue(download(saved, corrupt, honest));
+        }
+        assertArrayEquals(content, Files.readAllBytes(saved));
+    }
+}